@@ -0,0 +1,282 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+
+/**
+ * One entry of an archive, a directory, a regular file or a symbolic link,
+ * together with the unix mode and modification time to store for it.
+ *
+ * @author Patrik Karlström
+ */
+public class ArchiveEntry {
+
+    public static final int S_IFDIR = 0040000;
+    public static final int S_IFLNK = 0120000;
+    public static final int S_IFREG = 0100000;
+
+    private final byte[] mBytes;
+    private final long mLastModified;
+    private final int mMode;
+    private final String mName;
+    private final Path mPath;
+    private final long mSize;
+    private final SourceArchive mSourceArchive;
+    private final SourceArchive.Entry mSourceEntry;
+    private final Type mType;
+
+    /**
+     * Creates an entry for a file, directory or symbolic link on disk.
+     * Symbolic links are not followed, the link itself is stored.
+     *
+     * @param path
+     * @param name the name inside the archive, without a trailing slash
+     * @return
+     * @throws IOException
+     */
+    public static ArchiveEntry of(Path path, String name) throws IOException {
+        var attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        if (attributes.isSymbolicLink()) {
+            var target = Files.readSymbolicLink(path).toString().getBytes(StandardCharsets.UTF_8);
+            return new ArchiveEntry(Type.SYMLINK, name, S_IFLNK | 0777, lastModified, null, target, target.length);
+        } else if (attributes.isDirectory()) {
+            return new ArchiveEntry(Type.DIRECTORY, name + "/", S_IFDIR | getPermissions(path, 0755), lastModified, null, null, 0);
+        } else {
+            return new ArchiveEntry(Type.FILE, name, S_IFREG | getPermissions(path, 0644), lastModified, path, null, attributes.size());
+        }
+    }
+
+    /**
+     * Creates an entry backed by an entry of a source archive, the content is
+     * inflated when read.
+     *
+     * @param archive
+     * @param entry
+     * @param name the name inside the archive, with a trailing slash for
+     * directories
+     * @return
+     * @throws IOException
+     */
+    public static ArchiveEntry of(SourceArchive archive, SourceArchive.Entry entry, String name) throws IOException {
+        if (entry.isDirectory()) {
+            return new ArchiveEntry(Type.DIRECTORY, name, entry.getMode(), entry.getLastModified(), null, null, 0);
+        } else if (entry.isSymlink()) {
+            byte[] target;
+            try (var inputStream = archive.openStream(entry)) {
+                target = inputStream.readAllBytes();
+            }
+            return new ArchiveEntry(Type.SYMLINK, name, entry.getMode(), entry.getLastModified(), null, target, target.length);
+        } else {
+            return new ArchiveEntry(Type.FILE, name, entry.getMode(), entry.getLastModified(), null, null, entry.getSize(), archive, entry);
+        }
+    }
+
+    /**
+     * Creates a regular file entry with in-memory content.
+     *
+     * @param name
+     * @param bytes
+     * @param permissions
+     * @param lastModified
+     * @return
+     */
+    public static ArchiveEntry ofBytes(String name, byte[] bytes, int permissions, long lastModified) {
+        return new ArchiveEntry(Type.FILE, name, S_IFREG | (permissions & 07777), lastModified, null, bytes, bytes.length);
+    }
+
+    private static int getPermissions(Path path, int fallback) {
+        try {
+            var attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return toMode(attributes.permissions());
+        } catch (UnsupportedOperationException | IOException ex) {
+            return Files.isExecutable(path) ? fallback | 0111 : fallback;
+        }
+    }
+
+    private static int toMode(Set<PosixFilePermission> permissions) {
+        int mode = 0;
+        for (var permission : permissions) {
+            mode |= switch (permission) {
+                case OWNER_READ ->
+                    0400;
+                case OWNER_WRITE ->
+                    0200;
+                case OWNER_EXECUTE ->
+                    0100;
+                case GROUP_READ ->
+                    0040;
+                case GROUP_WRITE ->
+                    0020;
+                case GROUP_EXECUTE ->
+                    0010;
+                case OTHERS_READ ->
+                    0004;
+                case OTHERS_WRITE ->
+                    0002;
+                case OTHERS_EXECUTE ->
+                    0001;
+            };
+        }
+
+        return mode;
+    }
+
+    ArchiveEntry(Type type, String name, int mode, long lastModified, Path path, byte[] bytes, long size) {
+        this(type, name, mode, lastModified, path, bytes, size, null, null);
+    }
+
+    ArchiveEntry(Type type, String name, int mode, long lastModified, Path path, byte[] bytes, long size, SourceArchive sourceArchive, SourceArchive.Entry sourceEntry) {
+        mType = type;
+        mName = name;
+        mMode = mode;
+        mLastModified = lastModified;
+        mPath = path;
+        mBytes = bytes;
+        mSize = size;
+        mSourceArchive = sourceArchive;
+        mSourceEntry = sourceEntry;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return the unix mode, file type bits included
+     */
+    public int getMode() {
+        return mMode;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public Path getPath() {
+        return mPath;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public SourceArchive getSourceArchive() {
+        return mSourceArchive;
+    }
+
+    public SourceArchive.Entry getSourceEntry() {
+        return mSourceEntry;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public boolean isDirectory() {
+        return mType == Type.DIRECTORY;
+    }
+
+    /**
+     * @return true if the content can be read at any position, false if it
+     * has to be read from the start with {@link #openStream()}
+     */
+    public boolean isRandomAccess() {
+        return mSourceEntry == null;
+    }
+
+    public boolean isSymlink() {
+        return mType == Type.SYMLINK;
+    }
+
+    /**
+     * @return a stream of the content
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        if (mSourceEntry != null) {
+            return mSourceArchive.openStream(mSourceEntry);
+        } else if (mPath != null) {
+            return Files.newInputStream(mPath);
+        } else {
+            return new ByteArrayInputStream(mBytes == null ? new byte[0] : mBytes);
+        }
+    }
+
+    /**
+     * Reads length bytes of content starting at position.
+     *
+     * @param position
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    public byte[] read(long position, int length) throws IOException {
+        var bytes = new byte[length];
+
+        if (mSourceEntry != null) {
+            try (var inputStream = openStream()) {
+                inputStream.skipNBytes(position);
+                inputStream.readNBytes(bytes, 0, length);
+            }
+        } else if (mBytes != null) {
+            System.arraycopy(mBytes, (int) position, bytes, 0, length);
+        } else if (mPath != null) {
+            try (var channel = FileChannel.open(mPath, StandardOpenOption.READ)) {
+                var buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("unexpected end of file: " + mPath);
+                    }
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    /**
+     * @param name
+     * @return a copy of this entry stored under another name
+     */
+    public ArchiveEntry withName(String name) {
+        return new ArchiveEntry(mType, name, mMode, mLastModified, mPath, mBytes, mSize, mSourceArchive, mSourceEntry);
+    }
+
+    public enum Type {
+        DIRECTORY, FILE, SYMLINK;
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The BLAKE3 hash function with the default 32 byte output.
+ * <p>
+ * As a {@link MessageDigest} it hashes incrementally. Input that is
+ * available as a whole, like a memory-mapped file, is hashed by
+ * {@link #hash(List, ForkJoinPool, CancellationToken)}, which computes the subtrees of the
+ * BLAKE3 tree in parallel.
+ *
+ * @author Patrik Karlström
+ */
+public class Blake3 extends MessageDigest {
+
+    public static final String ALGORITHM = "BLAKE3";
+    public static final int BLOCK_LEN = 64;
+    public static final int CHUNK_LEN = 1024;
+    public static final int OUT_LEN = 32;
+    private static final int CHUNK_END = 1 << 1;
+    private static final int CHUNK_START = 1 << 0;
+    private static final int[] IV = {
+        0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    };
+    private static final int[] MSG_PERMUTATION = {2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8};
+    private static final int PARALLEL_MIN_CHUNKS = 256;
+    private static final int PARENT = 1 << 2;
+    private static final int ROOT = 1 << 3;
+    /**
+     * The message word used at each of the 16 positions of the 7 rounds, the
+     * permutation applied once per round.
+     */
+    private static final int[] SCHEDULE = new int[7 * 16];
+    private ChunkState mChunkState = new ChunkState(IV, 0);
+    private final ArrayList<int[]> mCvStack = new ArrayList<>();
+
+    static {
+        for (int i = 0; i < 16; i++) {
+            SCHEDULE[i] = i;
+        }
+        for (int round = 1; round < 7; round++) {
+            for (int i = 0; i < 16; i++) {
+                SCHEDULE[round * 16 + i] = SCHEDULE[(round - 1) * 16 + MSG_PERMUTATION[i]];
+            }
+        }
+    }
+
+    /**
+     * Hashes the concatenation of buffers, computing independent subtrees in
+     * parallel.
+     *
+     * @param buffers the input, all but the last must have a length that is
+     * a multiple of {@link #CHUNK_LEN}
+     * @param pool
+     * @param cancellationToken checked between subtrees
+     * @return the 32 byte hash
+     * @throws CancellationException if the token is cancelled
+     */
+    public static byte[] hash(List<ByteBuffer> buffers, ForkJoinPool pool, CancellationToken cancellationToken) {
+        var input = new Input(buffers);
+        if (input.mLength <= CHUNK_LEN) {
+            return toBytes(input.chunkOutput(0).rootChainingValue());
+        }
+
+        long leftLength = getLeftLength(input.mLength);
+        var left = new SubtreeTask(input, 0, leftLength, cancellationToken);
+        var right = new SubtreeTask(input, leftLength, input.mLength - leftLength, cancellationToken);
+        pool.invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                invokeAll(left, right);
+                return null;
+            }
+        });
+
+        return toBytes(parentOutput(left.join(), right.join()).rootChainingValue());
+    }
+
+    public Blake3() {
+        super(ALGORITHM);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        var output = mChunkState.output();
+        for (int i = mCvStack.size() - 1; i >= 0; i--) {
+            output = parentOutput(mCvStack.get(i), output.chainingValue());
+        }
+        var hash = toBytes(output.rootChainingValue());
+        engineReset();
+
+        return hash;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return OUT_LEN;
+    }
+
+    @Override
+    protected void engineReset() {
+        mChunkState = new ChunkState(IV, 0);
+        mCvStack.clear();
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[]{input}, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            if (mChunkState.length() == CHUNK_LEN) {
+                var chunkCv = mChunkState.output().chainingValue();
+                long totalChunks = mChunkState.mChunkCounter + 1;
+                addChunkChainingValue(chunkCv, totalChunks);
+                mChunkState = new ChunkState(IV, totalChunks);
+            }
+
+            int want = CHUNK_LEN - mChunkState.length();
+            int take = Math.min(want, end - offset);
+            mChunkState.update(input, offset, take);
+            offset += take;
+        }
+    }
+
+    /**
+     * Compresses a block and writes the chaining value, the first 8 words of
+     * the output, to out, which may be cv. The state is kept in locals and the
+     * message words are read through the fixed schedule, so nothing is
+     * allocated per block.
+     */
+    private static void compress(int[] cv, int[] m, long counter, int blockLength, int flags, int[] out) {
+        int s0 = cv[0], s1 = cv[1], s2 = cv[2], s3 = cv[3], s4 = cv[4], s5 = cv[5], s6 = cv[6], s7 = cv[7];
+        int s8 = IV[0], s9 = IV[1], s10 = IV[2], s11 = IV[3];
+        int s12 = (int) counter, s13 = (int) (counter >>> 32), s14 = blockLength, s15 = flags;
+
+        for (int i = 0; i < SCHEDULE.length; i += 16) {
+            s0 += s4 + m[SCHEDULE[i]];
+            s12 = Integer.rotateRight(s12 ^ s0, 16);
+            s8 += s12;
+            s4 = Integer.rotateRight(s4 ^ s8, 12);
+            s0 += s4 + m[SCHEDULE[i + 1]];
+            s12 = Integer.rotateRight(s12 ^ s0, 8);
+            s8 += s12;
+            s4 = Integer.rotateRight(s4 ^ s8, 7);
+            s1 += s5 + m[SCHEDULE[i + 2]];
+            s13 = Integer.rotateRight(s13 ^ s1, 16);
+            s9 += s13;
+            s5 = Integer.rotateRight(s5 ^ s9, 12);
+            s1 += s5 + m[SCHEDULE[i + 3]];
+            s13 = Integer.rotateRight(s13 ^ s1, 8);
+            s9 += s13;
+            s5 = Integer.rotateRight(s5 ^ s9, 7);
+            s2 += s6 + m[SCHEDULE[i + 4]];
+            s14 = Integer.rotateRight(s14 ^ s2, 16);
+            s10 += s14;
+            s6 = Integer.rotateRight(s6 ^ s10, 12);
+            s2 += s6 + m[SCHEDULE[i + 5]];
+            s14 = Integer.rotateRight(s14 ^ s2, 8);
+            s10 += s14;
+            s6 = Integer.rotateRight(s6 ^ s10, 7);
+            s3 += s7 + m[SCHEDULE[i + 6]];
+            s15 = Integer.rotateRight(s15 ^ s3, 16);
+            s11 += s15;
+            s7 = Integer.rotateRight(s7 ^ s11, 12);
+            s3 += s7 + m[SCHEDULE[i + 7]];
+            s15 = Integer.rotateRight(s15 ^ s3, 8);
+            s11 += s15;
+            s7 = Integer.rotateRight(s7 ^ s11, 7);
+            s0 += s5 + m[SCHEDULE[i + 8]];
+            s15 = Integer.rotateRight(s15 ^ s0, 16);
+            s10 += s15;
+            s5 = Integer.rotateRight(s5 ^ s10, 12);
+            s0 += s5 + m[SCHEDULE[i + 9]];
+            s15 = Integer.rotateRight(s15 ^ s0, 8);
+            s10 += s15;
+            s5 = Integer.rotateRight(s5 ^ s10, 7);
+            s1 += s6 + m[SCHEDULE[i + 10]];
+            s12 = Integer.rotateRight(s12 ^ s1, 16);
+            s11 += s12;
+            s6 = Integer.rotateRight(s6 ^ s11, 12);
+            s1 += s6 + m[SCHEDULE[i + 11]];
+            s12 = Integer.rotateRight(s12 ^ s1, 8);
+            s11 += s12;
+            s6 = Integer.rotateRight(s6 ^ s11, 7);
+            s2 += s7 + m[SCHEDULE[i + 12]];
+            s13 = Integer.rotateRight(s13 ^ s2, 16);
+            s8 += s13;
+            s7 = Integer.rotateRight(s7 ^ s8, 12);
+            s2 += s7 + m[SCHEDULE[i + 13]];
+            s13 = Integer.rotateRight(s13 ^ s2, 8);
+            s8 += s13;
+            s7 = Integer.rotateRight(s7 ^ s8, 7);
+            s3 += s4 + m[SCHEDULE[i + 14]];
+            s14 = Integer.rotateRight(s14 ^ s3, 16);
+            s9 += s14;
+            s4 = Integer.rotateRight(s4 ^ s9, 12);
+            s3 += s4 + m[SCHEDULE[i + 15]];
+            s14 = Integer.rotateRight(s14 ^ s3, 8);
+            s9 += s14;
+            s4 = Integer.rotateRight(s4 ^ s9, 7);
+        }
+
+        out[0] = s0 ^ s8;
+        out[1] = s1 ^ s9;
+        out[2] = s2 ^ s10;
+        out[3] = s3 ^ s11;
+        out[4] = s4 ^ s12;
+        out[5] = s5 ^ s13;
+        out[6] = s6 ^ s14;
+        out[7] = s7 ^ s15;
+    }
+
+    /**
+     * @return the length of the left subtree, the largest power of two
+     * number of chunks that leaves at least one byte for the right one
+     */
+    private static long getLeftLength(long length) {
+        long fullChunks = (length - 1) / CHUNK_LEN;
+
+        return Long.highestOneBit(fullChunks) * CHUNK_LEN;
+    }
+
+    private static Output parentOutput(int[] leftCv, int[] rightCv) {
+        var blockWords = new int[16];
+        System.arraycopy(leftCv, 0, blockWords, 0, 8);
+        System.arraycopy(rightCv, 0, blockWords, 8, 8);
+
+        return new Output(IV, blockWords, 0, BLOCK_LEN, PARENT);
+    }
+
+    private static byte[] toBytes(int[] words) {
+        var buffer = ByteBuffer.allocate(OUT_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 8; i++) {
+            buffer.putInt(words[i]);
+        }
+
+        return buffer.array();
+    }
+
+    private void addChunkChainingValue(int[] cv, long totalChunks) {
+        // A completed subtree is merged with its left sibling on the stack,
+        // once for each trailing zero bit of the chunk count
+        while ((totalChunks & 1) == 0) {
+            cv = parentOutput(mCvStack.remove(mCvStack.size() - 1), cv).chainingValue();
+            totalChunks >>= 1;
+        }
+        mCvStack.add(cv);
+    }
+
+    private static class ChunkState {
+
+        private final byte[] mBlock = new byte[BLOCK_LEN];
+        private int mBlockLength;
+        private int mBlocksCompressed;
+        private final long mChunkCounter;
+        private final int[] mCv;
+        private final int[] mWords = new int[16];
+
+        public ChunkState(int[] key, long chunkCounter) {
+            mCv = key.clone();
+            mChunkCounter = chunkCounter;
+        }
+
+        public int length() {
+            return BLOCK_LEN * mBlocksCompressed + mBlockLength;
+        }
+
+        public Output output() {
+            // The last block is padded with zeros
+            Arrays.fill(mBlock, mBlockLength, BLOCK_LEN, (byte) 0);
+
+            return new Output(mCv.clone(), toWords(mBlock, 0, new int[16]), mChunkCounter, mBlockLength, getStartFlag() | CHUNK_END);
+        }
+
+        /**
+         * The last block of a chunk is only compressed by {@link #output()},
+         * with the end flag, so a full block is kept until more input
+         * follows. Full blocks that are not the last of input are compressed
+         * where they are, without a copy.
+         */
+        public void update(byte[] input, int offset, int length) {
+            int end = offset + length;
+            while (offset < end) {
+                if (mBlockLength == BLOCK_LEN) {
+                    compress(mCv, toWords(mBlock, 0, mWords), mChunkCounter, BLOCK_LEN, getStartFlag(), mCv);
+                    mBlocksCompressed++;
+                    mBlockLength = 0;
+                }
+                while (mBlockLength == 0 && end - offset > BLOCK_LEN) {
+                    compress(mCv, toWords(input, offset, mWords), mChunkCounter, BLOCK_LEN, getStartFlag(), mCv);
+                    mBlocksCompressed++;
+                    offset += BLOCK_LEN;
+                }
+
+                int take = Math.min(BLOCK_LEN - mBlockLength, end - offset);
+                System.arraycopy(input, offset, mBlock, mBlockLength, take);
+                mBlockLength += take;
+                offset += take;
+            }
+        }
+
+        private int getStartFlag() {
+            return mBlocksCompressed == 0 ? CHUNK_START : 0;
+        }
+
+        private static int[] toWords(byte[] bytes, int offset, int[] words) {
+            for (int i = 0, j = offset; i < 16; i++, j += 4) {
+                words[i] = (bytes[j] & 0xFF)
+                        | (bytes[j + 1] & 0xFF) << 8
+                        | (bytes[j + 2] & 0xFF) << 16
+                        | (bytes[j + 3] & 0xFF) << 24;
+            }
+
+            return words;
+        }
+    }
+
+    /**
+     * The concatenated buffers, addressed by chunk.
+     */
+    private static class Input {
+
+        private final List<ByteBuffer> mBuffers;
+        private final long mLength;
+        private final long[] mOffsets;
+
+        public Input(List<ByteBuffer> buffers) {
+            mBuffers = buffers;
+            mOffsets = new long[buffers.size()];
+            long length = 0;
+            for (int i = 0; i < buffers.size(); i++) {
+                mOffsets[i] = length;
+                length += buffers.get(i).remaining();
+            }
+            mLength = length;
+        }
+
+        public Output chunkOutput(long offset) {
+            var chunkState = new ChunkState(IV, offset / CHUNK_LEN);
+            int length = (int) Math.min(CHUNK_LEN, mLength - offset);
+            if (length > 0) {
+                int index = Arrays.binarySearch(mOffsets, offset);
+                if (index < 0) {
+                    index = -index - 2;
+                }
+                while (index < mBuffers.size() - 1 && mOffsets[index + 1] == offset) {
+                    index++;
+                }
+
+                var buffer = mBuffers.get(index);
+                var bytes = new byte[length];
+                buffer.get(buffer.position() + (int) (offset - mOffsets[index]), bytes);
+                chunkState.update(bytes, 0, length);
+            }
+
+            return chunkState.output();
+        }
+    }
+
+    private static class Output {
+
+        private final int[] mBlockWords;
+        private final int mBlockLength;
+        private final long mCounter;
+        private final int mFlags;
+        private final int[] mInputCv;
+
+        public Output(int[] inputCv, int[] blockWords, long counter, int blockLength, int flags) {
+            mInputCv = inputCv;
+            mBlockWords = blockWords;
+            mCounter = counter;
+            mBlockLength = blockLength;
+            mFlags = flags;
+        }
+
+        public int[] chainingValue() {
+            var cv = new int[8];
+            compress(mInputCv, mBlockWords, mCounter, mBlockLength, mFlags, cv);
+
+            return cv;
+        }
+
+        public int[] rootChainingValue() {
+            var cv = new int[8];
+            compress(mInputCv, mBlockWords, 0, mBlockLength, mFlags | ROOT, cv);
+
+            return cv;
+        }
+    }
+
+    private static class SubtreeTask extends RecursiveTask<int[]> {
+
+        private static final long serialVersionUID = 1L;
+        private final CancellationToken mCancellationToken;
+        private final Input mInput;
+        private final long mLength;
+        private final long mOffset;
+
+        public SubtreeTask(Input input, long offset, long length, CancellationToken cancellationToken) {
+            mInput = input;
+            mOffset = offset;
+            mLength = length;
+            mCancellationToken = cancellationToken;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (mLength <= CHUNK_LEN) {
+                return mInput.chunkOutput(mOffset).chainingValue();
+            }
+
+            long leftLength = getLeftLength(mLength);
+            var left = new SubtreeTask(mInput, mOffset, leftLength, mCancellationToken);
+            var right = new SubtreeTask(mInput, mOffset + leftLength, mLength - leftLength, mCancellationToken);
+            if (mLength >= (long) PARALLEL_MIN_CHUNKS * CHUNK_LEN) {
+                if (mCancellationToken.isCancelled()) {
+                    throw new CancellationException();
+                }
+                invokeAll(left, right);
+                return parentOutput(left.join(), right.join()).chainingValue();
+            } else {
+                return parentOutput(left.compute(), right.compute()).chainingValue();
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Record of a build, written next to the artifacts, with the fingerprint of
+ * the inputs of every target so that the next build can skip the targets
+ * that did not change.
+ *
+ * @author Patrik Karlström
+ */
+public class BuildManifest {
+
+    public static final String FILE_NAME = "build-manifest.json";
+    public static final int VERSION = 1;
+    private static final Gson GSON = new GsonBuilder()
+            .setVersion(1.0)
+            .serializeNulls()
+            .setPrettyPrinting()
+            .create();
+
+    @SerializedName("files")
+    private TreeMap<String, FileRecord> mFiles = new TreeMap<>();
+    @SerializedName("targets")
+    private TreeMap<String, TargetRecord> mTargets = new TreeMap<>();
+    @SerializedName("version")
+    private int mVersion = VERSION;
+
+    /**
+     * @param dir
+     * @return the manifest in dir, or null if there is none or if it can't be
+     * read
+     */
+    public static BuildManifest load(File dir) {
+        var file = new File(dir, FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (var reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            var manifest = GSON.fromJson(reader, BuildManifest.class);
+            if (manifest == null || manifest.mVersion != VERSION || manifest.mTargets == null || manifest.mFiles == null) {
+                return null;
+            }
+
+            return manifest;
+        } catch (IOException | JsonParseException ex) {
+            return null;
+        }
+    }
+
+    public BuildManifest() {
+    }
+
+    public synchronized Map<String, FileRecord> getFiles() {
+        return new TreeMap<>(mFiles);
+    }
+
+    public synchronized TargetRecord getTarget(String target) {
+        return mTargets.get(target);
+    }
+
+    public synchronized List<String> getTargets() {
+        return new ArrayList<>(mTargets.keySet());
+    }
+
+    public synchronized void putFiles(Map<String, FileRecord> files) {
+        mFiles.putAll(files);
+    }
+
+    public synchronized void putTarget(String target, TargetRecord targetRecord) {
+        mTargets.put(target, targetRecord);
+    }
+
+    public synchronized void save(File dir) throws IOException {
+        var file = new File(dir, FILE_NAME);
+        var tempFile = new File(dir, FILE_NAME + ".tmp");
+        Files.writeString(tempFile.toPath(), GSON.toJson(this), StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Size, time and hash of an input file, the hash is reused as long as
+     * size and time are unchanged.
+     */
+    public static class FileRecord {
+
+        @SerializedName("lastModified")
+        private long mLastModified;
+        @SerializedName("sha256")
+        private String mSha256;
+        @SerializedName("size")
+        private long mSize;
+
+        public FileRecord() {
+        }
+
+        public FileRecord(long size, long lastModified, String sha256) {
+            mSize = size;
+            mLastModified = lastModified;
+            mSha256 = sha256;
+        }
+
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        public String getSha256() {
+            return mSha256;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    public static class TargetRecord {
+
+        @SerializedName("artifacts")
+        private ArrayList<String> mArtifacts = new ArrayList<>();
+        @SerializedName("fingerprint")
+        private String mFingerprint;
+        @SerializedName("inputs")
+        private TreeMap<String, String> mInputs = new TreeMap<>();
+
+        public TargetRecord() {
+        }
+
+        public TargetRecord(String fingerprint, Map<String, String> inputs, List<String> artifacts) {
+            mFingerprint = fingerprint;
+            mInputs = new TreeMap<>(inputs);
+            mArtifacts = new ArrayList<>(artifacts);
+        }
+
+        /**
+         * @return the paths of the artifacts, relative to the manifest
+         */
+        public List<String> getArtifacts() {
+            return mArtifacts;
+        }
+
+        public String getFingerprint() {
+            return mFingerprint;
+        }
+
+        /**
+         * @return the fingerprint of every input by name
+         */
+        public Map<String, String> getInputs() {
+            return mInputs;
+        }
+    }
+}
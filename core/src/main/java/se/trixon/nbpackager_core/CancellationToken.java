@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Signals the cancellation of an operation to the loops that copy, extract,
+ * compress and hash.
+ * <p>
+ * The loops check the token between blocks of at most a few MiB, so they
+ * stop soon after {@link #cancel()} and do not depend on the interrupt flag
+ * of their thread, which is lost or ignored by some libraries.
+ *
+ * @author Patrik Karlström
+ */
+public class CancellationToken {
+
+    /**
+     * A token that is never cancelled.
+     */
+    public static final CancellationToken NONE = new CancellationToken();
+    private volatile boolean mCancelled;
+    private final List<Runnable> mListeners = new CopyOnWriteArrayList<>();
+
+    public CancellationToken() {
+    }
+
+    /**
+     * Cancels the token and runs the listeners, only the first call has an
+     * effect.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mCancelled || this == NONE) {
+                return;
+            }
+            mCancelled = true;
+        }
+
+        for (var listener : mListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @throws InterruptedIOException if the token is cancelled
+     */
+    public void check() throws InterruptedIOException {
+        if (mCancelled) {
+            throw new InterruptedIOException("cancelled");
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Adds a listener that is run by the thread that cancels, at once if the
+     * token already is cancelled.
+     *
+     * @param listener
+     */
+    public void onCancel(Runnable listener) {
+        if (this == NONE) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!mCancelled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+
+        listener.run();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the checksums of files that are already written.
+ * <p>
+ * Each file is memory-mapped once and every algorithm runs on its own thread
+ * over its own view of the shared read-only mapping, so the file is only
+ * read from disk once while the digests run in parallel. Several files are
+ * hashed at the same time, on the threads of a {@link TaskScope} unless an
+ * executor is set. {@link Blake3} also hashes the subtrees of a single file
+ * in parallel, on a fork/join pool since that work only uses the CPU.
+ *
+ * @author Patrik Karlström
+ */
+public class ChecksumEngine {
+
+    private static final long REGION_SIZE = 1L << 30;
+    private static final int SLICE_SIZE = 8 << 20;
+    private CancellationToken mCancellationToken = CancellationToken.NONE;
+    private ExecutorService mExecutorService;
+    private final int mParallelism;
+    private ProgressTracker mProgressTracker = ProgressTracker.NONE;
+
+    public ChecksumEngine(int parallelism) {
+        mParallelism = parallelism;
+    }
+
+    /**
+     * @param file
+     * @param algorithms the names of the digest algorithms, like "SHA-256"
+     * @return the hex digests by algorithm, in the order of the algorithms
+     * @throws IOException
+     */
+    public Map<String, String> digest(File file, Collection<String> algorithms) throws IOException {
+        return digest(List.of(file), algorithms).get(file);
+    }
+
+    /**
+     * @param files
+     * @param algorithms the names of the digest algorithms, like "SHA-256"
+     * @return the hex digests by algorithm, in the order of the algorithms,
+     * by file
+     * @throws IOException
+     */
+    public Map<File, Map<String, String>> digest(Collection<File> files, Collection<String> algorithms) throws IOException {
+        var results = new LinkedHashMap<File, Map<String, String>>();
+        if (files.isEmpty() || algorithms.isEmpty()) {
+            for (var file : files) {
+                results.put(file, new LinkedHashMap<>());
+            }
+            return results;
+        }
+
+        int threads = Math.max(1, Math.min(mParallelism, files.size() * algorithms.size()));
+        var executorService = mExecutorService != null ? mExecutorService : new TaskScope("ChecksumEngine", threads);
+        var futures = new LinkedHashMap<File, Map<String, Future<String>>>();
+        var forkJoinPool = algorithms.contains(Blake3.ALGORITHM) ? new ForkJoinPool(mParallelism) : null;
+
+        try {
+            for (var file : files) {
+                var regions = map(file);
+                long size = regions.stream().mapToLong(ByteBuffer::limit).sum();
+                mProgressTracker.addTotal(size * algorithms.size(), 1);
+                var fileFutures = new LinkedHashMap<String, Future<String>>();
+                for (var algorithm : algorithms) {
+                    var messageDigest = getMessageDigest(algorithm);
+                    fileFutures.put(algorithm, executorService.submit(() -> {
+                        var event = new RunRecording.ChecksumEvent();
+                        event.begin();
+                        if (messageDigest instanceof Blake3) {
+                            var hash = Blake3.hash(regions, forkJoinPool, mCancellationToken);
+                            mProgressTracker.add(size, 0);
+                            commit(event, file, algorithm, size);
+
+                            return HexFormat.of().formatHex(hash);
+                        }
+
+                        for (var region : regions) {
+                            for (int position = 0; position < region.limit(); position += SLICE_SIZE) {
+                                mCancellationToken.check();
+                                int limit = Math.min(region.limit(), position + SLICE_SIZE);
+                                messageDigest.update(region.duplicate().position(position).limit(limit));
+                                mProgressTracker.add(limit - position, 0);
+                            }
+                        }
+
+                        var hash = messageDigest.digest();
+                        commit(event, file, algorithm, size);
+
+                        return HexFormat.of().formatHex(hash);
+                    }));
+                }
+                futures.put(file, fileFutures);
+            }
+
+            for (var fileEntry : futures.entrySet()) {
+                var digests = new LinkedHashMap<String, String>();
+                for (var entry : fileEntry.getValue().entrySet()) {
+                    digests.put(entry.getKey(), entry.getValue().get());
+                }
+                results.put(fileEntry.getKey(), digests);
+                mProgressTracker.add(0, 1);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException ioException) {
+                throw ioException;
+            } else if (ex.getCause() instanceof CancellationException) {
+                throw new InterruptedIOException("cancelled");
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            for (var fileFutures : futures.values()) {
+                for (var future : fileFutures.values()) {
+                    future.cancel(true);
+                }
+            }
+            if (executorService != mExecutorService) {
+                ((TaskScope) executorService).close();
+            }
+            if (forkJoinPool != null) {
+                forkJoinPool.shutdownNow();
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Sets a token that stops the hashing between blocks of a few MiB, with
+     * an {@link InterruptedIOException}.
+     *
+     * @param cancellationToken
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        mCancellationToken = cancellationToken;
+    }
+
+    /**
+     * @param executorService runs the digests, instead of a
+     * {@link TaskScope} of its own limited to the parallelism
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        mExecutorService = executorService;
+    }
+
+    /**
+     * @param progressTracker counts the bytes hashed, once per algorithm,
+     * and the files
+     */
+    public void setProgressTracker(ProgressTracker progressTracker) {
+        mProgressTracker = progressTracker;
+    }
+
+    /**
+     * @param algorithm a {@link MessageDigest} algorithm or
+     * {@link Blake3#ALGORITHM}
+     * @return
+     */
+    static MessageDigest getMessageDigest(String algorithm) {
+        if (algorithm.equals(Blake3.ALGORITHM)) {
+            return new Blake3();
+        }
+
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    private void commit(RunRecording.ChecksumEvent event, File file, String algorithm, long size) {
+        event.mPath = file.getAbsolutePath();
+        event.mAlgorithm = algorithm;
+        event.mSize = size;
+        event.commit();
+    }
+
+    /**
+     * @return read-only mappings of the whole file, the mappings stay valid
+     * after the channel is closed
+     */
+    private List<ByteBuffer> map(File file) throws IOException {
+        // The region size is a multiple of the BLAKE3 chunk length
+        var regions = new ArrayList<ByteBuffer>();
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += REGION_SIZE) {
+                regions.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position)));
+            }
+        }
+
+        return regions;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Compressed chunks, keyed by a hash of their input and the
+ * compression settings, so that content shared by several target archives
+ * is only deflated once.
+ * <p>
+ * A chunk requested by several threads at the same time is compressed by
+ * the first one, the others wait for its result.
+ * <p>
+ * With a directory, chunks are also stored on disk and survive the run. The
+ * modification time of a stored chunk is its last use and {@link #trim()}
+ * evicts the least recently used ones when the directory exceeds its size
+ * limit. A stored chunk holds the length and a CRC-32C of its compressed
+ * data, a file that is truncated or damaged is deleted when it is read
+ * instead of ending up in an archive.
+ *
+ * @author Patrik Karlström
+ */
+public class CompressionCache {
+
+    private static final int DISK_MIN_LENGTH = 8 * 1024;
+    /**
+     * Files written without the check of the data have another magic number
+     * and are replaced.
+     */
+    private static final int MAGIC = 0x4e425044;
+    private final ConcurrentHashMap<String, CompletableFuture<ParallelZipWriter.Chunk>> mChunks = new ConcurrentHashMap<>();
+    private final File mDirectory;
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final long mDiskMaxSize;
+    private final AtomicLong mHits = new AtomicLong();
+    private final long mMaxSize;
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mSize = new AtomicLong();
+
+    /**
+     * @param input
+     * @param offset
+     * @param length
+     * @param parameters everything besides the input that affects the
+     * compressed result
+     * @return
+     */
+    public static String key(byte[] input, int offset, int length, String parameters) {
+        try {
+            var messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(input, offset, length);
+
+            return HexFormat.of().formatHex(messageDigest.digest()) + "-" + parameters;
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param maxSize the maximum number of compressed bytes to keep
+     */
+    public CompressionCache(long maxSize) {
+        this(maxSize, null, 0);
+    }
+
+    /**
+     * @param maxSize the maximum number of compressed bytes to keep in memory
+     * @param directory where to store chunks between runs, or null
+     * @param diskMaxSize the size limit of directory
+     */
+    public CompressionCache(long maxSize, File directory, long diskMaxSize) {
+        mMaxSize = maxSize;
+        mDirectory = directory;
+        mDiskMaxSize = diskMaxSize;
+    }
+
+    /**
+     * Returns the chunk for key, compressing it if it is not present.
+     *
+     * @param key
+     * @param length the length of the input, small chunks are not stored on
+     * disk since reading them back costs more than compressing them
+     * @param compressor
+     * @return
+     * @throws IOException
+     */
+    public ParallelZipWriter.Chunk get(String key, int length, Compressor compressor) throws IOException {
+        var future = new CompletableFuture<ParallelZipWriter.Chunk>();
+        var existing = mChunks.putIfAbsent(key, future);
+
+        if (existing != null) {
+            try {
+                var chunk = existing.get();
+                mHits.incrementAndGet();
+                return chunk;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                return compressor.compress();
+            }
+        }
+
+        try {
+            boolean disk = mDirectory != null && length >= DISK_MIN_LENGTH;
+            var chunk = disk ? read(key) : null;
+            if (chunk == null) {
+                mMisses.incrementAndGet();
+                chunk = compressor.compress();
+                if (disk) {
+                    write(key, chunk);
+                }
+            } else {
+                mDiskHits.incrementAndGet();
+            }
+            future.complete(chunk);
+            if (mSize.addAndGet(chunk.getData().length) > mMaxSize) {
+                mSize.addAndGet(-chunk.getData().length);
+                mChunks.remove(key);
+            }
+
+            return chunk;
+        } catch (IOException | RuntimeException ex) {
+            future.completeExceptionally(ex);
+            mChunks.remove(key);
+            throw ex;
+        }
+    }
+
+    /**
+     * @return the number of chunks read from the directory
+     */
+    public long getDiskHits() {
+        return mDiskHits.get();
+    }
+
+    /**
+     * @return the number of chunks found in memory
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return the number of compressed bytes held
+     */
+    public long getSize() {
+        return mSize.get();
+    }
+
+    /**
+     * Deletes the least recently used chunks until the directory is within
+     * its size limit.
+     *
+     * @return the number of bytes deleted
+     * @throws IOException
+     */
+    public long trim() throws IOException {
+        if (mDirectory == null || !mDirectory.isDirectory()) {
+            return 0;
+        }
+
+        var files = new ArrayList<CachedFile>();
+        long size = 0;
+        try (var stream = Files.walk(mDirectory.toPath())) {
+            for (var path : (Iterable<Path>) stream::iterator) {
+                if (Files.isRegularFile(path)) {
+                    var file = new CachedFile(path, Files.size(path), Files.getLastModifiedTime(path).toMillis());
+                    files.add(file);
+                    size += file.mSize;
+                }
+            }
+        }
+
+        long deleted = 0;
+        files.sort(Comparator.comparingLong(file -> file.mLastUsed));
+        for (var file : files) {
+            if (size - deleted <= mDiskMaxSize) {
+                break;
+            }
+            if (Files.deleteIfExists(file.mPath)) {
+                deleted += file.mSize;
+            }
+        }
+
+        return deleted;
+    }
+
+    private static int getCrc(byte[] data) {
+        var crc = new CRC32C();
+        crc.update(data);
+
+        return (int) crc.getValue();
+    }
+
+    private Path getPath(String key) {
+        return mDirectory.toPath().resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private ParallelZipWriter.Chunk read(String key) throws IOException {
+        var path = getPath(key);
+        try (var inputStream = new DataInputStream(Files.newInputStream(path))) {
+            if (inputStream.readInt() != MAGIC) {
+                return null;
+            }
+            long crc = inputStream.readLong();
+            int length = inputStream.readInt();
+            boolean stored = inputStream.readBoolean();
+            int dataLength = inputStream.readInt();
+            int dataCrc = inputStream.readInt();
+            var data = inputStream.readAllBytes();
+            if (data.length != dataLength || getCrc(data) != dataCrc) {
+                Files.deleteIfExists(path);
+                return null;
+            }
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+
+            return new ParallelZipWriter.Chunk(data, crc, length, stored);
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            Files.deleteIfExists(path);
+            return null;
+        }
+    }
+
+    private void write(String key, ParallelZipWriter.Chunk chunk) {
+        var path = getPath(key);
+        try {
+            Files.createDirectories(path.getParent());
+            var tempPath = Files.createTempFile(path.getParent(), key, ".tmp");
+            try {
+                // Not synced, a file cut short by a crash fails the checks of read
+                try (var outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                    outputStream.writeInt(MAGIC);
+                    outputStream.writeLong(chunk.getCrc());
+                    outputStream.writeInt(chunk.getLength());
+                    outputStream.writeBoolean(chunk.isStored());
+                    outputStream.writeInt(chunk.getData().length);
+                    outputStream.writeInt(getCrc(chunk.getData()));
+                    outputStream.write(chunk.getData());
+                }
+                Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        } catch (IOException ex) {
+            // The cache is an optimization, a chunk that can't be stored is compressed again next time
+        }
+    }
+
+    private static class CachedFile {
+
+        private final long mLastUsed;
+        private final Path mPath;
+        private final long mSize;
+
+        public CachedFile(Path path, long size, long lastUsed) {
+            mPath = path;
+            mSize = size;
+            mLastUsed = lastUsed;
+        }
+    }
+
+    public interface Compressor {
+
+        ParallelZipWriter.Chunk compress() throws IOException;
+    }
+}
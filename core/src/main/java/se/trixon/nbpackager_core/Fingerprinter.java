@@ -0,0 +1,171 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import se.trixon.nbpackager_core.BuildManifest.FileRecord;
+
+/**
+ * Content fingerprints of files, file trees and texts.
+ * <p>
+ * File hashes from a previous build are reused when size and modification
+ * time are unchanged, so only new and modified files are read.
+ *
+ * @author Patrik Karlström
+ */
+public class Fingerprinter {
+
+    private static final String NONE = "none";
+    private final Map<String, FileRecord> mFiles = new ConcurrentHashMap<>();
+    private final Map<String, FileRecord> mKnownFiles;
+
+    /**
+     * @param knownFiles the file records of a previous build
+     */
+    public Fingerprinter(Map<String, FileRecord> knownFiles) {
+        mKnownFiles = knownFiles;
+    }
+
+    /**
+     * @param values
+     * @return the hash of the values, in order
+     */
+    public static String combine(Iterable<String> values) {
+        var messageDigest = getMessageDigest();
+        for (var value : values) {
+            messageDigest.update(value.getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+        }
+
+        return HexFormat.of().formatHex(messageDigest.digest());
+    }
+
+    /**
+     * @param file
+     * @return the content hash of file, or "none" if it is null or missing
+     * @throws IOException
+     */
+    public String file(File file) throws IOException {
+        if (file == null || !file.isFile()) {
+            return NONE;
+        }
+
+        return file(file.toPath(), Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+    }
+
+    /**
+     * @return the records of all files fingerprinted so far
+     */
+    public Map<String, FileRecord> getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * @param text
+     * @return the hash of text
+     */
+    public String text(String text) {
+        return combine(List.of(text));
+    }
+
+    /**
+     * Hashes the relative paths, types, executable bits, link targets and
+     * file contents of a tree.
+     *
+     * @param dir
+     * @return the hash of the tree, or "none" if it is null or missing
+     * @throws IOException
+     */
+    public String tree(File dir) throws IOException {
+        if (dir == null || !dir.exists()) {
+            return NONE;
+        }
+
+        var messageDigest = getMessageDigest();
+        var root = dir.toPath();
+        try (var stream = Files.walk(root)) {
+            for (var path : (Iterable<Path>) stream.sorted()::iterator) {
+                var attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                String value;
+                if (attributes.isSymbolicLink()) {
+                    value = "l:" + Files.readSymbolicLink(path);
+                } else if (attributes.isDirectory()) {
+                    value = "d";
+                } else {
+                    value = (isExecutable(path) ? "x:" : "f:") + file(path, attributes);
+                }
+                messageDigest.update(root.relativize(path).toString().getBytes(StandardCharsets.UTF_8));
+                messageDigest.update((byte) 0);
+                messageDigest.update(value.getBytes(StandardCharsets.UTF_8));
+                messageDigest.update((byte) 0);
+            }
+        }
+
+        return HexFormat.of().formatHex(messageDigest.digest());
+    }
+
+    private String file(Path path, BasicFileAttributes attributes) throws IOException {
+        var key = path.toAbsolutePath().toString();
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        var record = mKnownFiles.get(key);
+        if (record == null || record.getSize() != size || record.getLastModified() != lastModified) {
+            var messageDigest = getMessageDigest();
+            try (InputStream inputStream = Files.newInputStream(path)) {
+                var buffer = new byte[64 * 1024];
+                int count;
+                while ((count = inputStream.read(buffer)) >= 0) {
+                    messageDigest.update(buffer, 0, count);
+                }
+            }
+            record = new FileRecord(size, lastModified, HexFormat.of().formatHex(messageDigest.digest()));
+        }
+        mFiles.put(key, record);
+
+        return record.getSha256();
+    }
+
+    private static MessageDigest getMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static boolean isExecutable(Path path) throws IOException {
+        try {
+            return Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS).contains(PosixFilePermission.OWNER_EXECUTE);
+        } catch (UnsupportedOperationException ex) {
+            return Files.isExecutable(path);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import se.trixon.nbpackager_core.LogSink.Line;
+
+/**
+ * An index of the lines of a log, updated as lines are added so that a
+ * search only reads the lines that may match.
+ * <p>
+ * It tags the lines written to stderr, the stage each line belongs to and
+ * maps every token, a run of letters and digits in lower case, to the lines
+ * it occurs in. A query matches the lines that for each of its tokens hold a
+ * token that contains it, found by scanning the tokens instead of the lines.
+ * <p>
+ * The tokens of the last block of {@link LogStore#BLOCK_LINES} lines are
+ * kept in a map. When a block is full they are packed into a block index of
+ * its own: the distinct tokens of the block in one string and the lines of
+ * each token as offsets in the block. A fragment is then found in a block by
+ * a substring search of that string, without the text of the log, and the
+ * memory grows with the lines instead of with the distinct tokens of the
+ * whole run.
+ * <p>
+ * The lines that matched the fragments of the previous query are kept, so a
+ * query that extends one of them, like one more typed character, only scans
+ * the blocks that had a match.
+ *
+ * @author Patrik Karlström
+ */
+public class LogIndex {
+
+    private static final int BLOCK_LINES = LogStore.BLOCK_LINES;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private final List<BlockIndex> mBlocks = new ArrayList<>();
+    private final BitSet mErrLines = new BitSet();
+    private Map<String, Hits> mFragmentHits = new HashMap<>();
+    private Map<String, List<String>> mFragmentTokens = new HashMap<>();
+    private int mSize;
+    private final List<StageMark> mStageMarks = new ArrayList<>();
+    private final Map<String, IntList> mTokens = new HashMap<>();
+
+    /**
+     * Tells if text would match query in {@link #search(String)}, for lines
+     * that are not in an index.
+     *
+     * @param query
+     * @param text
+     * @return
+     */
+    public static boolean matches(String query, String text) {
+        var tokens = tokenize(text);
+
+        return tokenize(query).stream().allMatch(fragment -> tokens.stream().anyMatch(token -> token.contains(fragment)));
+    }
+
+    /**
+     * Splits text into the tokens of the index.
+     *
+     * @param text
+     * @return the tokens in lower case
+     */
+    public static List<String> tokenize(String text) {
+        var tokens = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                if (i - start <= MAX_TOKEN_LENGTH) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Indexes lines, numbered after the ones added before.
+     *
+     * @param lines
+     */
+    public synchronized void addAll(List<Line> lines) {
+        for (var line : lines) {
+            if (mSize > 0 && mSize % BLOCK_LINES == 0) {
+                seal();
+            }
+
+            int index = mSize++;
+            if (line.isErr()) {
+                mErrLines.set(index);
+            } else if (line.getText().startsWith(StageScheduler.STAGE_HEADER)) {
+                mStageMarks.add(new StageMark(index, line.getText().substring(StageScheduler.STAGE_HEADER.length()).trim()));
+            }
+
+            for (var token : tokenize(line.getText())) {
+                var lineList = mTokens.get(token);
+                if (lineList == null) {
+                    lineList = new IntList();
+                    mTokens.put(token, lineList);
+                    // A new token may match the fragments of the last query
+                    for (var entry : mFragmentTokens.entrySet()) {
+                        if (token.contains(entry.getKey())) {
+                            entry.getValue().add(token);
+                        }
+                    }
+                }
+                lineList.addUnique(index);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mBlocks.clear();
+        mErrLines.clear();
+        mFragmentHits = new HashMap<>();
+        mFragmentTokens = new HashMap<>();
+        mSize = 0;
+        mStageMarks.clear();
+        mTokens.clear();
+    }
+
+    /**
+     * @return the lines written to stderr
+     */
+    public synchronized BitSet getErrLines() {
+        return (BitSet) mErrLines.clone();
+    }
+
+    /**
+     * @return the name of the last stage started before line, or null if
+     * there is none; the lines of stages that run in parallel carry the name
+     * of their own stage in brackets
+     */
+    public synchronized String getStage(int line) {
+        String stage = null;
+        for (var stageMark : mStageMarks) {
+            if (stageMark.getLine() > line) {
+                break;
+            }
+            stage = stageMark.getName();
+        }
+
+        return stage;
+    }
+
+    /**
+     * @return the first line of every stage, in the order they started
+     */
+    public synchronized List<StageMark> getStageMarks() {
+        return List.copyOf(mStageMarks);
+    }
+
+    /**
+     * Finds the lines that contain every token of query, in any order and
+     * ignoring case.
+     *
+     * @param query
+     * @return the matching lines, or all lines if query has no tokens
+     */
+    public synchronized BitSet search(String query) {
+        var result = new BitSet();
+        result.set(0, mSize);
+        var fragmentHits = new HashMap<String, Hits>();
+        var fragmentTokens = new HashMap<String, List<String>>();
+        for (var fragment : tokenize(query)) {
+            var hits = getHits(fragment);
+            fragmentHits.put(fragment, hits);
+            var lines = (BitSet) hits.mLines.clone();
+
+            var tokens = getTokensContaining(fragment);
+            fragmentTokens.put(fragment, tokens);
+            for (var token : tokens) {
+                mTokens.get(token).setAll(lines);
+            }
+            result.and(lines);
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        mFragmentHits = fragmentHits;
+        mFragmentTokens = fragmentTokens;
+
+        return result;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the lines of the full blocks that hold a token that contains
+     * fragment, starting from the blocks that matched a fragment it contains
+     */
+    private Hits getHits(String fragment) {
+        var hits = mFragmentHits.get(fragment);
+        if (hits == null) {
+            hits = new Hits();
+            Hits narrower = null;
+            for (var entry : mFragmentHits.entrySet()) {
+                if (fragment.contains(entry.getKey()) && (narrower == null || entry.getValue().mLines.cardinality() < narrower.mLines.cardinality())) {
+                    narrower = entry.getValue();
+                }
+            }
+            if (narrower != null) {
+                for (int line = narrower.mLines.nextSetBit(0); line >= 0; line = narrower.mLines.nextSetBit((line / BLOCK_LINES + 1) * BLOCK_LINES)) {
+                    int block = line / BLOCK_LINES;
+                    mBlocks.get(block).addLines(fragment, block * BLOCK_LINES, hits.mLines);
+                }
+                hits.mBlocks = narrower.mBlocks;
+            }
+        }
+
+        for (int block = hits.mBlocks; block < mBlocks.size(); block++) {
+            mBlocks.get(block).addLines(fragment, block * BLOCK_LINES, hits.mLines);
+        }
+        hits.mBlocks = mBlocks.size();
+
+        return hits;
+    }
+
+    private List<String> getTokensContaining(String fragment) {
+        var tokens = mFragmentTokens.get(fragment);
+        if (tokens != null) {
+            return tokens;
+        }
+
+        Collection<String> candidates = mTokens.keySet();
+        for (var entry : mFragmentTokens.entrySet()) {
+            if (fragment.contains(entry.getKey()) && entry.getValue().size() < candidates.size()) {
+                candidates = entry.getValue();
+            }
+        }
+
+        tokens = new ArrayList<>();
+        for (var token : candidates) {
+            if (token.contains(fragment)) {
+                tokens.add(token);
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Packs the tokens of the full block into its block index.
+     */
+    private void seal() {
+        mBlocks.add(new BlockIndex(mBlocks.size() * BLOCK_LINES, mTokens));
+        mTokens.clear();
+        mFragmentTokens = new HashMap<>();
+    }
+
+    /**
+     * Where a stage starts in the log.
+     */
+    public static class StageMark {
+
+        private final int mLine;
+        private final String mName;
+
+        public StageMark(int line, String name) {
+            mLine = line;
+            mName = name;
+        }
+
+        public int getLine() {
+            return mLine;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    /**
+     * The distinct tokens of a full block, each one followed by a line
+     * break, and the lines of each token as offsets in the block.
+     */
+    private static class BlockIndex {
+
+        private final char[] mLines;
+        private final int[] mLineStarts;
+        private final int[] mTokenStarts;
+        private final String mTokens;
+
+        BlockIndex(int first, Map<String, IntList> tokens) {
+            var builder = new StringBuilder();
+            mTokenStarts = new int[tokens.size()];
+            mLineStarts = new int[tokens.size() + 1];
+            int lineCount = 0;
+            for (var lineList : tokens.values()) {
+                lineCount += lineList.mSize;
+            }
+            mLines = new char[lineCount];
+
+            int token = 0;
+            for (var entry : tokens.entrySet()) {
+                mTokenStarts[token] = builder.length();
+                builder.append(entry.getKey()).append('\n');
+                var lineList = entry.getValue();
+                int start = mLineStarts[token];
+                for (int i = 0; i < lineList.mSize; i++) {
+                    mLines[start + i] = (char) (lineList.mValues[i] - first);
+                }
+                mLineStarts[++token] = start + lineList.mSize;
+            }
+            mTokens = builder.toString();
+        }
+
+        /**
+         * Sets the lines of the tokens that contain fragment, fragment never
+         * holds a line break so a match is within one token.
+         */
+        void addLines(String fragment, int first, BitSet lines) {
+            int from = 0;
+            int hit;
+            while ((hit = mTokens.indexOf(fragment, from)) >= 0) {
+                int token = Arrays.binarySearch(mTokenStarts, hit);
+                if (token < 0) {
+                    token = -token - 2;
+                }
+                for (int i = mLineStarts[token]; i < mLineStarts[token + 1]; i++) {
+                    lines.set(first + mLines[i]);
+                }
+                from = token + 1 < mTokenStarts.length ? mTokenStarts[token + 1] : mTokens.length();
+            }
+        }
+    }
+
+    /**
+     * The lines of the full blocks that match a fragment.
+     */
+    private static class Hits {
+
+        private int mBlocks;
+        private final BitSet mLines = new BitSet();
+    }
+
+    /**
+     * The ascending line numbers of a token, without boxing.
+     */
+    private static class IntList {
+
+        private int[] mValues = new int[2];
+        private int mSize;
+
+        void addUnique(int value) {
+            if (mSize > 0 && mValues[mSize - 1] == value) {
+                return;
+            }
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        void setAll(BitSet bitSet) {
+            for (int i = 0; i < mSize; i++) {
+                bitSet.set(mValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import se.trixon.almond.util.Log;
+
+/**
+ * Takes the lines of a {@link Log} without blocking the threads that write
+ * them, and hands them to a front end in batches.
+ * <p>
+ * The lines are put in a bounded lock-free ring buffer. Every flush
+ * interval the lines collected so far are drained on the thread of the
+ * dispatcher, like the UI thread, and passed to the consumer as one batch.
+ * A new batch is only dispatched when the previous one is done, so a slow
+ * consumer gets larger batches instead of a growing queue of tasks. When the
+ * buffer is full new lines are dropped and counted, the next batch tells how
+ * many.
+ *
+ * @author Patrik Karlström
+ */
+public class LogSink implements AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    public static final long DEFAULT_FLUSH_MILLIS = 50;
+    private static final int MAX_BATCH_SIZE = 8192;
+    private final AtomicReferenceArray<Line> mBuffer;
+    private final Consumer<List<Line>> mConsumer;
+    private final Executor mDispatcher;
+    private final AtomicBoolean mDispatched = new AtomicBoolean();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile long mHead;
+    private final int mMask;
+    private final ScheduledExecutorService mScheduledExecutorService;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Joins the text of lines with line breaks.
+     *
+     * @param lines
+     * @return
+     */
+    public static String toText(List<Line> lines) {
+        return lines.stream().map(Line::getText).collect(Collectors.joining("\n"));
+    }
+
+    public LogSink(Log log, Executor dispatcher, Consumer<List<Line>> consumer) {
+        this(log, DEFAULT_CAPACITY, DEFAULT_FLUSH_MILLIS, dispatcher, consumer);
+    }
+
+    /**
+     * Replaces the out and err consumers of log.
+     *
+     * @param log
+     * @param capacity the number of lines the buffer holds, rounded up to a
+     * power of two
+     * @param flushMillis the flush interval
+     * @param dispatcher runs the consumer, like Platform::runLater or
+     * SwingUtilities::invokeLater
+     * @param consumer gets the batches of lines, in order
+     */
+    public LogSink(Log log, int capacity, long flushMillis, Executor dispatcher, Consumer<List<Line>> consumer) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mBuffer = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+        mDispatcher = dispatcher;
+        mConsumer = consumer;
+
+        mScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "LogSink");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mScheduledExecutorService.scheduleWithFixedDelay(this::dispatch, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+
+        log.setOut(text -> {
+            offer(new Line(text, false));
+        });
+        log.setErr(text -> {
+            offer(new Line(text, true));
+        });
+    }
+
+    /**
+     * Stops the timer and dispatches what is left.
+     */
+    @Override
+    public void close() {
+        mScheduledExecutorService.shutdownNow();
+        mDispatched.set(false);
+        dispatch();
+    }
+
+    /**
+     * @return the number of lines dropped since the last batch was drained
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Adds a line without blocking.
+     *
+     * @param line
+     * @return false if the buffer was full and line was dropped
+     */
+    public boolean offer(Line line) {
+        long position = mTail.get();
+        while (true) {
+            int index = (int) (position & mMask);
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mBuffer.set(index, line);
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                mDropped.incrementAndGet();
+                return false;
+            } else {
+                position = mTail.get();
+            }
+        }
+    }
+
+    private void dispatch() {
+        if (isPending() && mDispatched.compareAndSet(false, true)) {
+            mDispatcher.execute(() -> {
+                try {
+                    var lines = drain();
+                    if (!lines.isEmpty()) {
+                        mConsumer.accept(lines);
+                    }
+                } finally {
+                    mDispatched.set(false);
+                }
+            });
+        }
+    }
+
+    private boolean isPending() {
+        long head = mHead;
+
+        return mSequences.get((int) (head & mMask)) == head + 1 || mDropped.get() > 0;
+    }
+
+    /**
+     * Only called by the one dispatched task, the single consumer of the
+     * buffer.
+     */
+    private synchronized List<Line> drain() {
+        var lines = new ArrayList<Line>();
+        while (lines.size() < MAX_BATCH_SIZE) {
+            int index = (int) (mHead & mMask);
+            if (mSequences.get(index) != mHead + 1) {
+                break;
+            }
+            lines.add(mBuffer.get(index));
+            mBuffer.set(index, null);
+            mSequences.set(index, mHead + mMask + 1);
+            mHead++;
+        }
+
+        long dropped = mDropped.getAndSet(0);
+        if (dropped > 0) {
+            lines.add(new Line(String.format("[%d log lines dropped]", dropped), true));
+        }
+
+        return lines;
+    }
+
+    public static class Line {
+
+        private final boolean mErr;
+        private final String mText;
+
+        public Line(String text, boolean err) {
+            mText = text;
+            mErr = err;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public boolean isErr() {
+            return mErr;
+        }
+
+        @Override
+        public String toString() {
+            return mText;
+        }
+    }
+}
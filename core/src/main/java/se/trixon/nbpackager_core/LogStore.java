@@ -0,0 +1,260 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import se.trixon.nbpackager_core.LogSink.Line;
+
+/**
+ * Holds the lines of the log of a run with bounded memory.
+ * <p>
+ * The most recent lines are kept in memory, older ones spill to a file of
+ * the run in blocks of {@value #BLOCK_LINES} lines, each compressed on its
+ * own so that any line can be read back by decompressing one block. The
+ * blocks read last are cached. If the file cannot be written the compressed
+ * blocks are kept in memory instead. The lines are indexed as they are added,
+ * see {@link LogIndex}.
+ *
+ * @author Patrik Karlström
+ */
+public class LogStore implements AutoCloseable {
+
+    public static final int BLOCK_LINES = 1024;
+    private static final int CACHED_BLOCKS = 8;
+    private final Map<Integer, List<Line>> mBlockCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<Line>> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+    private final List<Block> mBlocks = new ArrayList<>();
+    private final File mDir;
+    private RandomAccessFile mFile;
+    private final LogIndex mLogIndex = new LogIndex();
+    private final ArrayList<Line> mLines = new ArrayList<>();
+    private final int mMemoryLines;
+    private File mSpillFile;
+
+    /**
+     * @param dir where the files of the runs are written
+     * @param memoryLines the number of recent lines kept in memory
+     */
+    public LogStore(File dir, int memoryLines) {
+        mDir = dir;
+        mMemoryLines = Math.max(BLOCK_LINES, memoryLines);
+    }
+
+    public synchronized void addAll(List<Line> lines) {
+        mLogIndex.addAll(lines);
+        mLines.addAll(lines);
+        while (mLines.size() >= mMemoryLines + BLOCK_LINES) {
+            var blockLines = mLines.subList(0, BLOCK_LINES);
+            mBlocks.add(write(blockLines));
+            blockLines.clear();
+        }
+    }
+
+    /**
+     * Removes all lines and the file of the run, the next spill starts a new
+     * file.
+     */
+    public synchronized void clear() {
+        mLines.clear();
+        mBlocks.clear();
+        mBlockCache.clear();
+        mLogIndex.clear();
+        closeFile();
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * Finds the next line that matches, reading spilled blocks as needed.
+     *
+     * @param predicate
+     * @param from the index to start at, inclusive
+     * @param forward
+     * @return the index of the line, or -1
+     */
+    public synchronized int find(Predicate<Line> predicate, int from, boolean forward) {
+        int size = size();
+        for (int i = from; i >= 0 && i < size; i += forward ? 1 : -1) {
+            if (predicate.test(get(i))) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public synchronized Line get(int index) {
+        int spilled = mBlocks.size() * BLOCK_LINES;
+        if (index >= spilled) {
+            return mLines.get(index - spilled);
+        }
+
+        int blockIndex = index / BLOCK_LINES;
+        var lines = mBlockCache.get(blockIndex);
+        if (lines == null) {
+            lines = read(mBlocks.get(blockIndex));
+            mBlockCache.put(blockIndex, lines);
+        }
+
+        return lines.get(index % BLOCK_LINES);
+    }
+
+    /**
+     * @return the file the older lines of this run spill to, or null
+     */
+    public synchronized File getFile() {
+        return mSpillFile;
+    }
+
+    /**
+     * @return the index of the lines, kept up to date as they are added
+     */
+    public LogIndex getLogIndex() {
+        return mLogIndex;
+    }
+
+    /**
+     * Finds the lines that contain every token of query, see
+     * {@link LogIndex#search(String)}. The text of the log is not read, so
+     * it can run on any thread while lines are added.
+     *
+     * @param query
+     * @return the matching lines, or all lines if query has no tokens
+     */
+    public BitSet search(String query) {
+        return mLogIndex.search(query);
+    }
+
+    public synchronized int size() {
+        return mBlocks.size() * BLOCK_LINES + mLines.size();
+    }
+
+    private void closeFile() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException ex) {
+                // Deleted anyway
+            }
+            mFile = null;
+        }
+        if (mSpillFile != null) {
+            mSpillFile.delete();
+            mSpillFile = null;
+        }
+    }
+
+    private List<Line> read(Block block) {
+        var lines = new ArrayList<Line>(BLOCK_LINES);
+        try {
+            var data = block.mData;
+            if (data == null) {
+                data = new byte[block.mLength];
+                mFile.seek(block.mOffset);
+                mFile.readFully(data);
+            }
+
+            try (var inputStream = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+                for (int i = 0; i < BLOCK_LINES; i++) {
+                    boolean err = inputStream.readBoolean();
+                    var bytes = new byte[inputStream.readInt()];
+                    inputStream.readFully(bytes);
+                    lines.add(new Line(new String(bytes, StandardCharsets.UTF_8), err));
+                }
+            }
+        } catch (IOException ex) {
+            while (lines.size() < BLOCK_LINES) {
+                lines.add(new Line("[log line not readable: " + ex.getMessage() + "]", true));
+            }
+        }
+
+        return lines;
+    }
+
+    private Block write(List<Line> lines) {
+        var byteArrayOutputStream = new ByteArrayOutputStream();
+        // A deflater passed to the stream is not ended when it is closed
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try (var outputStream = new DataOutputStream(new DeflaterOutputStream(byteArrayOutputStream, deflater))) {
+            for (var line : lines) {
+                var bytes = line.getText().getBytes(StandardCharsets.UTF_8);
+                outputStream.writeBoolean(line.isErr());
+                outputStream.writeInt(bytes.length);
+                outputStream.write(bytes);
+            }
+        } catch (IOException ex) {
+            // Not thrown by a byte array
+        } finally {
+            deflater.end();
+        }
+        var data = byteArrayOutputStream.toByteArray();
+
+        try {
+            if (mFile == null) {
+                mDir.mkdirs();
+                mSpillFile = File.createTempFile("run-", ".log.z", mDir);
+                mSpillFile.deleteOnExit();
+                mFile = new RandomAccessFile(mSpillFile, "rw");
+            }
+            long offset = mFile.length();
+            mFile.seek(offset);
+            mFile.write(data);
+
+            return new Block(offset, data.length, null);
+        } catch (IOException ex) {
+            return new Block(0, data.length, data);
+        }
+    }
+
+    private static class Block {
+
+        private final byte[] mData;
+        private final int mLength;
+        private final long mOffset;
+
+        /**
+         * @param data the compressed lines if not written to the file
+         */
+        public Block(long offset, int length, byte[] data) {
+            mOffset = offset;
+            mLength = length;
+            mData = data;
+        }
+    }
+}
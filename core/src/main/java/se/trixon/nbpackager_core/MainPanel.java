@@ -25,6 +25,7 @@ import java.util.logging.Logger;
 import java.util.prefs.BackingStoreException;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
+import javax.swing.SwingUtilities;
 import se.trixon.almond.util.Dict;
 import se.trixon.almond.util.GraphicsHelper;
 import se.trixon.almond.util.Log;
@@ -42,6 +43,7 @@ public class MainPanel extends javax.swing.JPanel {
     private final Options mOptions = Options.getInstance();
     private static final int ICON_SIZE = 24;
     private Thread mOperationThread;
+    private ProgressListener mProgressListener;
     private static DialogListener sDialogListener;
 
     public static DialogListener getDialogListener() {
@@ -78,6 +80,16 @@ public class MainPanel extends javax.swing.JPanel {
         return mLog;
     }
 
+    /**
+     * Sets a listener of the progress of the operations, in addition to the
+     * progress bar. It is called from the threads of the operation.
+     *
+     * @param progressListener
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        mProgressListener = progressListener;
+    }
+
     private String getProfileName() {
         return profileComboBox.getSelectedItem().toString();
     }
@@ -116,9 +128,23 @@ public class MainPanel extends javax.swing.JPanel {
         runButton.setVisible(runState == RunState.STARTABLE);
         cancelButton.setVisible(runState == RunState.CANCELABLE);
         progressBar.setIndeterminate(runState == RunState.CANCELABLE);
+        progressBar.setStringPainted(false);
         dryRunCheckBox.setEnabled(runState == RunState.STARTABLE);
     }
 
+    private void updateProgress(ProgressEvent event) {
+        if (event.getType() == ProgressEvent.Type.FINISHED) {
+            progressBar.setStringPainted(false);
+            return;
+        } else if (event.getFraction() < 0) {
+            return;
+        }
+        progressBar.setIndeterminate(false);
+        progressBar.setValue((int) (event.getFraction() * 100));
+        progressBar.setString(event.toString());
+        progressBar.setStringPainted(true);
+    }
+
     /**
      * This method is called from within the constructor to initialize the form. WARNING: Do NOT modify this code. The content of this method is always regenerated by the Form Editor.
      */
@@ -285,6 +311,14 @@ public class MainPanel extends javax.swing.JPanel {
             setRunState(RunState.CANCELABLE);
             mOperationThread = new Thread(() -> {
                 Operation operation = new Operation(profile, mLog);
+                operation.setProgressListener(event -> {
+                    SwingUtilities.invokeLater(() -> {
+                        updateProgress(event);
+                    });
+                    if (mProgressListener != null) {
+                        mProgressListener.onProgress(event);
+                    }
+                });
                 try {
                     operation.start();
                 } catch (IOException ex) {
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Several message digests fed with the same bytes, so that all checksums of
+ * a file are computed while it is written. Files that are already written
+ * are hashed by {@link ChecksumEngine}.
+ *
+ * @author Patrik Karlström
+ */
+public class MultiDigest {
+
+    private final List<String> mAlgorithms;
+    private Map<String, String> mDigests;
+    private final List<MessageDigest> mMessageDigests = new ArrayList<>();
+
+    /**
+     * @param algorithms the names of the digest algorithms, like "SHA-256" or
+     * {@link Blake3#ALGORITHM}
+     */
+    public MultiDigest(Collection<String> algorithms) {
+        mAlgorithms = new ArrayList<>(algorithms);
+        for (var algorithm : mAlgorithms) {
+            mMessageDigests.add(ChecksumEngine.getMessageDigest(algorithm));
+        }
+    }
+
+    /**
+     * Completes the digests, no more bytes can be added after this.
+     *
+     * @return the hex digests by algorithm, in the order of the algorithms
+     */
+    public synchronized Map<String, String> getDigests() {
+        if (mDigests == null) {
+            mDigests = new LinkedHashMap<>();
+            for (int i = 0; i < mAlgorithms.size(); i++) {
+                mDigests.put(mAlgorithms.get(i), HexFormat.of().formatHex(mMessageDigests.get(i).digest()));
+            }
+        }
+
+        return mDigests;
+    }
+
+    public boolean isEmpty() {
+        return mAlgorithms.isEmpty();
+    }
+
+    public void update(byte[] input, int offset, int length) {
+        for (var messageDigest : mMessageDigests) {
+            messageDigest.update(input, offset, length);
+        }
+    }
+
+    /**
+     * @param outputStream
+     * @return a stream that feeds everything written to outputStream to the
+     * digests
+     */
+    public OutputStream wrap(OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                update(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                update(b, off, len);
+            }
+        };
+    }
+}
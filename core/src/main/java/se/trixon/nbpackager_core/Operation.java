@@ -16,23 +16,38 @@
 package se.trixon.nbpackager_core;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import net.lingala.zip4j.ZipFile;
-import org.apache.commons.codec.digest.DigestUtils;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 import org.apache.commons.codec.digest.MessageDigestAlgorithms;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import se.trixon.almond.util.Log;
-import se.trixon.almond.util.ProcessLogThread;
 import static se.trixon.nbpackager_core.Options.*;
 
 /**
@@ -41,170 +56,406 @@ import static se.trixon.nbpackager_core.Options.*;
  */
 public class Operation {
 
+    /**
+     * The cleanups of cancelled runs that are still waiting for their stages
+     * to stop, by destination and workspace directory.
+     */
+    private static final Map<File, CompletableFuture<Void>> CLEANUPS = new ConcurrentHashMap<>();
+    private final CancellationToken mCancellationToken = new CancellationToken();
+    private final Map<File, Map<String, String>> mChecksums = new ConcurrentHashMap<>();
+    private final CompressionCache mCompressionCache;
+    private ExecutorService mCompressionExecutorService;
     private String mContentDir = "NOT_AVAILABLE_IN_DRY_RUN";
-    private Process mCurrentProcess;
     private File mDestDir;
     private final boolean mDryRun;
-    private boolean mInterrupted;
+    private Fingerprinter mFingerprinter;
+    private final boolean mIncremental;
+    private PackagePlan mLinuxPlan;
+    private File mLinuxStagingDir;
     private File mLinuxTargetFile;
     private final Log mLog;
+    private final BuildManifest mManifest = new BuildManifest();
     private final Options mOptions = Options.getInstance();
+    private final Set<String> mOutdatedTargets = ConcurrentHashMap.newKeySet();
+    private final int mParallelism = Runtime.getRuntime().availableProcessors();
+    private final Map<String, PackagePlan> mPlans = new ConcurrentHashMap<>();
+    private BuildManifest mPreviousManifest;
+    private final ProcessSupervisor mProcessSupervisor;
+    private final ProgressTracker mProgressTracker = new ProgressTracker();
     private final Profile mProfile;
+    private RunRecording mRunRecording;
+    private SourceArchive mSourceArchive;
+    private final TreeCopier.Mode mStagingMode;
+    private final boolean mStreaming;
+    private final Map<String, BuildManifest.TargetRecord> mTargetRecords = new ConcurrentHashMap<>();
+    private final TaskScope mTaskScope;
     private File mTempDir;
     private final String mVersion;
+    private final File mWorkspaceDir;
 
     public Operation(Profile profile, Log log) {
         mProfile = profile;
         mLog = log;
         mDryRun = mProfile.isDryRun();
+        mStreaming = mOptions.is(OPT_STREAMING, DEFAULT_STREAMING);
+        mIncremental = mOptions.is(OPT_INCREMENTAL, DEFAULT_INCREMENTAL);
+        mStagingMode = mOptions.is(OPT_STAGING_LINKS, DEFAULT_STAGING_LINKS) ? TreeCopier.Mode.LINK : TreeCopier.Mode.COPY;
+        // Copies and pumps mostly wait for I/O, more of them than cores keep
+        // the disks busy
+        mTaskScope = new TaskScope("Operation", 4 * mParallelism);
+        mProcessSupervisor = new ProcessSupervisor(mCancellationToken, mTaskScope);
+
+        long memoryCacheSize = Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4);
+        if (mOptions.is(OPT_CACHE, DEFAULT_CACHE)) {
+            var cacheDir = new File(mOptions.get(OPT_CACHE_DIR, DEFAULT_CACHE_DIR), "compression");
+            mCompressionCache = new CompressionCache(memoryCacheSize, cacheDir, mOptions.getInt(OPT_CACHE_SIZE, DEFAULT_CACHE_SIZE) * 1024L * 1024L);
+        } else {
+            mCompressionCache = new CompressionCache(memoryCacheSize);
+        }
+
+        if (mOptions.is(OPT_WORKSPACE, DEFAULT_WORKSPACE)) {
+            mWorkspaceDir = new File(mOptions.get(OPT_CACHE_DIR, DEFAULT_CACHE_DIR), "workspaces/" + getWorkspaceName(mProfile.getName()));
+        } else {
+            mWorkspaceDir = null;
+        }
 
         mVersion = StringUtils.substringAfter(mProfile.getBasename(), "-");
     }
 
-    public void start() throws IOException {
-        mDestDir = new File(mProfile.getDestDir(), FilenameUtils.getBaseName(mProfile.getSourceFile().getName()));
+    /**
+     * Sets the listener of the progress of the stages and of the bytes and
+     * files copied, extracted, compressed and hashed. It is called from the
+     * threads of the operation.
+     *
+     * @param progressListener
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        mProgressTracker.setListener(progressListener);
+    }
 
-        if (!mDryRun) {
-            if (!initTargetDirectory()) {
+    public void start() throws IOException {
+        var started = Instant.now();
+        long startNanos = System.nanoTime();
+        boolean cleanup = false;
+        try {
+            mDestDir = new File(mProfile.getDestDir(), FilenameUtils.getBaseName(mProfile.getSourceFile().getName()));
+            if (!awaitCleanups()) {
                 mLog.err("\nOperation cancelled");
                 return;
             }
-        }
+            if (mIncremental) {
+                mPreviousManifest = BuildManifest.load(mDestDir);
+            }
 
-        if (mProfile.getScriptPre() != null) {
-            mLog.out("Run PRE execution script");
-            executeScript(null, null, mProfile.getScriptPre());
-        }
+            if (!mDryRun) {
+                if (!initTargetDirectory()) {
+                    mLog.err("\nOperation cancelled");
+                    return;
+                }
+                if (RunRecording.isEnabled()) {
+                    startRecording();
+                }
+            }
 
-        if (!mInterrupted) {
-            unzip();
-        }
+            mCompressionExecutorService = Executors.newFixedThreadPool(mParallelism, runnable -> {
+                var thread = new Thread(runnable, "Operation-zip");
+                thread.setDaemon(true);
+                return thread;
+            });
 
-        if (!mInterrupted && mProfile.isTargetAny()) {
-            createPackage("any");
-        }
+            var scheduler = createStages();
+            if (mDryRun) {
+                mLog.out("\nstages:\n" + scheduler.describe());
+            }
+
+            var failedStages = new ArrayList<Stage>();
+            try {
+                failedStages.addAll(scheduler.run(mLog));
+            } catch (InterruptedException ex) {
+                mCancellationToken.cancel();
+            }
+
+            if (mCancellationToken.isCancelled()) {
+                startCleanup(scheduler);
+                cleanup = true;
+                mLog.err("\nOperation interrupted");
+                return;
+            }
+
+            for (var entry : mTargetRecords.entrySet()) {
+                if (isTargetDone(scheduler, entry.getKey())) {
+                    mManifest.putTarget(entry.getKey(), entry.getValue());
+                }
+            }
 
-        if (!mInterrupted && mProfile.isTargetLinux()) {
-            createPackage("linux");
+            if (mTempDir != null && mWorkspaceDir == null) {
+                FileUtils.deleteDirectory(mTempDir);
+            }
 
-            if (!mInterrupted && mProfile.isTargetLinuxAppImage()) {
-                createPackageAppImage();
+            if (!mDryRun) {
+                logCompressionCache();
+                if (mIncremental && mFingerprinter != null) {
+                    mManifest.putFiles(mFingerprinter.getFiles());
+                    mManifest.save(mDestDir);
+                }
             }
 
-            if (!mInterrupted && mProfile.isTargetLinuxSnap()) {
-                createPackageSnap();
+            writeReport(scheduler, started, Duration.ofNanos(System.nanoTime() - startNanos), failedStages.isEmpty() ? "completed" : "failed");
+
+            if (!failedStages.isEmpty()) {
+                mLog.err("\nfailed stages: " + failedStages.stream().map(Stage::getName).collect(Collectors.joining(", ")));
+                mLog.err("Operation failed");
+            } else {
+                mLog.out("\nOperation completed" + (mDryRun ? " (dry-run)" : ""));
+            }
+        } finally {
+            // The cleanup does this once the stages have stopped
+            if (!cleanup) {
+                try {
+                    close();
+                } finally {
+                    stopRecording();
+                    mProgressTracker.finish();
+                }
             }
         }
+    }
 
-        if (!mInterrupted && mProfile.isTargetMac()) {
-            createPackage("mac");
+    private void addJre(PackagePlan plan, File jreDir, String contentDir, Log log) throws IOException {
+        if (jreDir == null) {
+            log.out("No jre specified.");
+            return;
         }
+        String etcName = String.format("%s/etc/%s.conf", contentDir, mContentDir);
+        String jreName = jreDir.getName();
+        log.out("set jdkhome in " + etcName);
+        log.out("add jre as: " + contentDir + "/" + jreName);
 
-        if (!mInterrupted && mProfile.isTargetWindows()) {
-            createPackage("windows");
+        var etcEntry = plan.get(etcName);
+        if (etcEntry == null) {
+            throw new FileNotFoundException(etcName);
+        }
+        String etcContent;
+        try (var inputStream = etcEntry.openStream()) {
+            etcContent = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
         }
+        etcContent += getJdkHomeSetting(etcContent, jreName);
+        plan.add(ArchiveEntry.ofBytes(etcName, etcContent.getBytes(StandardCharsets.UTF_8), etcEntry.getMode(), System.currentTimeMillis()));
+        plan.addTree(jreDir.toPath(), contentDir + "/" + jreName, false);
+    }
 
-        if (!mInterrupted && mProfile.getScriptPost() != null) {
-            mLog.out("Run POST execution script");
-            executeScript(null, null, mProfile.getScriptPost());
+    private void addResources(PackagePlan plan, File resourceDir, String contentDir, Log log) throws IOException {
+        if (resourceDir.isDirectory()) {
+            plan.addTree(resourceDir.toPath(), contentDir, true);
+        } else {
+            log.err("resource directory not found: " + resourceDir.getAbsolutePath());
         }
+    }
 
-        FileUtils.deleteDirectory(mTempDir);
+    /**
+     * Waits for the cleanup of a cancelled run of the same destination or
+     * workspace, its stages may write there until they have stopped.
+     *
+     * @return false if interrupted while waiting
+     */
+    private boolean awaitCleanups() {
+        for (var dir : getRunDirs()) {
+            var cleanup = CLEANUPS.get(dir);
+            if (cleanup != null) {
+                mLog.out("wait for the cancelled run to stop: " + dir.getAbsolutePath());
+                try {
+                    cleanup.get();
+                } catch (InterruptedException ex) {
+                    return false;
+                } catch (ExecutionException ex) {
+                    // Always completed normally
+                }
+            }
+        }
 
-        if (mInterrupted) {
-            mLog.err("\nOperation interrupted");
-        } else {
-            mLog.out("\nOperation completed" + (mDryRun ? " (dry-run)" : ""));
+        return true;
+    }
+
+    /**
+     * Stops the threads of the operation and closes the source archive.
+     */
+    private void close() throws IOException {
+        if (mCompressionExecutorService != null) {
+            mCompressionExecutorService.shutdownNow();
+        }
+        mTaskScope.close();
+        if (mSourceArchive != null) {
+            mSourceArchive.close();
         }
     }
 
-    private void copyJre(File jreDir, File targetDir) throws IOException {
+    private void copyJre(File jreDir, File targetDir, Predicate<Path> exclude, Log log) throws IOException {
         if (jreDir == null) {
-            mLog.out("No jre specified.");
+            log.out("No jre specified.");
             return;
         }
-        String etc = String.format("etc/%s.conf", mContentDir);
         String jreName = jreDir.getName();
         File destDir = new File(targetDir, jreName);
-        File etcFile = new File(targetDir, etc);
-        mLog.out("set jdkhome in " + etcFile.getAbsolutePath());
-        mLog.out("copy jre to: " + destDir.getAbsolutePath());
+        setJdkHome(targetDir, jreName, log);
+        log.out("copy jre to: " + destDir.getAbsolutePath());
         if (!mDryRun) {
-            String etcContent = FileUtils.readFileToString(etcFile, "utf-8");
-            String key = StringUtils.contains(etcContent, "netbeans_jdkhome") ? "netbeans_jdkhome" : "jdkhome";
-            FileUtils.write(etcFile, String.format("\n\n# Added by Packager\n%s=\"%s\"\n", key, jreName), "utf-8", true);
-            cp(jreDir, destDir, false);
+            cp(jreDir, destDir, false, mStagingMode, exclude, log);
         }
     }
 
-    private void cp(File source, File dest, boolean contentOnly) {
+    private void cp(File source, File dest, boolean contentOnly, Log log) throws IOException {
+        cp(source, dest, contentOnly, TreeCopier.Mode.COPY, log);
+    }
+
+    private void cp(File source, File dest, boolean contentOnly, TreeCopier.Mode mode, Log log) throws IOException {
+        cp(source, dest, contentOnly, mode, path -> false, log);
+    }
+
+    /**
+     * @param mode {@link TreeCopier.Mode#LINK} for sources that are never
+     * modified in dest
+     * @param exclude the dest paths that are not copied
+     */
+    private void cp(File source, File dest, boolean contentOnly, TreeCopier.Mode mode, Predicate<Path> exclude, Log log) throws IOException {
         String sourcePath = source.getAbsolutePath();
         if (contentOnly && source.isDirectory()) {
             sourcePath += "/.";
         }
-        execute(null, null, "cp", "-ra", sourcePath, dest.getAbsolutePath());
-        //FileUtils.copyDirectory(source, dest, true);
-    }
+        log.out(String.format("copy: %s %s", sourcePath, dest.getAbsolutePath()));
+        if (mDryRun) {
+            return;
+        }
 
-    private void createChecksum(File file, String algorithm) throws IOException {
-        File digestFile = new File(file.getAbsolutePath() + String.format(".%s", StringUtils.remove(algorithm, "-").toLowerCase(Locale.getDefault())));
-        mLog.out("create checksum: " + digestFile.getAbsolutePath());
-        if (!mDryRun) {
-            String digest = new DigestUtils(algorithm).digestAsHex(file);
-            FileUtils.writeStringToFile(digestFile, String.format("%s  %s", digest, file.getName()), Charset.defaultCharset());
+        var treeCopier = new TreeCopier(mParallelism, mode);
+        treeCopier.setCancellationToken(mCancellationToken);
+        treeCopier.setProgressTracker(getProgressTracker());
+        treeCopier.setExclude(exclude);
+        treeCopier.setExecutorService(mTaskScope);
+        try {
+            treeCopier.copy(source.toPath(), dest.toPath(), contentOnly);
+        } catch (InterruptedIOException ex) {
+            mCancellationToken.cancel();
+            throw ex;
         }
+        log.out(String.format("copied %d files, %s (%d hardlinked, %d excluded)", treeCopier.getFiles(), FileUtils.byteCountToDisplaySize(treeCopier.getBytes()), treeCopier.getLinks(), treeCopier.getExcluded()));
     }
 
-    private void createChecksums(File file) throws IOException {
-        if (mProfile.isChecksumSha256()) {
-            createChecksum(file, MessageDigestAlgorithms.SHA_256);
+    /**
+     * Writes one manifest per algorithm, like SHA256SUMS, with the checksums
+     * of the artifacts of all targets. The checksums of targets that were up
+     * to date are read from their checksum files, or computed in parallel if
+     * those are missing.
+     */
+    private void createChecksumManifests() throws IOException {
+        var algorithms = getChecksumAlgorithms();
+        if (algorithms.isEmpty()) {
+            return;
         }
 
-        if (mProfile.isChecksumSha512()) {
-            createChecksum(file, MessageDigestAlgorithms.SHA_512);
+        var files = new ArrayList<File>();
+        for (var target : getTargets()) {
+            files.add(new File(mDestDir, String.format("%s-%s.zip", mProfile.getBasename(), target)));
+            if (target.equals("linux") && mProfile.isTargetLinuxAppImage()) {
+                files.add(new File(mDestDir, StringUtils.replace(getAppImageName(), "AppDir", "AppImage")));
+            }
+        }
+
+        var checksums = new TreeMap<String, Map<String, String>>();
+        var unknownFiles = new ArrayList<File>();
+        for (var file : files) {
+            if (mDryRun || !file.isFile()) {
+                continue;
+            }
+            var digests = mChecksums.containsKey(file) ? mChecksums.get(file) : readChecksums(file, algorithms);
+            if (digests == null) {
+                unknownFiles.add(file);
+            } else {
+                checksums.put(file.getName(), digests);
+            }
+        }
+
+        if (!unknownFiles.isEmpty()) {
+            mLog.out(String.format("compute checksums of %d file(s)", unknownFiles.size()));
+            var checksumEngine = new ChecksumEngine(mParallelism);
+            checksumEngine.setCancellationToken(mCancellationToken);
+            checksumEngine.setProgressTracker(getProgressTracker());
+            checksumEngine.setExecutorService(mTaskScope);
+            checksumEngine.digest(unknownFiles, algorithms).forEach((file, digests) -> {
+                checksums.put(file.getName(), digests);
+            });
+        }
+
+        for (var algorithm : algorithms) {
+            var manifestFile = new File(mDestDir, getChecksumManifestName(algorithm));
+            mLog.out("create checksum manifest: " + manifestFile.getAbsolutePath());
+            if (!mDryRun) {
+                var builder = new StringBuilder();
+                checksums.forEach((name, digests) -> {
+                    builder.append(String.format("%s  %s\n", digests.get(algorithm), name));
+                });
+                FileUtils.writeStringToFile(manifestFile, builder.toString(), StandardCharsets.UTF_8);
+            }
         }
     }
 
-    private void createPackage(String target) throws IOException {
-        mLog.out("\ncreate package: " + target);
+    /**
+     * Creates the checksum files of a file written by an external tool,
+     * reading it once for all algorithms.
+     */
+    private void createChecksums(File file, Log log) throws IOException {
+        Stage.step("checksum");
+        Map<String, String> digests = Map.of();
+        if (!mDryRun) {
+            var checksumEngine = new ChecksumEngine(mParallelism);
+            checksumEngine.setCancellationToken(mCancellationToken);
+            checksumEngine.setProgressTracker(getProgressTracker());
+            checksumEngine.setExecutorService(mTaskScope);
+            digests = checksumEngine.digest(file, getChecksumAlgorithms());
+        }
+        writeChecksums(file, digests, log);
+    }
+
+    private void createPackage(String target, Log log) throws IOException {
+        log.out("\ncreate package: " + target);
+        if (mWorkspaceDir != null) {
+            createPackageSynced(target, log);
+            return;
+        }
 
         File targetDir = new File(mDestDir, target);
+        var contentPath = new File(targetDir, mContentDir).toPath();
+        var pathFilter = getPathFilter(target, log);
+        Predicate<Path> exclude = path -> path.startsWith(contentPath)
+                && pathFilter.isExcluded(contentPath.relativize(path).toString().replace('\\', '/'));
 
-        mLog.out("copy zip contents to: " + targetDir.getAbsolutePath());
+        Stage.step("copy");
+        log.out("copy zip contents to: " + targetDir.getAbsolutePath());
         if (!mDryRun) {
             targetDir.mkdirs();
-            cp(mTempDir, targetDir, true);
+            cp(mTempDir, targetDir, true, TreeCopier.Mode.COPY, exclude, log);
         }
 
         File baseDir = mProfile.getResourceDir();
         targetDir = new File(targetDir, mContentDir);
         if (baseDir != null) {
-            mLog.out("copy resources to: " + targetDir.getAbsolutePath());
+            log.out("copy resources to: " + targetDir.getAbsolutePath());
             if (!mDryRun) {
-                cp(new File(baseDir, "any"), targetDir, true);
+                cp(new File(baseDir, "any"), targetDir, true, TreeCopier.Mode.COPY, exclude, log);
                 if (!"any".equals(target)) {
-                    cp(new File(baseDir, target), targetDir, true);
+                    cp(new File(baseDir, target), targetDir, true, TreeCopier.Mode.COPY, exclude, log);
                 }
             }
         }
 
-        boolean keepWindows = false;
-        if (target.equalsIgnoreCase("linux") && mProfile.isTargetLinux()) {
-            copyJre(mProfile.getJreLinux(), targetDir);
-        } else if (target.equalsIgnoreCase("mac") && mProfile.isTargetMac()) {
-            copyJre(mProfile.getJreMac(), targetDir);
-        } else if (target.equalsIgnoreCase("windows") && mProfile.isTargetWindows()) {
-            copyJre(mProfile.getJreWindows(), targetDir);
-            keepWindows = true;
-        }
-
         if (!target.equalsIgnoreCase("any")) {
-            removeBin(new File(targetDir, "bin"), keepWindows);
+            Stage.step("jre");
+            copyJre(getJre(target), targetDir, exclude, log);
         }
 
         var targetFile = new File(mDestDir, String.format("%s-%s.zip", mProfile.getBasename(), target));
         var contentDir = mContentDir;
         if (target.equals("linux")) {
+            mLinuxStagingDir = targetDir;
             mLinuxTargetFile = targetFile;
         } else if (target.equals("mac")) {
             var oldTargetDir = targetDir;
@@ -213,33 +464,49 @@ public class Operation {
             contentDir += ".app";
         }
 
-        mLog.out("creating zip: " + targetFile.getAbsolutePath());
-        execute(null, targetDir.getParentFile(), "zip", "-qr", targetFile.getAbsolutePath(), contentDir);
-
-        createChecksums(targetFile);
+        var plan = new PackagePlan();
+        if (!mDryRun) {
+            plan.addTree(targetDir.toPath(), contentDir, false);
+        }
+        createZip(targetFile, plan, log);
     }
 
-    private void createPackageAppImage() throws IOException {
-        mLog.out("\ncreate package: AppImage");
-        mLog.out("copy template to: " + mDestDir.getAbsolutePath());
-        String templateName = mProfile.getTemplateDirAppImage().getName();
-        templateName = StringUtils.replace(templateName, "__", String.format("-%s-", mVersion));
+    private void createPackageAppImage(Log log) throws IOException {
+        log.out("\ncreate package: AppImage");
+        String templateName = getAppImageName();
         var targetDir = new File(mDestDir, templateName);
         var targetFile = new File(mDestDir, StringUtils.replace(templateName, "AppDir", "AppImage"));
 
-        if (!mDryRun) {
-            cp(mProfile.getTemplateDirAppImage(), targetDir, false);
-        }
+        // usr is the content of the linux package, with its resources, jre
+        // and jdkhome, taken over from the linux target instead of built again
+        Stage.step("copy");
+        if (mStreaming) {
+            if (mWorkspaceDir != null) {
+                targetDir = new File(mWorkspaceDir, "appimage/" + templateName);
+            }
+            var treeSync = new TreeSync()
+                    .add(mProfile.getTemplateDirAppImage().toPath(), "", mStagingMode == TreeCopier.Mode.LINK)
+                    .add(mLinuxPlan, mContentDir, "usr", mStagingMode == TreeCopier.Mode.LINK);
+            sync(treeSync, targetDir, log);
+        } else if (mWorkspaceDir != null) {
+            targetDir = new File(mWorkspaceDir, "appimage/" + templateName);
+            var treeSync = new TreeSync()
+                    .add(mProfile.getTemplateDirAppImage().toPath(), "")
+                    .add(mLinuxStagingDir.toPath(), "usr", true);
+            sync(treeSync, targetDir, log);
+        } else {
+            log.out("copy template to: " + mDestDir.getAbsolutePath());
+            if (!mDryRun) {
+                cp(mProfile.getTemplateDirAppImage(), targetDir, false, mStagingMode, log);
+            }
 
-        var usrDir = new File(targetDir, "usr");
-        mLog.out("copy zip contents to: " + usrDir.getAbsolutePath());
-        if (!mDryRun) {
-            cp(new File(mTempDir, mContentDir), usrDir, true);
+            var usrDir = new File(targetDir, "usr");
+            log.out("link linux package to: " + usrDir.getAbsolutePath());
+            if (!mDryRun) {
+                cp(mLinuxStagingDir, usrDir, true, TreeCopier.Mode.LINK, log);
+            }
         }
 
-        removeBin(new File(usrDir, "bin"), false);
-        copyJre(mProfile.getJreLinux(), usrDir);
-
         var environment = new HashMap<String, String>();
 //        environment.put("ARCH", "x86_64");
         var command = new ArrayList<String>();
@@ -250,26 +517,45 @@ public class Operation {
 
         command.add(targetDir.getAbsolutePath());
         command.add(targetFile.getAbsolutePath());
-        execute(command, environment, null);
+        Stage.step("appimagetool");
+        execute(command, environment, null, getTimeout(OPT_APP_IMAGE_TIMEOUT, DEFAULT_APP_IMAGE_TIMEOUT), log);
+        if (targetFile.isFile()) {
+            getProgressTracker().addWritten(targetFile.length());
+        }
 
-        createChecksums(targetFile);
+        createChecksums(targetFile, log);
     }
 
-    private void createPackageSnap() throws IOException {
-        mLog.out("\ncreate package: Snap");
-        mLog.out("copy template to: " + mDestDir.getAbsolutePath());
+    private void createPackageSnap(Log log) throws IOException {
+        log.out("\ncreate package: Snap");
         String templateName = mProfile.getTemplateDirSnap().getName();
-        File targetDir = new File(mDestDir, templateName);
+        File targetDir;
 
-        if (!mDryRun) {
-            mLog.out("copy zip contents to: " + targetDir.getAbsolutePath());
-            cp(mProfile.getTemplateDirSnap(), targetDir, false);
-            cp(mLinuxTargetFile, targetDir, true);
+        Stage.step("copy");
+        if (mWorkspaceDir != null) {
+            // snapcraft keeps its build state in parts, prime and stage
+            targetDir = new File(mWorkspaceDir, "snap/" + templateName);
+            var treeSync = new TreeSync()
+                    .add(mProfile.getTemplateDirSnap().toPath(), "")
+                    .add(mLinuxTargetFile.toPath(), mLinuxTargetFile.getName(), true)
+                    .keep(name -> name.matches("(parts|prime|stage)(/.*)?|[^/]*\\.snap"));
+            sync(treeSync, targetDir, log);
+        } else {
+            log.out("copy template to: " + mDestDir.getAbsolutePath());
+            targetDir = new File(mDestDir, templateName);
+            if (!mDryRun) {
+                log.out("copy zip contents to: " + targetDir.getAbsolutePath());
+                cp(mProfile.getTemplateDirSnap(), targetDir, false, mStagingMode, log);
+                cp(mLinuxTargetFile, targetDir, true, TreeCopier.Mode.LINK, log);
+            }
+        }
 
+        Stage.step("snapcraft");
+        if (!mDryRun) {
             var preScriptFile = new File(targetDir, "exec_before");
             if (preScriptFile.isFile()) {
-                mLog.out("Run PRE SNAP execution script");
-                executeScript(null, targetDir, preScriptFile);
+                log.out("Run PRE SNAP execution script");
+                executeScript(null, targetDir, preScriptFile, log);
             }
 
             File yaml = new File(targetDir, "snap/snapcraft.yaml");
@@ -278,6 +564,8 @@ public class Operation {
                 lines.add(line.replaceAll("version: '.*'", String.format("version: '%s'", mVersion)));
             }
 
+            // Write a new file, the template file may be linked
+            Files.delete(yaml.toPath());
             FileUtils.writeLines(yaml, "utf-8", lines);
 
             HashMap<String, String> environment = new HashMap<>();
@@ -287,60 +575,650 @@ public class Operation {
                 command.add(option);
             }
 
-            execute(command, environment, targetDir);
+            // Modification times may be truncated to seconds
+            long snapStart = System.currentTimeMillis() / 1000 * 1000;
+            execute(command, environment, targetDir, getTimeout(OPT_SNAP_TIMEOUT, DEFAULT_SNAP_TIMEOUT), log);
+            for (var snapFile : FileUtils.listFiles(targetDir, new String[]{"snap"}, false)) {
+                if (snapFile.lastModified() >= snapStart) {
+                    getProgressTracker().addWritten(snapFile.length());
+                }
+            }
 
             var postScriptFile = new File(targetDir, "exec_after");
             if (postScriptFile.isFile()) {
-                mLog.out("Run POST SNAP execution script");
-                executeScript(null, targetDir, postScriptFile);
+                log.out("Run POST SNAP execution script");
+                executeScript(null, targetDir, postScriptFile, log);
+            }
+
+            if (mWorkspaceDir != null) {
+                for (var snapFile : FileUtils.listFiles(targetDir, new String[]{"snap"}, false)) {
+                    log.out("copy snap to: " + mDestDir.getAbsolutePath());
+                    FileUtils.copyFileToDirectory(snapFile, mDestDir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the package of a target from its directory in the workspace,
+     * synced with the zip contents, the resources and the jre.
+     */
+    private void createPackageSynced(String target, Log log) throws IOException {
+        var contentDir = target.equals("mac") ? mContentDir + ".app" : mContentDir;
+        var targetDir = new File(mWorkspaceDir, "targets/" + target);
+        var treeSync = new TreeSync().add(new File(mTempDir, mContentDir).toPath(), contentDir);
+
+        File baseDir = mProfile.getResourceDir();
+        if (baseDir != null) {
+            treeSync.add(new File(baseDir, "any").toPath(), contentDir);
+            if (!"any".equals(target)) {
+                treeSync.add(new File(baseDir, target).toPath(), contentDir);
             }
         }
+
+        var jreDir = getJre(target);
+        if (jreDir != null && !target.equalsIgnoreCase("any")) {
+            treeSync.add(jreDir.toPath(), contentDir + "/" + jreDir.getName());
+        }
+        treeSync.exclude(getExclude(getPathFilter(target, log), contentDir));
+
+        Stage.step("sync");
+        sync(treeSync, targetDir, log);
+        if (jreDir != null && !target.equalsIgnoreCase("any")) {
+            setJdkHome(new File(targetDir, contentDir), jreDir.getName(), log);
+        }
+
+        var targetFile = new File(mDestDir, String.format("%s-%s.zip", mProfile.getBasename(), target));
+        if (target.equals("linux")) {
+            mLinuxStagingDir = new File(targetDir, contentDir);
+            mLinuxTargetFile = targetFile;
+        }
+
+        var plan = new PackagePlan();
+        if (!mDryRun) {
+            plan.addTree(new File(targetDir, contentDir).toPath(), contentDir, false);
+        }
+        createZip(targetFile, plan, log);
     }
 
-    private void execute(Map<String, String> environment, File workingDirectory, String... commands) {
-        execute(new ArrayList<>(Arrays.asList(commands)), environment, workingDirectory);
+    /**
+     * Creates the package of a target straight from the source zip, the
+     * resources and the jre without staging it on disk first, as planned by
+     * {@link #expectWork(Log)}.
+     */
+    private void createPackageStreamed(String target, Log log) throws IOException {
+        log.out("\ncreate package: " + target);
+
+        var plan = mPlans.get(target);
+
+        var targetFile = new File(mDestDir, String.format("%s-%s.zip", mProfile.getBasename(), target));
+        if (target.equals("linux")) {
+            mLinuxPlan = plan;
+            mLinuxTargetFile = targetFile;
+        }
+
+        createZip(targetFile, plan, log);
     }
 
-    private void execute(ArrayList<String> command, Map<String, String> environment, File workingDirectory) {
-        mLog.out(getHeader() + String.join(" ", command));
+    private PackagePlan createPlan(String target, String contentDir, Log log) throws IOException {
+        var plan = new PackagePlan();
 
+        log.out("read zip entries: " + mSourceArchive.getFile());
+        var prefix = mContentDir + "/";
+        for (var entry : mSourceArchive.getEntries()) {
+            var name = entry.getName();
+            if (!contentDir.equals(mContentDir) && name.startsWith(prefix)) {
+                name = contentDir + "/" + name.substring(prefix.length());
+            }
+            plan.add(ArchiveEntry.of(mSourceArchive, entry, name));
+        }
+
+        File baseDir = mProfile.getResourceDir();
+        if (baseDir != null) {
+            log.out("add resources to: " + contentDir);
+            addResources(plan, new File(baseDir, "any"), contentDir, log);
+            if (!"any".equals(target)) {
+                addResources(plan, new File(baseDir, target), contentDir, log);
+            }
+        }
+
+        if (!target.equalsIgnoreCase("any")) {
+            addJre(plan, getJre(target), contentDir, log);
+        }
+
+        int count = plan.removeIf(getExclude(getPathFilter(target, log), contentDir));
+        log.out(String.format("excluded: %d entries", count));
+
+        return plan;
+    }
+
+    /**
+     * Builds the pipeline, the packages of the targets are created in
+     * parallel when enabled and the AppImage and Snap start as soon as the
+     * linux package is ready. When the targets are created one at a time,
+     * the AppImage and Snap still run next to the next target.
+     */
+    private StageScheduler createStages() {
+        boolean parallelTargets = mOptions.is(OPT_PARALLEL_TARGETS, DEFAULT_PARALLEL_TARGETS);
+        var scheduler = new StageScheduler(Math.max(2, parallelTargets ? mParallelism : 1), mCancellationToken::isCancelled);
+        if (!parallelTargets) {
+            scheduler.setLimit(Stage.Resource.CPU, 1);
+        }
+        scheduler.setLimit(Stage.Resource.DISK, 2);
+        scheduler.setLimit(Stage.Resource.TOOL, 1);
+        scheduler.setProgressTracker(mProgressTracker);
+
+        var preScript = scheduler.add("pre-script", Stage.Resource.TOOL, log -> {
+            if (mProfile.getScriptPre() != null) {
+                log.out("Run PRE execution script");
+                executeScript(null, null, mProfile.getScriptPre(), log);
+            }
+        });
+
+        var prepare = scheduler.add("prepare", Stage.Resource.DISK, log -> {
+            if (mStreaming) {
+                openSourceArchive();
+            }
+            mOutdatedTargets.addAll(getOutdatedTargets(getTargets()));
+            expectWork(log);
+            if (!mStreaming) {
+                unzip();
+            }
+        }, preScript);
+
+        var packageStages = new ArrayList<Stage>();
+        for (var target : getTargets()) {
+            var targetStage = scheduler.add(target, Stage.Resource.CPU, log -> {
+                if (mOutdatedTargets.contains(target)) {
+                    if (mStreaming) {
+                        createPackageStreamed(target, log);
+                    } else {
+                        createPackage(target, log);
+                    }
+                }
+            }, prepare);
+            packageStages.add(targetStage);
+
+            if (target.equals("linux")) {
+                if (mProfile.isTargetLinuxAppImage()) {
+                    packageStages.add(scheduler.add("appimage", Stage.Resource.TOOL, log -> {
+                        if (mOutdatedTargets.contains(target)) {
+                            createPackageAppImage(log);
+                        }
+                    }, targetStage));
+                }
+
+                if (mProfile.isTargetLinuxSnap()) {
+                    packageStages.add(scheduler.add("snap", Stage.Resource.TOOL, log -> {
+                        if (mOutdatedTargets.contains(target)) {
+                            createPackageSnap(log);
+                        }
+                    }, targetStage));
+                }
+            }
+        }
+
+        var checksums = scheduler.add("checksums", Stage.Resource.DISK, log -> {
+            createChecksumManifests();
+        }, packageStages.toArray(Stage[]::new));
+
+        scheduler.add("post-script", Stage.Resource.TOOL, log -> {
+            if (mProfile.getScriptPost() != null) {
+                log.out("Run POST execution script");
+                executeScript(null, null, mProfile.getScriptPost(), log);
+            }
+        }, checksums);
+
+        return scheduler;
+    }
+
+    /**
+     * Writes the zip and its checksum files, the checksums are computed
+     * while the zip is written, except BLAKE3.
+     * <p>
+     * On one thread BLAKE3 is slower than the SHA digests of the JDK, which
+     * are intrinsics, and would hold back the thread that writes the zip. It
+     * is computed afterwards, by the tree hash over all cores.
+     */
+    private void createZip(File targetFile, PackagePlan plan, Log log) throws IOException {
+        log.out(String.format("creating zip: %s (%d entries, %s)", targetFile.getAbsolutePath(), plan.size(), FileUtils.byteCountToDisplaySize(plan.getSize())));
+        var algorithms = getChecksumAlgorithms();
+        var digest = new MultiDigest(algorithms.stream().filter(algorithm -> !algorithm.equals(Blake3.ALGORITHM)).collect(Collectors.toList()));
+        Map<String, String> digests = Map.of();
+        Stage.step("zip");
         if (!mDryRun) {
-            var processBuilder = new ProcessBuilder(command).inheritIO();
-            processBuilder.redirectOutput(ProcessBuilder.Redirect.PIPE);
-            if (environment != null) {
-                processBuilder.environment().putAll(environment);
+            try (var zipWriter = new ParallelZipWriter(targetFile, mCompressionExecutorService, mParallelism, Deflater.DEFAULT_COMPRESSION, digest)) {
+                zipWriter.setCancellationToken(mCancellationToken);
+                zipWriter.setProgressTracker(getProgressTracker());
+                zipWriter.setCompressionCache(mCompressionCache);
+                for (var entry : plan.getEntries()) {
+                    zipWriter.add(entry);
+                }
+                zipWriter.finish();
+            } catch (InterruptedIOException ex) {
+                mCancellationToken.cancel();
+                throw ex;
+            }
+
+            var blake3Digests = Map.<String, String>of();
+            if (algorithms.contains(Blake3.ALGORITHM)) {
+                Stage.step("checksum");
+                var checksumEngine = new ChecksumEngine(mParallelism);
+                checksumEngine.setCancellationToken(mCancellationToken);
+                checksumEngine.setProgressTracker(getProgressTracker());
+                checksumEngine.setExecutorService(mTaskScope);
+                blake3Digests = checksumEngine.digest(targetFile, List.of(Blake3.ALGORITHM));
             }
-            if (workingDirectory != null) {
-                processBuilder.directory(workingDirectory);
+
+            digests = new LinkedHashMap<>();
+            for (var algorithm : algorithms) {
+                var value = digest.getDigests().get(algorithm);
+                digests.put(algorithm, value != null ? value : blake3Digests.get(algorithm));
             }
+        }
+
+        writeChecksums(targetFile, digests, log);
+    }
+
+    private void execute(ArrayList<String> command, Map<String, String> environment, File workingDirectory, Duration timeout, Log log) throws IOException {
+        log.out(getHeader() + String.join(" ", command));
+
+        if (!mDryRun) {
             try {
-                mCurrentProcess = processBuilder.start();
-                new ProcessLogThread(mCurrentProcess.getInputStream(), 0, mLog).start();
-                new ProcessLogThread(mCurrentProcess.getErrorStream(), -1, mLog).start();
-                Thread.sleep(1000);
-                mCurrentProcess.waitFor();
-            } catch (IOException ex) {
-                mLog.timedErr(ex.getMessage());
-            } catch (InterruptedException ex) {
-                mCurrentProcess.destroy();
-                mInterrupted = true;
+                mProcessSupervisor.run(command, environment, workingDirectory, timeout, log);
+            } catch (InterruptedIOException ex) {
+                mCancellationToken.cancel();
+                throw ex;
             }
         }
     }
 
-    private void executeScript(Map<String, String> environment, File workingDirectory, File script) {
-        execute(environment, workingDirectory, script.getAbsolutePath());
+    private void executeScript(Map<String, String> environment, File workingDirectory, File script, Log log) throws IOException {
+        var command = new ArrayList<String>();
+        command.add(script.getAbsolutePath());
+        execute(command, environment, workingDirectory, getTimeout(OPT_SCRIPT_TIMEOUT, DEFAULT_SCRIPT_TIMEOUT), log);
+    }
+
+    /**
+     * Plans the packages of the outdated targets when streaming and adds the
+     * work of the operation to the tracker up front, so the fraction and the
+     * ETA cover all stages and not only the ones started so far.
+     * <p>
+     * Without streaming the content of a target is taken as the source, the
+     * resources and the jre. The zips and the AppImage are estimated at the
+     * compression ratio of the source zip.
+     */
+    private void expectWork(Log log) throws IOException {
+        if (mStreaming) {
+            for (var target : getTargets()) {
+                if (mOutdatedTargets.contains(target)) {
+                    var contentDir = target.equals("mac") ? mContentDir + ".app" : mContentDir;
+                    mPlans.put(target, createPlan(target, contentDir, log));
+                }
+            }
+        }
+        if (mDryRun) {
+            return;
+        }
+
+        long sourceSize = 0;
+        long sourceCompressedSize = 0;
+        var sourceArchive = mStreaming ? mSourceArchive : new SourceArchive(mProfile.getSourceFile());
+        try {
+            for (var entry : sourceArchive.getEntries()) {
+                sourceSize += entry.getSize();
+                sourceCompressedSize += entry.getCompressedSize();
+            }
+        } finally {
+            if (!mStreaming) {
+                sourceArchive.close();
+            }
+        }
+        double ratio = sourceSize > 0 ? sourceCompressedSize / (double) sourceSize : 1;
+
+        // The extraction
+        long bytes = mStreaming ? 0 : sourceSize;
+        for (var target : mOutdatedTargets) {
+            long contentSize;
+            if (mStreaming) {
+                contentSize = mPlans.get(target).getSize();
+            } else {
+                contentSize = sourceSize + getSize(getJre(target));
+                var resourceDir = mProfile.getResourceDir();
+                if (resourceDir != null) {
+                    contentSize += getSize(new File(resourceDir, "any"));
+                    if (!target.equals("any")) {
+                        contentSize += getSize(new File(resourceDir, target));
+                    }
+                }
+                // The staging
+                bytes += contentSize;
+            }
+            long zipSize = (long) (contentSize * ratio);
+
+            bytes += contentSize;
+            if (mProfile.isChecksumBlake3()) {
+                bytes += zipSize;
+            }
+            if (target.equals("linux")) {
+                if (mProfile.isTargetLinuxAppImage()) {
+                    bytes += contentSize + zipSize * getChecksumAlgorithms().size();
+                }
+                if (mProfile.isTargetLinuxSnap()) {
+                    bytes += zipSize;
+                }
+            }
+        }
+
+        mProgressTracker.expect(bytes);
     }
 
     private String getHeader() {
         return mDryRun ? "execute: (dry-run) " : "execute: ";
     }
 
+    private String getAppImageName() {
+        String templateName = mProfile.getTemplateDirAppImage().getName();
+
+        return StringUtils.replace(templateName, "__", String.format("-%s-", mVersion));
+    }
+
+    /**
+     * @return the files and directories a target creates, relative to the
+     * destination directory
+     */
+    private List<String> getArtifacts(String target) {
+        var artifacts = new ArrayList<String>();
+        var zipName = String.format("%s-%s.zip", mProfile.getBasename(), target);
+        artifacts.add(zipName);
+        artifacts.addAll(getChecksumNames(zipName));
+        if (!mStreaming && mWorkspaceDir == null) {
+            artifacts.add(target);
+        }
+
+        if (target.equals("linux")) {
+            if (mProfile.isTargetLinuxAppImage()) {
+                var appImageName = getAppImageName();
+                var appImageFileName = StringUtils.replace(appImageName, "AppDir", "AppImage");
+                if (mWorkspaceDir == null) {
+                    artifacts.add(appImageName);
+                }
+                artifacts.add(appImageFileName);
+                artifacts.addAll(getChecksumNames(appImageFileName));
+            }
+            if (mProfile.isTargetLinuxSnap() && mWorkspaceDir == null) {
+                artifacts.add(mProfile.getTemplateDirSnap().getName());
+            }
+        }
+
+        return artifacts;
+    }
+
+    private List<String> getChecksumAlgorithms() {
+        var algorithms = new ArrayList<String>();
+        if (mProfile.isChecksumSha256()) {
+            algorithms.add(MessageDigestAlgorithms.SHA_256);
+        }
+        if (mProfile.isChecksumSha512()) {
+            algorithms.add(MessageDigestAlgorithms.SHA_512);
+        }
+        if (mProfile.isChecksumBlake3()) {
+            algorithms.add(Blake3.ALGORITHM);
+        }
+
+        return algorithms;
+    }
+
+    /**
+     * @return the extension of the checksum files of algorithm, like sha256
+     */
+    private String getChecksumExtension(String algorithm) {
+        return StringUtils.remove(algorithm, "-").toLowerCase(Locale.ROOT);
+    }
+
+    private String getChecksumManifestName(String algorithm) {
+        return switch (algorithm) {
+            case Blake3.ALGORITHM ->
+                "B3SUMS";
+            default ->
+                getChecksumExtension(algorithm).toUpperCase(Locale.ROOT) + "SUMS";
+        };
+    }
+
+    private List<String> getChecksumNames(String fileName) {
+        var names = new ArrayList<String>();
+        for (var algorithm : getChecksumAlgorithms()) {
+            names.add(fileName + "." + getChecksumExtension(algorithm));
+        }
+
+        return names;
+    }
+
+    /**
+     * @return a predicate of the names below contentDir that pathFilter
+     * excludes
+     */
+    private Predicate<String> getExclude(PathFilter pathFilter, String contentDir) {
+        var prefix = contentDir + "/";
+
+        return name -> name.startsWith(prefix) && pathFilter.isExcluded(name.substring(prefix.length()));
+    }
+
+    /**
+     * @return the fingerprint of everything that goes into target, by name
+     */
+    private TreeMap<String, String> getInputs(String target) throws IOException {
+        var inputs = new TreeMap<String, String>();
+        inputs.put("source", mFingerprinter.file(mProfile.getSourceFile()));
+        inputs.put("script.pre", mFingerprinter.file(mProfile.getScriptPre()));
+        inputs.put("script.post", mFingerprinter.file(mProfile.getScriptPost()));
+
+        var resourceDir = mProfile.getResourceDir();
+        if (resourceDir != null) {
+            inputs.put("resources/any", mFingerprinter.tree(new File(resourceDir, "any")));
+            if (!target.equals("any")) {
+                inputs.put("resources/" + target, mFingerprinter.tree(new File(resourceDir, target)));
+            }
+        }
+
+        if (!target.equals("any")) {
+            var jreDir = getJre(target);
+            inputs.put("jre", jreDir == null ? "none" : jreDir.getName() + ":" + mFingerprinter.tree(jreDir));
+        }
+
+        if (target.equals("linux")) {
+            if (mProfile.isTargetLinuxAppImage()) {
+                inputs.put("template.appimage", mFingerprinter.tree(mProfile.getTemplateDirAppImage()));
+                inputs.put("options.appimage", mFingerprinter.text(mOptions.get(OPT_APP_IMAGE_TOOL, "") + "\n" + mOptions.get(OPT_APP_IMAGE_OPTIONS, "")));
+            }
+            if (mProfile.isTargetLinuxSnap()) {
+                inputs.put("template.snap", mFingerprinter.tree(mProfile.getTemplateDirSnap()));
+                inputs.put("options.snap", mFingerprinter.text(mOptions.get(OPT_SNAP_OPTIONS, "")));
+            }
+        }
+
+        inputs.put("options", mFingerprinter.text(String.join("\n",
+                "manifest=" + BuildManifest.VERSION,
+                "basename=" + mProfile.getBasename(),
+                "streaming=" + mStreaming,
+                "workspace=" + (mWorkspaceDir != null),
+                "checksum.sha256=" + mProfile.isChecksumSha256(),
+                "checksum.sha512=" + mProfile.isChecksumSha512(),
+                "checksum.blake3=" + mProfile.isChecksumBlake3(),
+                "excludes=" + StringUtils.defaultString(mProfile.getExcludes()),
+                "appimage=" + mProfile.isTargetLinuxAppImage(),
+                "snap=" + mProfile.isTargetLinuxSnap()
+        )));
+
+        return inputs;
+    }
+
+    private File getJre(String target) {
+        return switch (target) {
+            case "linux" ->
+                mProfile.getJreLinux();
+            case "mac" ->
+                mProfile.getJreMac();
+            case "windows" ->
+                mProfile.getJreWindows();
+            default ->
+                null;
+        };
+    }
+
+    private String getJdkHomeSetting(String etcContent, String jreName) {
+        String key = StringUtils.contains(etcContent, "netbeans_jdkhome") ? "netbeans_jdkhome" : "jdkhome";
+
+        return String.format("\n\n# Added by Packager\n%s=\"%s\"\n", key, jreName);
+    }
+
+    /**
+     * Fingerprints the inputs of the targets and returns the ones that have
+     * to be built, the others are kept from the previous build.
+     */
+    private List<String> getOutdatedTargets(List<String> targets) throws IOException {
+        if (!mIncremental) {
+            return targets;
+        }
+
+        mFingerprinter = new Fingerprinter(mPreviousManifest == null ? Map.of() : mPreviousManifest.getFiles());
+        var outdatedTargets = new ArrayList<String>();
+
+        for (var target : targets) {
+            var inputs = getInputs(target);
+            var values = new ArrayList<String>();
+            inputs.forEach((key, value) -> values.add(key + "=" + value));
+            var fingerprint = Fingerprinter.combine(values);
+            var artifacts = getArtifacts(target);
+            var previousRecord = mPreviousManifest == null ? null : mPreviousManifest.getTarget(target);
+
+            if (previousRecord != null
+                    && fingerprint.equals(previousRecord.getFingerprint())
+                    && artifacts.stream().allMatch(artifact -> new File(mDestDir, artifact).exists())) {
+                mLog.out("up to date, skipping: " + target);
+                mManifest.putTarget(target, previousRecord);
+                continue;
+            }
+
+            if (previousRecord != null) {
+                var changedInputs = new ArrayList<String>();
+                inputs.forEach((key, value) -> {
+                    if (!value.equals(previousRecord.getInputs().get(key))) {
+                        changedInputs.add(key);
+                    }
+                });
+                mLog.out(String.format("outdated: %s (%s)", target, changedInputs.isEmpty() ? "missing artifacts" : String.join(", ", changedInputs)));
+                for (var artifact : previousRecord.getArtifacts()) {
+                    var file = new File(mDestDir, artifact);
+                    if (file.exists()) {
+                        mLog.out("remove: " + file.getAbsolutePath());
+                        if (!mDryRun) {
+                            FileUtils.forceDelete(file);
+                        }
+                    }
+                }
+            }
+
+            mTargetRecords.put(target, new BuildManifest.TargetRecord(fingerprint, inputs, artifacts));
+            outdatedTargets.add(target);
+        }
+
+        return outdatedTargets;
+    }
+
+    /**
+     * @return the rules of target, the ones that leave out the launchers of
+     * other platforms followed by the ones of the profile
+     */
+    private PathFilter getPathFilter(String target, Log log) {
+        var pathFilter = PathFilter.compile(target, PathFilter.getPlatformRules(target) + " " + StringUtils.defaultString(mProfile.getExcludes()));
+        if (!pathFilter.getRules().isEmpty()) {
+            log.out("exclude: " + String.join(" ", pathFilter.getRules()));
+        }
+
+        return pathFilter;
+    }
+
+    /**
+     * @return the tracker of the open step of the stage that runs on this
+     * thread, or of the stage, which add to the tracker of the operation
+     */
+    private ProgressTracker getProgressTracker() {
+        var stage = Stage.current();
+        if (stage == null) {
+            return mProgressTracker;
+        }
+        var step = stage.getStep();
+
+        return step != null ? step.getProgressTracker() : stage.getProgressTracker();
+    }
+
+    /**
+     * @return the size of the files below file, 0 if it is null or missing
+     */
+    private long getSize(File file) {
+        return file != null && file.exists() ? FileUtils.sizeOf(file) : 0;
+    }
+
+    /**
+     * @return the directories a run writes to, the destination and the
+     * workspace
+     */
+    private List<File> getRunDirs() {
+        var dirs = new ArrayList<File>();
+        dirs.add(mDestDir.getAbsoluteFile());
+        if (mWorkspaceDir != null) {
+            dirs.add(mWorkspaceDir.getAbsoluteFile());
+        }
+
+        return dirs;
+    }
+
+    private List<String> getTargets() {
+        var targets = new ArrayList<String>();
+        if (mProfile.isTargetAny()) {
+            targets.add("any");
+        }
+        if (mProfile.isTargetLinux()) {
+            targets.add("linux");
+        }
+        if (mProfile.isTargetMac()) {
+            targets.add("mac");
+        }
+        if (mProfile.isTargetWindows()) {
+            targets.add("windows");
+        }
+
+        return targets;
+    }
+
+    /**
+     * @return the timeout of a tool, in minutes in the options, zero for
+     * none
+     */
+    private Duration getTimeout(String key, int defaultMinutes) {
+        return Duration.ofMinutes(mOptions.getInt(key, defaultMinutes));
+    }
+
+    /**
+     * @return a directory name for the workspace of profile, readable and
+     * unique, two names that only differ in replaced characters get different
+     * hashes
+     */
+    static String getWorkspaceName(String profile) {
+        var hash = HexFormat.of().formatHex(ChecksumEngine.getMessageDigest("SHA-256").digest(profile.getBytes(StandardCharsets.UTF_8)));
+
+        return profile.replaceAll("[^\\w.-]", "_") + "-" + hash.substring(0, 12);
+    }
+
     private boolean initTargetDirectory() throws IOException {
         boolean result = true;
 
         if (!mDestDir.exists()) {
             FileUtils.forceMkdir(mDestDir);
+        } else if (mPreviousManifest != null) {
+            mLog.out("keep previous build: " + mDestDir.getAbsolutePath());
+            removeDeselectedTargets();
         } else {
             result = MainPanel.getDialogListener().onDialogRequest("Clear existing directory?", String.format("Clear\n%s\nand continue?", mDestDir.getAbsolutePath()));
             if (result) {
@@ -352,35 +1230,232 @@ public class Operation {
         return result;
     }
 
-    private void removeBin(File file) throws IOException {
-        mLog.out("remove: " + file.getAbsolutePath());
+    /**
+     * @return true if all stages of target are done, the AppImage and Snap
+     * stages belong to the linux target
+     */
+    private boolean isTargetDone(StageScheduler scheduler, String target) {
+        var names = target.equals("linux") ? List.of("linux", "appimage", "snap") : List.of(target);
+
+        return scheduler.getStages().stream()
+                .filter(stage -> names.contains(stage.getName()))
+                .allMatch(Stage::isDone);
+    }
+
+    private void logCompressionCache() {
+        mLog.out(String.format("\ncompression cache: %d hits, %d from disk, %d misses",
+                mCompressionCache.getHits(),
+                mCompressionCache.getDiskHits(),
+                mCompressionCache.getMisses()
+        ));
+
+        try {
+            long evicted = mCompressionCache.trim();
+            if (evicted > 0) {
+                mLog.out("compression cache: evicted " + FileUtils.byteCountToDisplaySize(evicted));
+            }
+        } catch (IOException ex) {
+            mLog.err("compression cache: " + ex.getMessage());
+        }
+    }
+
+    private void openSourceArchive() throws IOException {
+        mLog.out("open zip: " + mProfile.getSourceFile());
+        mSourceArchive = new SourceArchive(mProfile.getSourceFile());
+        mContentDir = mSourceArchive.getRootName();
+    }
+
+    /**
+     * @return the checksums of file from its checksum files, or null if one
+     * is missing
+     */
+    private Map<String, String> readChecksums(File file, List<String> algorithms) throws IOException {
+        var digests = new LinkedHashMap<String, String>();
+        for (var algorithm : algorithms) {
+            var digestFile = new File(file.getPath() + "." + getChecksumExtension(algorithm));
+            if (!digestFile.isFile()) {
+                return null;
+            }
+            digests.put(algorithm, StringUtils.substringBefore(FileUtils.readFileToString(digestFile, Charset.defaultCharset()).trim(), " "));
+        }
+
+        return digests;
+    }
+
+    /**
+     * Removes the artifacts of the targets in the previous build that are no
+     * longer selected, so that they are not taken for current ones.
+     */
+    private void removeDeselectedTargets() throws IOException {
+        var targets = getTargets();
+        for (var target : mPreviousManifest.getTargets()) {
+            if (targets.contains(target)) {
+                continue;
+            }
+
+            mLog.out("deselected: " + target);
+            for (var artifact : mPreviousManifest.getTarget(target).getArtifacts()) {
+                var file = new File(mDestDir, artifact);
+                if (file.exists()) {
+                    mLog.out("remove: " + file.getAbsolutePath());
+                    FileUtils.forceDelete(file);
+                }
+            }
+        }
+    }
+
+    private void setJdkHome(File contentDir, String jreName, Log log) throws IOException {
+        File etcFile = new File(contentDir, String.format("etc/%s.conf", mContentDir));
+        log.out("set jdkhome in " + etcFile.getAbsolutePath());
         if (!mDryRun) {
-            FileUtils.forceDelete(file);
+            String etcContent = FileUtils.readFileToString(etcFile, "utf-8");
+            FileUtils.write(etcFile, getJdkHomeSetting(etcContent, jreName), "utf-8", true);
         }
     }
 
-    private void removeBin(File binDir, boolean keepWindows) throws IOException {
-        if (mDryRun) {
-            mLog.out("remove non platform executable(s)");
-        } else {
-            for (File file : binDir.listFiles()) {
-                boolean exe = FilenameUtils.getExtension(file.getName()).equalsIgnoreCase("exe");
-                if ((keepWindows && !exe) || (!keepWindows && exe)) {
-                    removeBin(file);
+    /**
+     * Removes the partial artifacts of a cancelled operation in the
+     * background, once its stages have stopped, so that start returns at
+     * once. Then it ends the recording and the progress. A new run of the
+     * same destination or workspace waits for it.
+     */
+    private void startCleanup(StageScheduler scheduler) {
+        var cleanup = new CompletableFuture<Void>();
+        var dirs = getRunDirs();
+        for (var dir : dirs) {
+            CLEANUPS.put(dir, cleanup);
+        }
+
+        var thread = new Thread(() -> {
+            try {
+                while (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                    mLog.err("cleanup: waiting for the stages to stop");
+                }
+
+                close();
+
+                if (!mDryRun) {
+                    int removed = 0;
+                    for (var target : mOutdatedTargets) {
+                        if (isTargetDone(scheduler, target)) {
+                            continue;
+                        }
+                        for (var artifact : getArtifacts(target)) {
+                            var file = new File(mDestDir, artifact);
+                            if (file.exists()) {
+                                FileUtils.deleteQuietly(file);
+                                removed++;
+                            }
+                        }
+                    }
+                    mLog.out(String.format("cleanup: removed %d partial artifact(s)", removed));
+                }
+
+                if (mTempDir != null && mWorkspaceDir == null) {
+                    FileUtils.deleteDirectory(mTempDir);
                 }
+            } catch (InterruptedException ex) {
+                mLog.err("cleanup: interrupted, partial artifacts are left");
+            } catch (IOException ex) {
+                mLog.err("cleanup: " + ex.getMessage());
+            } finally {
+                stopRecording();
+                mProgressTracker.finish();
+                for (var dir : dirs) {
+                    CLEANUPS.remove(dir, cleanup);
+                }
+                cleanup.complete(null);
             }
+        }, "Operation-cleanup");
+        thread.start();
+    }
+
+    private void startRecording() {
+        try {
+            mRunRecording = new RunRecording(mProfile.getName(), mDestDir);
+            mLog.out("recording: " + mRunRecording.getFile().getAbsolutePath());
+        } catch (IOException ex) {
+            mLog.err("recording: " + ex.getMessage());
         }
     }
 
+    private void stopRecording() {
+        if (mRunRecording != null) {
+            try {
+                mRunRecording.close();
+            } catch (IOException ex) {
+                mLog.err("recording: " + ex.getMessage());
+            }
+            mRunRecording = null;
+        }
+    }
+
+    private void sync(TreeSync treeSync, File dir, Log log) throws IOException {
+        log.out("sync to: " + dir.getAbsolutePath());
+        if (!mDryRun) {
+            log.out("sync: " + treeSync.cancellationToken(mCancellationToken).progressTracker(getProgressTracker()).sync(dir.toPath()));
+        }
+    }
+
+    /**
+     * Extracts the zip contents, into a temp dir or synced into the
+     * workspace, checking for cancellation between blocks. Like zip4j did,
+     * TreeSync refuses entries that would be written outside of the dir.
+     */
     private void unzip() throws IOException {
-        mTempDir = Files.createTempDirectory("packager").toFile();
-        mTempDir.deleteOnExit();
-        mLog.out("create temp dir: " + mTempDir.getAbsolutePath());
-        mLog.out("unzip: " + mProfile.getSourceFile());
+        if (mWorkspaceDir != null) {
+            mTempDir = new File(mWorkspaceDir, "content");
+            mLog.out("sync zip contents to: " + mTempDir.getAbsolutePath());
+        } else {
+            mTempDir = Files.createTempDirectory("packager").toFile();
+            mTempDir.deleteOnExit();
+            mLog.out("create temp dir: " + mTempDir.getAbsolutePath());
+            mLog.out("unzip: " + mProfile.getSourceFile());
+        }
+
+        if (!mDryRun) {
+            try (var sourceArchive = new SourceArchive(mProfile.getSourceFile())) {
+                var statistics = new TreeSync()
+                        .add(sourceArchive, "")
+                        .cancellationToken(mCancellationToken)
+                        .progressTracker(getProgressTracker())
+                        .sync(mTempDir.toPath());
+                mLog.out("sync: " + statistics);
+                mContentDir = sourceArchive.getRootName();
+            }
+        }
+    }
+
+    private void writeChecksums(File file, Map<String, String> digests, Log log) throws IOException {
+        for (var algorithm : getChecksumAlgorithms()) {
+            File digestFile = new File(file.getAbsolutePath() + "." + getChecksumExtension(algorithm));
+            log.out("create checksum: " + digestFile.getAbsolutePath());
+            if (!mDryRun) {
+                FileUtils.writeStringToFile(digestFile, String.format("%s  %s", digests.get(algorithm), file.getName()), Charset.defaultCharset());
+            }
+        }
+
         if (!mDryRun) {
-            //execute(null, "unzip", "-q", mProfile.getSourceFile().getAbsolutePath(), "-d", mTempDir.getAbsolutePath());
-            new ZipFile(mProfile.getSourceFile()).extractAll(mTempDir.getAbsolutePath());
-            mContentDir = mTempDir.list()[0];
+            mChecksums.put(file, digests);
+        }
+    }
+
+    /**
+     * Logs the time and throughput of every stage and command, and saves
+     * them next to the artifacts.
+     */
+    private void writeReport(StageScheduler scheduler, Instant started, Duration wallTime, String result) {
+        var report = new RunReport(mProfile.getName(), started, wallTime, result);
+        scheduler.getStages().forEach(report::addStage);
+        mProcessSupervisor.getInvocations().forEach(report::addCommand);
+        mLog.out("\n" + report.toTable());
+
+        if (!mDryRun) {
+            try {
+                report.save(mDestDir);
+            } catch (IOException ex) {
+                mLog.err("report: " + ex.getMessage());
+            }
         }
     }
 }
@@ -24,13 +24,27 @@ import se.trixon.almond.util.OptionsBase;
 public class Options extends OptionsBase {
 
     public static final String DEFAULT_APP_IMAGE_OPTIONS = "-nv";
+    public static final int DEFAULT_APP_IMAGE_TIMEOUT = 30;
     public static final String DEFAULT_APP_IMAGE_TOOL = "/path/to/appimagetool-x86_64.AppImage";
+    public static final boolean DEFAULT_CACHE = true;
+    public static final String DEFAULT_CACHE_DIR = System.getProperty("user.home") + "/.cache/nbpackager";
+    public static final int DEFAULT_CACHE_SIZE = 2048;
+    public static final boolean DEFAULT_INCREMENTAL = true;
+    public static final boolean DEFAULT_PARALLEL_TARGETS = false;
+    public static final boolean DEFAULT_RECORD = false;
+    public static final int DEFAULT_SCRIPT_TIMEOUT = 0;
     public static final String DEFAULT_SNAP_OPTIONS = "";
+    public static final int DEFAULT_SNAP_TIMEOUT = 120;
+    public static final boolean DEFAULT_STAGING_LINKS = false;
+    public static final boolean DEFAULT_STREAMING = true;
+    public static final boolean DEFAULT_WORKSPACE = false;
     public static final String KEY_PROFILES = "profiles";
     public static final String KEY_PROFILE_APP_IMAGE_TEMPLATE = "app_image_template";
+    public static final String KEY_PROFILE_CHECKSUM_BLAKE3 = "checksum.blake3";
     public static final String KEY_PROFILE_CHECKSUM_SHA256 = "checksum.sha256";
     public static final String KEY_PROFILE_CHECKSUM_SHA512 = "checksum.sha512";
     public static final String KEY_PROFILE_DEST_DIR = "dest";
+    public static final String KEY_PROFILE_EXCLUDES = "excludes";
     public static final String KEY_PROFILE_JRE_LINUX = "jre.linux";
     public static final String KEY_PROFILE_JRE_MAC = "jre.mac";
     public static final String KEY_PROFILE_JRE_WINDOWS = "jre.windows";
@@ -46,8 +60,20 @@ public class Options extends OptionsBase {
     public static final String KEY_PROFILE_TARGET_SNAP = "target.snap";
     public static final String KEY_PROFILE_TARGET_WINDOWS = "target.windows";
     public static final String OPT_APP_IMAGE_OPTIONS = "appImage.options";
+    public static final String OPT_APP_IMAGE_TIMEOUT = "appImage.timeout";
     public static final String OPT_APP_IMAGE_TOOL = "appImage.tool";
+    public static final String OPT_CACHE = "cache";
+    public static final String OPT_CACHE_DIR = "cache.dir";
+    public static final String OPT_CACHE_SIZE = "cache.size";
+    public static final String OPT_INCREMENTAL = "incremental";
+    public static final String OPT_PARALLEL_TARGETS = "parallel.targets";
+    public static final String OPT_RECORD = "record";
+    public static final String OPT_SCRIPT_TIMEOUT = "script.timeout";
     public static final String OPT_SNAP_OPTIONS = "snap.options";
+    public static final String OPT_SNAP_TIMEOUT = "snap.timeout";
+    public static final String OPT_STAGING_LINKS = "staging.links";
+    public static final String OPT_STREAMING = "streaming";
+    public static final String OPT_WORKSPACE = "workspace";
 
     public static Options getInstance() {
         return OptionsHolder.INSTANCE;
@@ -42,18 +42,42 @@ public class OptionsPanel extends javax.swing.JPanel {
         appImageFileChooserPanel.setEnabled(SystemUtils.IS_OS_LINUX);
         appimagetoolOptionsTextField.setEnabled(SystemUtils.IS_OS_LINUX);
         snapcraftOptionsTextField.setEnabled(SystemUtils.IS_OS_LINUX);
+        appImageTimeoutSpinner.setEnabled(SystemUtils.IS_OS_LINUX);
+        snapTimeoutSpinner.setEnabled(SystemUtils.IS_OS_LINUX);
     }
 
     public void load() {
         appImageFileChooserPanel.setPath(mOptions.get(OPT_APP_IMAGE_TOOL, DEFAULT_APP_IMAGE_TOOL));
         appimagetoolOptionsTextField.setText(mOptions.get(OPT_APP_IMAGE_OPTIONS, DEFAULT_APP_IMAGE_OPTIONS));
         snapcraftOptionsTextField.setText(mOptions.get(OPT_SNAP_OPTIONS, DEFAULT_SNAP_OPTIONS));
+        parallelCheckBox.setSelected(mOptions.is(OPT_PARALLEL_TARGETS, DEFAULT_PARALLEL_TARGETS));
+        streamingCheckBox.setSelected(mOptions.is(OPT_STREAMING, DEFAULT_STREAMING));
+        incrementalCheckBox.setSelected(mOptions.is(OPT_INCREMENTAL, DEFAULT_INCREMENTAL));
+        workspaceCheckBox.setSelected(mOptions.is(OPT_WORKSPACE, DEFAULT_WORKSPACE));
+        linkCheckBox.setSelected(mOptions.is(OPT_STAGING_LINKS, DEFAULT_STAGING_LINKS));
+        recordCheckBox.setSelected(mOptions.is(OPT_RECORD, DEFAULT_RECORD));
+        cacheCheckBox.setSelected(mOptions.is(OPT_CACHE, DEFAULT_CACHE));
+        cacheSizeSpinner.setValue(mOptions.getInt(OPT_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        appImageTimeoutSpinner.setValue(mOptions.getInt(OPT_APP_IMAGE_TIMEOUT, DEFAULT_APP_IMAGE_TIMEOUT));
+        snapTimeoutSpinner.setValue(mOptions.getInt(OPT_SNAP_TIMEOUT, DEFAULT_SNAP_TIMEOUT));
+        scriptTimeoutSpinner.setValue(mOptions.getInt(OPT_SCRIPT_TIMEOUT, DEFAULT_SCRIPT_TIMEOUT));
     }
 
     public void save() {
         mOptions.put(OPT_APP_IMAGE_TOOL, appImageFileChooserPanel.getPath());
         mOptions.put(OPT_APP_IMAGE_OPTIONS, appimagetoolOptionsTextField.getText());
         mOptions.put(OPT_SNAP_OPTIONS, snapcraftOptionsTextField.getText());
+        mOptions.put(OPT_PARALLEL_TARGETS, parallelCheckBox.isSelected());
+        mOptions.put(OPT_STREAMING, streamingCheckBox.isSelected());
+        mOptions.put(OPT_INCREMENTAL, incrementalCheckBox.isSelected());
+        mOptions.put(OPT_WORKSPACE, workspaceCheckBox.isSelected());
+        mOptions.put(OPT_STAGING_LINKS, linkCheckBox.isSelected());
+        mOptions.put(OPT_RECORD, recordCheckBox.isSelected());
+        mOptions.put(OPT_CACHE, cacheCheckBox.isSelected());
+        mOptions.put(OPT_CACHE_SIZE, (Integer) cacheSizeSpinner.getValue());
+        mOptions.put(OPT_APP_IMAGE_TIMEOUT, (Integer) appImageTimeoutSpinner.getValue());
+        mOptions.put(OPT_SNAP_TIMEOUT, (Integer) snapTimeoutSpinner.getValue());
+        mOptions.put(OPT_SCRIPT_TIMEOUT, (Integer) scriptTimeoutSpinner.getValue());
     }
 
     public void setDocumentListener(DocumentListener documentListener) {
@@ -76,6 +100,21 @@ public class OptionsPanel extends javax.swing.JPanel {
         appimagetoolOptionsTextField = new javax.swing.JTextField();
         snapcraftOptionsLabel = new javax.swing.JLabel();
         snapcraftOptionsTextField = new javax.swing.JTextField();
+        parallelCheckBox = new javax.swing.JCheckBox();
+        streamingCheckBox = new javax.swing.JCheckBox();
+        incrementalCheckBox = new javax.swing.JCheckBox();
+        workspaceCheckBox = new javax.swing.JCheckBox();
+        linkCheckBox = new javax.swing.JCheckBox();
+        recordCheckBox = new javax.swing.JCheckBox();
+        cacheCheckBox = new javax.swing.JCheckBox();
+        cacheSizeLabel = new javax.swing.JLabel();
+        cacheSizeSpinner = new javax.swing.JSpinner();
+        appImageTimeoutLabel = new javax.swing.JLabel();
+        appImageTimeoutSpinner = new javax.swing.JSpinner();
+        snapTimeoutLabel = new javax.swing.JLabel();
+        snapTimeoutSpinner = new javax.swing.JSpinner();
+        scriptTimeoutLabel = new javax.swing.JLabel();
+        scriptTimeoutSpinner = new javax.swing.JSpinner();
 
         appImageFileChooserPanel.setHeader("AppImageTool");
 
@@ -83,6 +122,36 @@ public class OptionsPanel extends javax.swing.JPanel {
 
         snapcraftOptionsLabel.setText("Snapcraft options");
 
+        parallelCheckBox.setText("Build targets in parallel");
+
+        streamingCheckBox.setText("Stream packages without staging directories");
+
+        incrementalCheckBox.setText("Skip targets whose inputs did not change");
+
+        workspaceCheckBox.setText("Keep a workspace per profile and sync it instead of copying");
+
+        linkCheckBox.setText("Hardlink jre and template files into staging directories");
+
+        recordCheckBox.setText("Record each run with Flight Recorder");
+
+        cacheCheckBox.setText("Cache compressed entries between runs");
+
+        cacheSizeLabel.setText("Cache size limit (MB)");
+
+        cacheSizeSpinner.setModel(new javax.swing.SpinnerNumberModel(2048, 0, 1048576, 256));
+
+        appImageTimeoutLabel.setText("AppImageTool timeout (min, 0 for none)");
+
+        appImageTimeoutSpinner.setModel(new javax.swing.SpinnerNumberModel(30, 0, 10080, 5));
+
+        snapTimeoutLabel.setText("Snapcraft timeout (min, 0 for none)");
+
+        snapTimeoutSpinner.setModel(new javax.swing.SpinnerNumberModel(120, 0, 10080, 5));
+
+        scriptTimeoutLabel.setText("Script timeout (min, 0 for none)");
+
+        scriptTimeoutSpinner.setModel(new javax.swing.SpinnerNumberModel(0, 0, 10080, 5));
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(this);
         this.setLayout(layout);
         layout.setHorizontalGroup(
@@ -95,7 +164,30 @@ public class OptionsPanel extends javax.swing.JPanel {
                     .addGroup(layout.createSequentialGroup()
                         .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                             .addComponent(appimagetoolOptionsLabel)
-                            .addComponent(snapcraftOptionsLabel))
+                            .addComponent(snapcraftOptionsLabel)
+                            .addComponent(parallelCheckBox)
+                            .addComponent(streamingCheckBox)
+                            .addComponent(incrementalCheckBox)
+                            .addComponent(workspaceCheckBox)
+                            .addComponent(linkCheckBox)
+                            .addComponent(recordCheckBox)
+                            .addComponent(cacheCheckBox)
+                            .addGroup(layout.createSequentialGroup()
+                                .addComponent(cacheSizeLabel)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                                .addComponent(cacheSizeSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 100, javax.swing.GroupLayout.PREFERRED_SIZE))
+                            .addGroup(layout.createSequentialGroup()
+                                .addComponent(appImageTimeoutLabel)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                                .addComponent(appImageTimeoutSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 100, javax.swing.GroupLayout.PREFERRED_SIZE))
+                            .addGroup(layout.createSequentialGroup()
+                                .addComponent(snapTimeoutLabel)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                                .addComponent(snapTimeoutSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 100, javax.swing.GroupLayout.PREFERRED_SIZE))
+                            .addGroup(layout.createSequentialGroup()
+                                .addComponent(scriptTimeoutLabel)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                                .addComponent(scriptTimeoutSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 100, javax.swing.GroupLayout.PREFERRED_SIZE)))
                         .addGap(0, 0, Short.MAX_VALUE))
                     .addComponent(snapcraftOptionsTextField))
                 .addContainerGap())
@@ -113,15 +205,60 @@ public class OptionsPanel extends javax.swing.JPanel {
                 .addComponent(snapcraftOptionsLabel)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(snapcraftOptionsTextField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
-                .addContainerGap(101, Short.MAX_VALUE))
+                .addGap(18, 18, 18)
+                .addComponent(parallelCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(streamingCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(incrementalCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(workspaceCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(linkCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(recordCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cacheCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(cacheSizeLabel)
+                    .addComponent(cacheSizeSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(appImageTimeoutLabel)
+                    .addComponent(appImageTimeoutSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(snapTimeoutLabel)
+                    .addComponent(snapTimeoutSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(scriptTimeoutLabel)
+                    .addComponent(scriptTimeoutSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addContainerGap(0, Short.MAX_VALUE))
         );
     }// </editor-fold>//GEN-END:initComponents
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private se.trixon.almond.util.swing.dialogs.FileChooserPanel appImageFileChooserPanel;
+    private javax.swing.JLabel appImageTimeoutLabel;
+    private javax.swing.JSpinner appImageTimeoutSpinner;
     private javax.swing.JLabel appimagetoolOptionsLabel;
     private javax.swing.JTextField appimagetoolOptionsTextField;
+    private javax.swing.JCheckBox cacheCheckBox;
+    private javax.swing.JLabel cacheSizeLabel;
+    private javax.swing.JSpinner cacheSizeSpinner;
+    private javax.swing.JCheckBox incrementalCheckBox;
+    private javax.swing.JCheckBox linkCheckBox;
+    private javax.swing.JCheckBox parallelCheckBox;
+    private javax.swing.JCheckBox recordCheckBox;
+    private javax.swing.JLabel scriptTimeoutLabel;
+    private javax.swing.JSpinner scriptTimeoutSpinner;
+    private javax.swing.JLabel snapTimeoutLabel;
+    private javax.swing.JSpinner snapTimeoutSpinner;
     private javax.swing.JLabel snapcraftOptionsLabel;
     private javax.swing.JTextField snapcraftOptionsTextField;
+    private javax.swing.JCheckBox streamingCheckBox;
+    private javax.swing.JCheckBox workspaceCheckBox;
     // End of variables declaration//GEN-END:variables
 }
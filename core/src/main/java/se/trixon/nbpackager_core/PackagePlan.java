@@ -0,0 +1,116 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The entries of a package in archive order, the in-memory counterpart of a
+ * staged target directory.
+ * <p>
+ * Adding an entry with a name that is already present replaces it in place,
+ * the same way a later copy overwrites an earlier one on disk.
+ *
+ * @author Patrik Karlström
+ */
+public class PackagePlan {
+
+    private final LinkedHashMap<String, ArchiveEntry> mEntries = new LinkedHashMap<>();
+
+    public PackagePlan() {
+    }
+
+    public void add(ArchiveEntry entry) {
+        addParents(entry.getName());
+        mEntries.put(entry.getName(), entry);
+    }
+
+    /**
+     * Adds a file tree.
+     *
+     * @param path
+     * @param name the name of the tree inside the archive
+     * @param contentOnly add the content of path under name, the way
+     * <code>cp -r path/. name</code> would
+     * @throws IOException
+     */
+    public void addTree(Path path, String name, boolean contentOnly) throws IOException {
+        if (!contentOnly) {
+            add(ArchiveEntry.of(path, name));
+        }
+
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try (var stream = Files.list(path)) {
+                for (var child : stream.sorted().toList()) {
+                    addTree(child, name + "/" + child.getFileName().toString(), false);
+                }
+            }
+        }
+    }
+
+    public boolean contains(String name) {
+        return mEntries.containsKey(name);
+    }
+
+    public ArchiveEntry get(String name) {
+        return mEntries.get(name);
+    }
+
+    public Collection<ArchiveEntry> getEntries() {
+        return mEntries.values();
+    }
+
+    /**
+     * @return the uncompressed size of all entries
+     */
+    public long getSize() {
+        return mEntries.values().stream().mapToLong(ArchiveEntry::getSize).sum();
+    }
+
+    /**
+     * Removes the entries with names matching the predicate.
+     *
+     * @param predicate
+     * @return the number of removed entries
+     */
+    public int removeIf(Predicate<String> predicate) {
+        int size = mEntries.size();
+        mEntries.keySet().removeIf(predicate);
+
+        return size - mEntries.size();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    private void addParents(String name) {
+        int index = name.lastIndexOf('/', name.length() - 2);
+        if (index > 0) {
+            var parent = name.substring(0, index + 1);
+            if (!mEntries.containsKey(parent)) {
+                addParents(parent);
+                mEntries.put(parent, new ArchiveEntry(ArchiveEntry.Type.DIRECTORY, parent, ArchiveEntry.S_IFDIR | 0755, System.currentTimeMillis(), null, null, 0));
+            }
+        }
+    }
+}
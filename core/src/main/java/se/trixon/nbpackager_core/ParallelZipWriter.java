@@ -0,0 +1,792 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive where the entries are deflated in parallel on an
+ * executor and written in the order they were added.
+ * <p>
+ * Files larger than one chunk are split and the chunks are deflated
+ * independently, each one primed with the last 32 KiB of the previous chunk
+ * as dictionary, and concatenated into a single deflate stream.
+ * <p>
+ * Entries backed by a {@link SourceArchive} are copied as they are stored
+ * there, compressed bytes, CRC and sizes, without being inflated.
+ * <p>
+ * Unix permissions and symbolic links are stored the way Info-ZIP does and
+ * Zip64 records are written when sizes, offsets or the number of entries
+ * require it.
+ * <p>
+ * The archive is written to a temporary file next to the target and moved in
+ * place by {@link #finish()}. Closing the writer without finishing it, after
+ * a failure or a cancel, deletes the temporary file.
+ *
+ * @author Patrik Karlström
+ */
+public class ParallelZipWriter implements Closeable {
+
+    static final int CHUNK_SIZE = 1 << 20;
+    static final int DICTIONARY_SIZE = 1 << 15;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int METHOD_STORED = 0;
+    private static final long STREAMED_ZIP64_LIMIT = 0xF0000000L;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private final RunRecording.ArchiveEvent mArchiveEvent = new RunRecording.ArchiveEvent();
+    private CancellationToken mCancellationToken = CancellationToken.NONE;
+    private final List<CentralRecord> mCentralRecords = new ArrayList<>();
+    private boolean mClosed;
+    private final File mFile;
+    private CompressionCache mCompressionCache;
+    private final ExecutorService mExecutorService;
+    private final int mLevel;
+    private final int mMaxPending;
+    private final OutputStream mOutputStream;
+    private final ArrayDeque<PendingEntry> mPendingEntries = new ArrayDeque<>();
+    private long mPosition;
+    private ProgressTracker mProgressTracker = ProgressTracker.NONE;
+    private int mSubmittedChunks;
+    private final Path mTempFile;
+
+    public ParallelZipWriter(File file, ExecutorService executorService, int parallelism) throws IOException {
+        this(file, executorService, parallelism, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelZipWriter(File file, ExecutorService executorService, int parallelism, int level) throws IOException {
+        this(file, executorService, parallelism, level, null);
+    }
+
+    /**
+     * @param file
+     * @param executorService
+     * @param parallelism
+     * @param level
+     * @param digest fed with every byte written to file, or null
+     * @throws IOException
+     */
+    public ParallelZipWriter(File file, ExecutorService executorService, int parallelism, int level, MultiDigest digest) throws IOException {
+        mExecutorService = executorService;
+        mMaxPending = Math.max(2, parallelism * 4);
+        mLevel = level;
+        mFile = file;
+        mTempFile = file.toPath().resolveSibling(file.getName() + ".part");
+        var outputStream = Files.newOutputStream(mTempFile);
+        if (digest != null) {
+            outputStream = digest.wrap(outputStream);
+        }
+        mOutputStream = new BufferedOutputStream(outputStream, 1 << 16);
+        mArchiveEvent.mPath = file.getAbsolutePath();
+        mArchiveEvent.begin();
+    }
+
+    public void add(ArchiveEntry entry) throws IOException {
+        mCancellationToken.check();
+        if (entry.getType() == ArchiveEntry.Type.FILE) {
+            mProgressTracker.addTotal(entry.getSize(), 1);
+        }
+        mPendingEntries.add(new PendingEntry(entry));
+        submitChunks();
+
+        while (mPendingEntries.size() > mMaxPending) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Sets a token that stops the writing and the compression between
+     * chunks, with an {@link InterruptedIOException}.
+     *
+     * @param cancellationToken
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        mCancellationToken = cancellationToken;
+    }
+
+    /**
+     * Sets a cache to look up and store the compressed chunks in.
+     *
+     * @param compressionCache
+     */
+    public void setCompressionCache(CompressionCache compressionCache) {
+        mCompressionCache = compressionCache;
+    }
+
+    /**
+     * Sets a tracker that counts the uncompressed bytes and the files as
+     * they are added and written, large files by chunk.
+     *
+     * @param progressTracker
+     */
+    public void setProgressTracker(ProgressTracker progressTracker) {
+        mProgressTracker = progressTracker;
+    }
+
+    /**
+     * Adds path and, if it is a directory, everything below it.
+     *
+     * @param path
+     * @param name the name of path inside the archive
+     * @throws IOException
+     */
+    public void addTree(Path path, String name) throws IOException {
+        add(ArchiveEntry.of(path, name));
+
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            List<Path> children;
+            try (var stream = Files.list(path)) {
+                children = stream.sorted().collect(Collectors.toList());
+            }
+
+            for (var child : children) {
+                addTree(child, name + "/" + child.getFileName());
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary file unless the archive was finished.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        try {
+            for (var pendingEntry : mPendingEntries) {
+                for (var chunk : pendingEntry.mChunks) {
+                    chunk.cancel(true);
+                }
+            }
+            mOutputStream.close();
+        } finally {
+            Files.deleteIfExists(mTempFile);
+        }
+    }
+
+    /**
+     * Writes the pending entries and the central directory and moves the
+     * archive to its file.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (mClosed) {
+            throw new IOException("Archive already closed: " + mFile);
+        }
+
+        while (!mPendingEntries.isEmpty()) {
+            writeNext();
+        }
+        writeCentralDirectory();
+        mOutputStream.close();
+        mCancellationToken.check();
+        Files.move(mTempFile, mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mClosed = true;
+
+        mArchiveEvent.mEntries = mCentralRecords.size();
+        mArchiveEvent.mBytesIn = mCentralRecords.stream().mapToLong(record -> record.mSize).sum();
+        mArchiveEvent.mBytesOut = mPosition;
+        mArchiveEvent.commit();
+    }
+
+    /**
+     * @param entry
+     * @return true if the entry is copied unchanged from its source archive
+     */
+    static boolean isPassthrough(ArchiveEntry entry) {
+        var sourceEntry = entry.getSourceEntry();
+
+        return sourceEntry != null
+                && (sourceEntry.getFlags() & 0x0001) == 0
+                && (sourceEntry.getMethod() == METHOD_STORED || sourceEntry.getMethod() == METHOD_DEFLATED);
+    }
+
+    /**
+     * Combines the CRC-32 of two consecutive blocks, as crc32_combine in
+     * zlib.
+     */
+    static long combineCrc(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        var even = new long[32];
+        var odd = new long[32];
+
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return (crc1 ^ crc2) & 0xFFFFFFFFL;
+    }
+
+    static long toDosTime(long millis) {
+        var dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        int year = dateTime.getYear();
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+
+        return (long) (year - 1980) << 25
+                | dateTime.getMonthValue() << 21
+                | dateTime.getDayOfMonth() << 16
+                | dateTime.getHour() << 11
+                | dateTime.getMinute() << 5
+                | dateTime.getSecond() >> 1;
+    }
+
+    private Chunk deflate(ArchiveEntry entry, long start, int length, boolean last) throws IOException {
+        mCancellationToken.check();
+        int dictionaryLength = (int) Math.min(DICTIONARY_SIZE, start);
+        var input = entry.read(start - dictionaryLength, dictionaryLength + length);
+        boolean single = start == 0 && last;
+
+        if (mCompressionCache == null) {
+            return deflate(input, dictionaryLength, length, single, last);
+        }
+
+        var parameters = String.format("%d-%d-%s", mLevel, dictionaryLength, single ? "single" : last ? "last" : "sync");
+        var key = CompressionCache.key(input, 0, input.length, parameters);
+
+        return mCompressionCache.get(key, length, () -> deflate(input, dictionaryLength, length, single, last));
+    }
+
+    private Chunk deflate(byte[] input, int dictionaryLength, int length, boolean single, boolean last) {
+        var crc = new CRC32();
+        crc.update(input, dictionaryLength, length);
+
+        var deflater = new Deflater(mLevel, true);
+        try {
+            if (dictionaryLength > 0) {
+                deflater.setDictionary(input, 0, dictionaryLength);
+            }
+            deflater.setInput(input, dictionaryLength, length);
+
+            var outputStream = new ByteArrayOutputStream(length / 2 + 64);
+            var buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    outputStream.write(buffer, 0, count);
+                }
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    outputStream.write(buffer, 0, count);
+                } while (count == buffer.length || !deflater.needsInput());
+            }
+
+            var chunk = new Chunk(outputStream.toByteArray(), crc.getValue(), length);
+            if (single && chunk.mData.length >= length) {
+                return new Chunk(input, crc.getValue(), length, true);
+            }
+
+            return chunk;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses an entry that can only be read from the start in one go.
+     */
+    private Chunk deflate(ArchiveEntry entry) throws IOException {
+        var crc = new CRC32();
+        var deflater = new Deflater(mLevel, true);
+        try (var inputStream = entry.openStream()) {
+            var outputStream = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, entry.getSize() / 2 + 64));
+            var input = new byte[64 * 1024];
+            var buffer = new byte[64 * 1024];
+            long length = 0;
+            int count;
+            while ((count = inputStream.read(input)) >= 0) {
+                mCancellationToken.check();
+                crc.update(input, 0, count);
+                length += count;
+                deflater.setInput(input, 0, count);
+                while (!deflater.needsInput()) {
+                    outputStream.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                outputStream.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            if (length != entry.getSize()) {
+                throw new IOException(String.format("size mismatch, expected %d but read %d: %s", entry.getSize(), length, entry.getName()));
+            }
+            if (outputStream.size() >= length) {
+                return new Chunk(entry.read(0, (int) length), crc.getValue(), (int) length, true);
+            }
+
+            return new Chunk(outputStream.toByteArray(), crc.getValue(), (int) length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+
+        return sum;
+    }
+
+    private ByteBuffer buffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        mOutputStream.write(buffer.array(), 0, buffer.position());
+        mPosition += buffer.position();
+        mProgressTracker.addWritten(buffer.position());
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        mOutputStream.write(bytes);
+        mPosition += bytes.length;
+        mProgressTracker.addWritten(bytes.length);
+    }
+
+    private long write(InputStream inputStream) throws IOException {
+        var buffer = new byte[64 * 1024];
+        long total = 0;
+        int count;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            mCancellationToken.check();
+            mOutputStream.write(buffer, 0, count);
+            total += count;
+        }
+        mPosition += total;
+        mProgressTracker.addWritten(total);
+
+        return total;
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralOffset = mPosition;
+
+        for (var record : mCentralRecords) {
+            boolean zip64Size = record.mSize >= ZIP64_LIMIT || record.mCompressedSize >= ZIP64_LIMIT;
+            boolean zip64Offset = record.mOffset >= ZIP64_LIMIT;
+            int zip64Length = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+            int extraLength = 9 + (zip64Length > 0 ? 4 + zip64Length : 0);
+
+            var buffer = buffer(46 + record.mName.length + extraLength);
+            buffer.putInt(0x02014b50);
+            buffer.putShort((short) (3 << 8 | 45));
+            buffer.putShort((short) record.mVersionNeeded);
+            buffer.putShort((short) record.mFlags);
+            buffer.putShort((short) record.mMethod);
+            buffer.putInt((int) record.mDosTime);
+            buffer.putInt((int) record.mCrc);
+            buffer.putInt((int) (zip64Size ? ZIP64_LIMIT : record.mCompressedSize));
+            buffer.putInt((int) (zip64Size ? ZIP64_LIMIT : record.mSize));
+            buffer.putShort((short) record.mName.length);
+            buffer.putShort((short) extraLength);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putInt(record.mExternalAttributes);
+            buffer.putInt((int) (zip64Offset ? ZIP64_LIMIT : record.mOffset));
+            buffer.put(record.mName);
+            buffer.putShort((short) 0x5455);
+            buffer.putShort((short) 5);
+            buffer.put((byte) 1);
+            buffer.putInt((int) (record.mLastModified / 1000));
+            if (zip64Length > 0) {
+                buffer.putShort((short) 0x0001);
+                buffer.putShort((short) zip64Length);
+                if (zip64Size) {
+                    buffer.putLong(record.mSize);
+                    buffer.putLong(record.mCompressedSize);
+                }
+                if (zip64Offset) {
+                    buffer.putLong(record.mOffset);
+                }
+            }
+            write(buffer);
+        }
+
+        long centralSize = mPosition - centralOffset;
+        int count = mCentralRecords.size();
+
+        if (count >= 0xFFFF || centralOffset >= ZIP64_LIMIT || centralSize >= ZIP64_LIMIT) {
+            long zip64EndOffset = mPosition;
+            var buffer = buffer(56 + 20);
+            buffer.putInt(0x06064b50);
+            buffer.putLong(44);
+            buffer.putShort((short) (3 << 8 | 45));
+            buffer.putShort((short) 45);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(count);
+            buffer.putLong(count);
+            buffer.putLong(centralSize);
+            buffer.putLong(centralOffset);
+
+            buffer.putInt(0x07064b50);
+            buffer.putInt(0);
+            buffer.putLong(zip64EndOffset);
+            buffer.putInt(1);
+            write(buffer);
+        }
+
+        var buffer = buffer(22);
+        buffer.putInt(0x06054b50);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) Math.min(count, 0xFFFF));
+        buffer.putShort((short) Math.min(count, 0xFFFF));
+        buffer.putInt((int) Math.min(centralSize, ZIP64_LIMIT));
+        buffer.putInt((int) Math.min(centralOffset, ZIP64_LIMIT));
+        buffer.putShort((short) 0);
+        write(buffer);
+        mOutputStream.flush();
+    }
+
+    private Chunk getChunk(PendingEntry pendingEntry) throws IOException {
+        var future = pendingEntry.mChunks.poll();
+        mSubmittedChunks--;
+
+        try {
+            mCancellationToken.check();
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing " + pendingEntry.mEntry.getName());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Submits chunks, in archive order, until the window of chunks in flight
+     * is full.
+     */
+    private void submitChunks() {
+        for (var pendingEntry : mPendingEntries) {
+            var entry = pendingEntry.mEntry;
+            if (entry.getType() != ArchiveEntry.Type.FILE || isPassthrough(entry)) {
+                continue;
+            }
+
+            long size = entry.getSize();
+            while (pendingEntry.mNextPosition < size) {
+                if (mSubmittedChunks >= mMaxPending) {
+                    return;
+                }
+
+                if (!entry.isRandomAccess()) {
+                    pendingEntry.mChunks.add(mExecutorService.submit(() -> deflate(entry)));
+                    pendingEntry.mNextPosition = size;
+                    mSubmittedChunks++;
+                    break;
+                }
+
+                long start = pendingEntry.mNextPosition;
+                int length = (int) Math.min(CHUNK_SIZE, size - start);
+                boolean last = start + length == size;
+                pendingEntry.mChunks.add(mExecutorService.submit(() -> deflate(entry, start, length, last)));
+                pendingEntry.mNextPosition += length;
+                mSubmittedChunks++;
+            }
+        }
+    }
+
+    private void writeLocalHeader(CentralRecord record, boolean zip64) throws IOException {
+        int extraLength = 9 + (zip64 ? 20 : 0);
+        boolean streamed = (record.mFlags & 0x0008) != 0;
+
+        var buffer = buffer(30 + record.mName.length + extraLength);
+        buffer.putInt(0x04034b50);
+        buffer.putShort((short) record.mVersionNeeded);
+        buffer.putShort((short) record.mFlags);
+        buffer.putShort((short) record.mMethod);
+        buffer.putInt((int) record.mDosTime);
+        buffer.putInt((int) record.mCrc);
+        if (streamed) {
+            buffer.putInt(zip64 ? (int) ZIP64_LIMIT : 0);
+            buffer.putInt(zip64 ? (int) ZIP64_LIMIT : 0);
+        } else {
+            buffer.putInt((int) (zip64 ? ZIP64_LIMIT : record.mCompressedSize));
+            buffer.putInt((int) (zip64 ? ZIP64_LIMIT : record.mSize));
+        }
+        buffer.putShort((short) record.mName.length);
+        buffer.putShort((short) extraLength);
+        buffer.put(record.mName);
+        buffer.putShort((short) 0x5455);
+        buffer.putShort((short) 5);
+        buffer.put((byte) 1);
+        buffer.putInt((int) (record.mLastModified / 1000));
+        if (zip64) {
+            buffer.putShort((short) 0x0001);
+            buffer.putShort((short) 16);
+            buffer.putLong(streamed ? 0 : record.mSize);
+            buffer.putLong(streamed ? 0 : record.mCompressedSize);
+        }
+        write(buffer);
+    }
+
+    private void writeNext() throws IOException {
+        var pendingEntry = mPendingEntries.peek();
+        var entry = pendingEntry.mEntry;
+
+        var record = new CentralRecord();
+        record.mName = entry.getName().getBytes(StandardCharsets.UTF_8);
+        record.mFlags = 0x0800;
+        record.mLastModified = entry.getLastModified();
+        record.mDosTime = toDosTime(entry.getLastModified());
+        record.mExternalAttributes = entry.getMode() << 16 | (entry.isDirectory() ? 0x10 : 0);
+        record.mOffset = mPosition;
+
+        if (entry.getType() == ArchiveEntry.Type.FILE && isPassthrough(entry)) {
+            writeRaw(entry, record);
+            mProgressTracker.add(entry.getSize(), 1);
+        } else if (entry.getType() == ArchiveEntry.Type.FILE && entry.isRandomAccess() && entry.getSize() > CHUNK_SIZE) {
+            writeStreamed(pendingEntry, record);
+            mProgressTracker.add(0, 1);
+        } else {
+            byte[] data = null;
+            record.mMethod = METHOD_STORED;
+
+            if (entry.isSymlink()) {
+                data = entry.read(0, (int) entry.getSize());
+                var crc = new CRC32();
+                crc.update(data);
+                record.mCrc = crc.getValue();
+                record.mSize = data.length;
+                record.mCompressedSize = data.length;
+            } else if (!pendingEntry.mChunks.isEmpty()) {
+                var chunk = getChunk(pendingEntry);
+                data = chunk.mData;
+                record.mMethod = chunk.mStored ? METHOD_STORED : METHOD_DEFLATED;
+                record.mCrc = chunk.mCrc;
+                record.mSize = chunk.mLength;
+                record.mCompressedSize = chunk.mData.length;
+            }
+
+            record.mVersionNeeded = record.mOffset >= ZIP64_LIMIT ? 45 : (record.mMethod == METHOD_DEFLATED ? 20 : 10);
+            writeLocalHeader(record, false);
+            if (data != null) {
+                write(data);
+            }
+            if (entry.getType() == ArchiveEntry.Type.FILE) {
+                mProgressTracker.add(record.mSize, 1);
+            }
+        }
+
+        mPendingEntries.poll();
+        mCentralRecords.add(record);
+        submitChunks();
+    }
+
+    /**
+     * Copies the compressed data of an entry from its source archive.
+     */
+    private void writeRaw(ArchiveEntry entry, CentralRecord record) throws IOException {
+        var sourceEntry = entry.getSourceEntry();
+        record.mMethod = sourceEntry.getMethod();
+        record.mCrc = sourceEntry.getCrc();
+        record.mSize = sourceEntry.getSize();
+        record.mCompressedSize = sourceEntry.getCompressedSize();
+
+        boolean zip64 = record.mSize >= ZIP64_LIMIT || record.mCompressedSize >= ZIP64_LIMIT;
+        record.mVersionNeeded = zip64 || record.mOffset >= ZIP64_LIMIT ? 45 : (record.mMethod == METHOD_DEFLATED ? 20 : 10);
+        writeLocalHeader(record, zip64);
+
+        try (var inputStream = entry.getSourceArchive().openRawStream(sourceEntry)) {
+            long count = write(inputStream);
+            if (count != record.mCompressedSize) {
+                throw new IOException(String.format("size mismatch, expected %d but copied %d: %s", record.mCompressedSize, count, entry.getName()));
+            }
+        }
+    }
+
+    /**
+     * Writes an entry of several chunks as they complete, with the sizes and
+     * the CRC in a data descriptor after the data, so that only the chunks in
+     * flight are held in memory.
+     */
+    private void writeStreamed(PendingEntry pendingEntry, CentralRecord record) throws IOException {
+        var entry = pendingEntry.mEntry;
+        boolean zip64 = entry.getSize() >= STREAMED_ZIP64_LIMIT;
+
+        record.mMethod = METHOD_DEFLATED;
+        record.mFlags |= 0x0008;
+        record.mVersionNeeded = zip64 || record.mOffset >= ZIP64_LIMIT ? 45 : 20;
+        writeLocalHeader(record, zip64);
+
+        while (record.mSize < entry.getSize()) {
+            if (pendingEntry.mChunks.isEmpty()) {
+                submitChunks();
+            }
+            var chunk = getChunk(pendingEntry);
+            write(chunk.mData);
+            record.mCrc = combineCrc(record.mCrc, chunk.mCrc, chunk.mLength);
+            record.mSize += chunk.mLength;
+            record.mCompressedSize += chunk.mData.length;
+            mProgressTracker.add(chunk.mLength, 0);
+            submitChunks();
+        }
+
+        var buffer = buffer(24);
+        buffer.putInt(0x08074b50);
+        buffer.putInt((int) record.mCrc);
+        if (zip64) {
+            buffer.putLong(record.mCompressedSize);
+            buffer.putLong(record.mSize);
+        } else {
+            buffer.putInt((int) record.mCompressedSize);
+            buffer.putInt((int) record.mSize);
+        }
+        write(buffer);
+    }
+
+    private static class CentralRecord {
+
+        private long mCompressedSize;
+        private long mCrc;
+        private long mDosTime;
+        private int mExternalAttributes;
+        private int mFlags;
+        private long mLastModified;
+        private int mMethod;
+        private byte[] mName;
+        private long mOffset;
+        private long mSize;
+        private int mVersionNeeded;
+    }
+
+    static class Chunk {
+
+        private final long mCrc;
+        private final byte[] mData;
+        private final int mLength;
+        private final boolean mStored;
+
+        public Chunk(byte[] data, long crc, int length) {
+            this(data, crc, length, false);
+        }
+
+        public Chunk(byte[] data, long crc, int length, boolean stored) {
+            mData = data;
+            mCrc = crc;
+            mLength = length;
+            mStored = stored;
+        }
+
+        public long getCrc() {
+            return mCrc;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        public boolean isStored() {
+            return mStored;
+        }
+    }
+
+    private static class PendingEntry {
+
+        private final ArrayDeque<Future<Chunk>> mChunks = new ArrayDeque<>();
+        private final ArchiveEntry mEntry;
+        private long mNextPosition;
+
+        public PendingEntry(ArchiveEntry entry) {
+            mEntry = entry;
+        }
+    }
+}
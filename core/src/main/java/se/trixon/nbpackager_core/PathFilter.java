@@ -0,0 +1,208 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Decides which paths of a package to leave out, from glob rules in the
+ * style of .gitignore.
+ * <p>
+ * A rule excludes the paths it matches and everything below them, a rule
+ * starting with ! includes them again, the last matching rule wins. A rule
+ * without a slash matches a name at any depth, like <code>src.zip</code>,
+ * other rules match from the root of the package, like
+ * <code>bin/*.exe</code>. <code>*</code> and <code>?</code> do not match a
+ * slash, <code>**</code> does, <code>[abc]</code> and <code>{a,b}</code> are
+ * supported. A rule can be limited to one target by prefixing it with the
+ * target name, like <code>windows:bin/*.sh</code>.
+ * <p>
+ * Consecutive rules of the same kind are compiled into one pattern.
+ *
+ * @author Patrik Karlström
+ */
+public class PathFilter {
+
+    private final List<Boolean> mIncludes = new ArrayList<>();
+    private final List<Pattern> mPatterns = new ArrayList<>();
+    private final List<String> mRules = new ArrayList<>();
+
+    /**
+     * @param target the rules of other targets are ignored
+     * @param rules separated by white space
+     * @return
+     */
+    public static PathFilter compile(String target, String rules) {
+        var pathFilter = new PathFilter();
+        var group = new ArrayList<String>();
+        boolean groupInclude = false;
+
+        for (var rule : StringUtils.split(StringUtils.defaultString(rules))) {
+            if (rule.matches("\\w+:.*")) {
+                if (!StringUtils.substringBefore(rule, ":").equalsIgnoreCase(target)) {
+                    continue;
+                }
+                rule = StringUtils.substringAfter(rule, ":");
+            }
+
+            boolean include = rule.startsWith("!");
+            var glob = StringUtils.removeEnd(include ? rule.substring(1) : rule, "/");
+            if (glob.isEmpty()) {
+                continue;
+            }
+
+            if (include != groupInclude && !group.isEmpty()) {
+                pathFilter.addGroup(group, groupInclude);
+                group.clear();
+            }
+            group.add(toRegex(glob));
+            groupInclude = include;
+            pathFilter.mRules.add(rule);
+        }
+
+        if (!group.isEmpty()) {
+            pathFilter.addGroup(group, groupInclude);
+        }
+
+        return pathFilter;
+    }
+
+    /**
+     * @return the rules that leave out the launchers of other platforms from
+     * the bin directory of target
+     */
+    public static String getPlatformRules(String target) {
+        return switch (target) {
+            case "any" ->
+                "";
+            case "windows" ->
+                "bin/* !bin/*.[eE][xX][eE]";
+            default ->
+                "bin/*.[eE][xX][eE]";
+        };
+    }
+
+    /**
+     * Converts a glob to a regular expression matching the path and the paths
+     * below it.
+     */
+    private static String toRegex(String glob) {
+        var builder = new StringBuilder();
+        if (glob.startsWith("/")) {
+            glob = glob.substring(1);
+        } else if (!glob.contains("/")) {
+            builder.append("(?:.*/)?");
+        }
+
+        int braces = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*' -> {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                            i++;
+                            builder.append("(?:.*/)?");
+                        } else {
+                            builder.append(".*");
+                        }
+                    } else {
+                        builder.append("[^/]*");
+                    }
+                }
+                case '?' ->
+                    builder.append("[^/]");
+                case '[' -> {
+                    int end = glob.indexOf(']', i + 2);
+                    if (end < 0) {
+                        builder.append("\\[");
+                    } else {
+                        var set = glob.substring(i + 1, end);
+                        if (set.startsWith("!")) {
+                            set = "^" + set.substring(1);
+                        }
+                        builder.append('[').append(set.replace("\\", "\\\\")).append(']');
+                        i = end;
+                    }
+                }
+                case '{' -> {
+                    braces++;
+                    builder.append("(?:");
+                }
+                case '}' -> {
+                    if (braces > 0) {
+                        braces--;
+                        builder.append(')');
+                    } else {
+                        builder.append("\\}");
+                    }
+                }
+                case ',' ->
+                    builder.append(braces > 0 ? "|" : ",");
+                default -> {
+                    if ("\\.^$|()+".indexOf(c) >= 0) {
+                        builder.append('\\');
+                    }
+                    builder.append(c);
+                }
+            }
+        }
+        for (; braces > 0; braces--) {
+            builder.append(')');
+        }
+
+        return builder.append("(?:/.*)?").toString();
+    }
+
+    private PathFilter() {
+    }
+
+    /**
+     * @return the rules that apply, in order
+     */
+    public List<String> getRules() {
+        return mRules;
+    }
+
+    /**
+     * @param name a path relative to the root of the package, separated by
+     * slashes
+     * @return true if name is left out
+     */
+    public boolean isExcluded(String name) {
+        name = StringUtils.removeEnd(name, "/");
+        if (name.isEmpty()) {
+            return false;
+        }
+
+        for (int i = mPatterns.size() - 1; i >= 0; i--) {
+            if (mPatterns.get(i).matcher(name).matches()) {
+                return !mIncludes.get(i);
+            }
+        }
+
+        return false;
+    }
+
+    private void addGroup(List<String> regexes, boolean include) {
+        mPatterns.add(Pattern.compile(String.join("|", regexes)));
+        mIncludes.add(include);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import se.trixon.almond.util.Log;
+
+/**
+ * Runs the external tools and scripts, with a timeout per invocation, and
+ * keeps track of them and the processes they start. Their output is pumped
+ * to the log by threads of a {@link TaskScope}, virtual where available.
+ * <p>
+ * Cancelling the token destroys every process tree, the processes that do
+ * not exit within a grace period are killed. The exit code, wall time and
+ * CPU time of each invocation are recorded, with the {@link Stage} that ran
+ * it. The CPU time is a lower bound, the process and its descendants are
+ * sampled while they run and the time after the last sample, or of a
+ * descendant that exits between samples, is not seen.
+ *
+ * @author Patrik Karlström
+ */
+public class ProcessSupervisor {
+
+    private static final long KILL_GRACE_MILLIS = 2000;
+    private static final long POLL_MILLIS = 100;
+    private final CancellationToken mCancellationToken;
+    private final List<Invocation> mInvocations = new CopyOnWriteArrayList<>();
+    private final Set<Process> mProcesses = ConcurrentHashMap.newKeySet();
+    private final TaskScope mTaskScope;
+
+    /**
+     * @param cancellationToken destroys all processes when cancelled
+     * @param taskScope runs the pumps of the process output
+     */
+    public ProcessSupervisor(CancellationToken cancellationToken, TaskScope taskScope) {
+        mCancellationToken = cancellationToken;
+        mTaskScope = taskScope;
+        mCancellationToken.onCancel(this::destroyAll);
+    }
+
+    /**
+     * Destroys the trees of all running processes.
+     */
+    public void destroyAll() {
+        for (var process : mProcesses) {
+            destroyTree(process.toHandle());
+        }
+    }
+
+    /**
+     * @return the finished invocations, in the order they finished
+     */
+    public List<Invocation> getInvocations() {
+        return Collections.unmodifiableList(mInvocations);
+    }
+
+    /**
+     * Runs command and waits for it, its output is written to log.
+     *
+     * @param command
+     * @param environment added to the environment of this process, may be
+     * null
+     * @param workingDirectory may be null
+     * @param timeout zero or negative for none
+     * @param log
+     * @return the invocation
+     * @throws IOException if the command could not be started or timed out
+     * @throws InterruptedIOException if the token was cancelled
+     */
+    public Invocation run(List<String> command, Map<String, String> environment, File workingDirectory, Duration timeout, Log log) throws IOException {
+        mCancellationToken.check();
+        var processBuilder = new ProcessBuilder(command).inheritIO();
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+        processBuilder.redirectError(ProcessBuilder.Redirect.PIPE);
+        if (environment != null) {
+            processBuilder.environment().putAll(environment);
+        }
+        if (workingDirectory != null) {
+            processBuilder.directory(workingDirectory);
+        }
+
+        var stage = Stage.current();
+        var event = new RunRecording.ProcessEvent();
+        event.begin();
+        long start = System.nanoTime();
+        long deadline = timeout.isZero() || timeout.isNegative() ? Long.MAX_VALUE : start + timeout.toNanos();
+        var cpuTimes = new HashMap<Long, Duration>();
+        boolean timedOut = false;
+
+        var process = processBuilder.start();
+        mProcesses.add(process);
+        if (mCancellationToken.isCancelled()) {
+            destroyTree(process.toHandle());
+        }
+        var outThread = pump(process.getInputStream(), false, log);
+        var errThread = pump(process.getErrorStream(), true, log);
+
+        try {
+            sampleCpuTimes(process.toHandle(), cpuTimes);
+            while (!process.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                sampleCpuTimes(process.toHandle(), cpuTimes);
+                if (!timedOut && System.nanoTime() > deadline) {
+                    timedOut = true;
+                    log.err(String.format("timeout after %s, destroying %s", formatDuration(timeout), command.get(0)));
+                    destroyTree(process.toHandle());
+                }
+            }
+            join(outThread, "stdout", command, log);
+            join(errThread, "stderr", command, log);
+        } catch (InterruptedException ex) {
+            destroyTree(process.toHandle());
+            throw new InterruptedIOException("interrupted");
+        } finally {
+            mProcesses.remove(process);
+        }
+
+        var cpuTime = cpuTimes.values().stream().reduce(Duration.ZERO, Duration::plus);
+        var invocation = new Invocation(command, stage == null ? null : stage.getName(), process.exitValue(), Duration.ofNanos(System.nanoTime() - start), cpuTime, timedOut);
+        mInvocations.add(invocation);
+        event.mCommand = invocation.getName();
+        event.mStage = invocation.getStage();
+        event.mExitCode = invocation.getExitCode();
+        event.mCpuTimeLowerBound = cpuTime.toNanos();
+        event.mTimedOut = timedOut;
+        event.commit();
+        if (invocation.getExitCode() == 0) {
+            log.out(invocation.toString());
+        } else {
+            log.err(invocation.toString());
+        }
+
+        mCancellationToken.check();
+        if (timedOut) {
+            throw new IOException(String.format("%s timed out after %s", command.get(0), formatDuration(timeout)));
+        }
+
+        return invocation;
+    }
+
+    static String formatDuration(Duration duration) {
+        return String.format("%.1f s", duration.toMillis() / 1000.0);
+    }
+
+    /**
+     * Asks the process and its descendants to exit, and kills those that are
+     * still alive after a grace period. The descendants are collected first,
+     * they cannot be found once their parent is gone.
+     */
+    private void destroyTree(ProcessHandle handle) {
+        var handles = Stream.concat(handle.descendants(), Stream.of(handle)).collect(Collectors.toList());
+        handles.forEach(ProcessHandle::destroy);
+        CompletableFuture.delayedExecutor(KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+            handles.stream().filter(ProcessHandle::isAlive).forEach(ProcessHandle::destroyForcibly);
+        });
+    }
+
+    /**
+     * Waits for a pump for a grace period. A descendant that is still
+     * running may hold the pipe open, the rest of its output is abandoned.
+     */
+    private void join(Thread pump, String stream, List<String> command, Log log) throws InterruptedException {
+        pump.join(KILL_GRACE_MILLIS);
+        if (pump.isAlive()) {
+            log.err(String.format("%s of %s still open after it exited, the rest of it is abandoned", stream, new File(command.get(0)).getName()));
+        }
+    }
+
+    /**
+     * Writes the lines of inputStream to log until the process closes it.
+     */
+    private Thread pump(InputStream inputStream, boolean error, Log log) {
+        return mTaskScope.fork(() -> {
+            try (var reader = new BufferedReader(new InputStreamReader(inputStream, Charset.defaultCharset()))) {
+                for (String line; (line = reader.readLine()) != null;) {
+                    if (error) {
+                        log.err(line);
+                    } else {
+                        log.out(line);
+                    }
+                }
+            } catch (IOException ex) {
+                // Closed when the process was destroyed
+            }
+        });
+    }
+
+    private void sampleCpuTimes(ProcessHandle handle, Map<Long, Duration> cpuTimes) {
+        Stream.concat(Stream.of(handle), handle.descendants()).forEach(processHandle -> {
+            processHandle.info().totalCpuDuration().ifPresent(duration -> {
+                cpuTimes.put(processHandle.pid(), duration);
+            });
+        });
+    }
+
+    /**
+     * The outcome of one run of an external tool or script.
+     */
+    public static class Invocation {
+
+        private final List<String> mCommand;
+        private final Duration mCpuTime;
+        private final int mExitCode;
+        private final String mStage;
+        private final boolean mTimedOut;
+        private final Duration mWallTime;
+
+        public Invocation(List<String> command, String stage, int exitCode, Duration wallTime, Duration cpuTime, boolean timedOut) {
+            mCommand = List.copyOf(command);
+            mStage = stage;
+            mExitCode = exitCode;
+            mWallTime = wallTime;
+            mCpuTime = cpuTime;
+            mTimedOut = timedOut;
+        }
+
+        public List<String> getCommand() {
+            return mCommand;
+        }
+
+        /**
+         * @return the sampled CPU time of the process and its descendants, a
+         * lower bound
+         */
+        public Duration getCpuTime() {
+            return mCpuTime;
+        }
+
+        public int getExitCode() {
+            return mExitCode;
+        }
+
+        /**
+         * @return the file name of the tool or script
+         */
+        public String getName() {
+            return new File(mCommand.get(0)).getName();
+        }
+
+        /**
+         * @return the name of the stage that ran it, or null
+         */
+        public String getStage() {
+            return mStage;
+        }
+
+        public Duration getWallTime() {
+            return mWallTime;
+        }
+
+        public boolean isTimedOut() {
+            return mTimedOut;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: exit %d, wall %s, cpu >= %s%s",
+                    getName(),
+                    mExitCode,
+                    formatDuration(mWallTime),
+                    formatDuration(mCpuTime),
+                    mTimedOut ? ", timed out" : ""
+            );
+        }
+    }
+}
@@ -42,6 +42,8 @@ public class Profile implements Comparable<Profile>, Cloneable {
             .create();
 
     private transient String mBasename;
+    @SerializedName("checksumBlake3")
+    private boolean mChecksumBlake3;
     @SerializedName("checksum256")
     private boolean mChecksumSha256;
     @SerializedName("checksum512")
@@ -51,6 +53,8 @@ public class Profile implements Comparable<Profile>, Cloneable {
     @SerializedName("destDir")
     private File mDestDir;
     private transient boolean mDryRun;
+    @SerializedName("excludes")
+    private String mExcludes;
     @SerializedName("jreLinux")
     private File mJreLinux;
     @SerializedName("jreMac")
@@ -121,6 +125,13 @@ public class Profile implements Comparable<Profile>, Cloneable {
         return mDestDir;
     }
 
+    /**
+     * @return the exclude rules, see {@link PathFilter}
+     */
+    public String getExcludes() {
+        return mExcludes;
+    }
+
     public File getJreLinux() {
         return mJreLinux;
     }
@@ -173,6 +184,10 @@ public class Profile implements Comparable<Profile>, Cloneable {
         return mValidationErrorBuilder.toString();
     }
 
+    public boolean isChecksumBlake3() {
+        return mChecksumBlake3;
+    }
+
     public boolean isChecksumSha256() {
         return mChecksumSha256;
     }
@@ -297,6 +312,10 @@ public class Profile implements Comparable<Profile>, Cloneable {
         return mValidationErrorBuilder.length() == 0;
     }
 
+    public void setChecksumBlake3(boolean checksumBlake3) {
+        mChecksumBlake3 = checksumBlake3;
+    }
+
     public void setChecksumSha256(boolean checksumSha256) {
         mChecksumSha256 = checksumSha256;
     }
@@ -317,6 +336,10 @@ public class Profile implements Comparable<Profile>, Cloneable {
         mDryRun = dryRun;
     }
 
+    public void setExcludes(String excludes) {
+        mExcludes = excludes;
+    }
+
     public void setJreLinux(File jreLinux) {
         mJreLinux = jreLinux;
     }
@@ -394,6 +417,7 @@ public class Profile implements Comparable<Profile>, Cloneable {
         values.put("Resources", fileToString(mResourceDir));
         values.put("AppImage template", fileToString(mTemplateDirAppImage));
         values.put("Snap template", fileToString(mTemplateDirSnap));
+        values.put("Exclude", StringUtils.defaultString(mExcludes));
         values.put(" ", "");
         values.put("JRE", "");
         values.put(" Linux", fileToString(mJreLinux));
@@ -411,6 +435,7 @@ public class Profile implements Comparable<Profile>, Cloneable {
         values.put("Checksum", "");
         values.put(" sha256", BooleanHelper.asYesNo(mChecksumSha256));
         values.put(" sha512", BooleanHelper.asYesNo(mChecksumSha512));
+        values.put(" blake3", BooleanHelper.asYesNo(mChecksumBlake3));
 
         int maxLength = Integer.MIN_VALUE;
         for (var key : values.keySet()) {
@@ -60,6 +60,8 @@ public class ProfilePanel extends javax.swing.JPanel {
         anyCheckBox.setSelected(p.getBoolean(KEY_PROFILE_TARGET_ANY, false));
         sha256CheckBox.setSelected(p.getBoolean(KEY_PROFILE_CHECKSUM_SHA256, false));
         sha512CheckBox.setSelected(p.getBoolean(KEY_PROFILE_CHECKSUM_SHA512, false));
+        blake3CheckBox.setSelected(p.getBoolean(KEY_PROFILE_CHECKSUM_BLAKE3, false));
+        excludeTextField.setText(p.get(KEY_PROFILE_EXCLUDES, ""));
 
         updateLinuxState();
     }
@@ -94,6 +96,8 @@ public class ProfilePanel extends javax.swing.JPanel {
         p.putBoolean(KEY_PROFILE_TARGET_ANY, anyCheckBox.isSelected());
         p.putBoolean(KEY_PROFILE_CHECKSUM_SHA256, sha256CheckBox.isSelected());
         p.putBoolean(KEY_PROFILE_CHECKSUM_SHA512, sha512CheckBox.isSelected());
+        p.putBoolean(KEY_PROFILE_CHECKSUM_BLAKE3, blake3CheckBox.isSelected());
+        p.put(KEY_PROFILE_EXCLUDES, excludeTextField.getText().trim());
 
         var profile = new Profile();
         profile.setSourceDir(sourceFileChooserPanel.getFile());
@@ -116,6 +120,9 @@ public class ProfilePanel extends javax.swing.JPanel {
 
         profile.setChecksumSha256(sha256CheckBox.isSelected());
         profile.setChecksumSha512(sha512CheckBox.isSelected());
+        profile.setChecksumBlake3(blake3CheckBox.isSelected());
+
+        profile.setExcludes(excludeTextField.getText().trim());
 
         return profile;
     }
@@ -146,6 +153,9 @@ public class ProfilePanel extends javax.swing.JPanel {
         appImageTemplateFileChooserPanel = new se.trixon.almond.util.swing.dialogs.FileChooserPanel();
         snapTemplateFileChooserPanel = new se.trixon.almond.util.swing.dialogs.FileChooserPanel();
         resourcesFileChooserPanel = new se.trixon.almond.util.swing.dialogs.FileChooserPanel();
+        excludePanel = new javax.swing.JPanel();
+        excludeLabel = new javax.swing.JLabel();
+        excludeTextField = new javax.swing.JTextField();
         jrePanel = new javax.swing.JPanel();
         linuxFileChooserPanel = new se.trixon.almond.util.swing.dialogs.FileChooserPanel();
         macFileChooserPanel = new se.trixon.almond.util.swing.dialogs.FileChooserPanel();
@@ -160,6 +170,7 @@ public class ProfilePanel extends javax.swing.JPanel {
         filler1 = new javax.swing.Box.Filler(new java.awt.Dimension(64, 0), new java.awt.Dimension(64, 0), new java.awt.Dimension(64, 32767));
         sha256CheckBox = new javax.swing.JCheckBox();
         sha512CheckBox = new javax.swing.JCheckBox();
+        blake3CheckBox = new javax.swing.JCheckBox();
 
         setLayout(new java.awt.GridBagLayout());
 
@@ -194,6 +205,14 @@ public class ProfilePanel extends javax.swing.JPanel {
         resourcesFileChooserPanel.setMode(1);
         firstPanel.add(resourcesFileChooserPanel);
 
+        excludePanel.setLayout(new java.awt.BorderLayout());
+
+        excludeLabel.setText("Exclude (glob rules, !rule to include, target:rule)");
+        excludePanel.add(excludeLabel, java.awt.BorderLayout.PAGE_START);
+        excludePanel.add(excludeTextField, java.awt.BorderLayout.CENTER);
+
+        firstPanel.add(excludePanel);
+
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridy = 0;
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
@@ -250,6 +269,9 @@ public class ProfilePanel extends javax.swing.JPanel {
         sha512CheckBox.setText("sha512sum");
         destPanel.add(sha512CheckBox);
 
+        blake3CheckBox.setText("b3sum");
+        destPanel.add(blake3CheckBox);
+
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridy = 2;
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
@@ -264,9 +286,13 @@ public class ProfilePanel extends javax.swing.JPanel {
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JCheckBox anyCheckBox;
     private javax.swing.JCheckBox appCheckBox;
+    private javax.swing.JCheckBox blake3CheckBox;
     private se.trixon.almond.util.swing.dialogs.FileChooserPanel appImageTemplateFileChooserPanel;
     private se.trixon.almond.util.swing.dialogs.FileChooserPanel destFileChooserPanel;
     private javax.swing.JPanel destPanel;
+    private javax.swing.JLabel excludeLabel;
+    private javax.swing.JPanel excludePanel;
+    private javax.swing.JTextField excludeTextField;
     private javax.swing.Box.Filler filler1;
     private javax.swing.JPanel firstPanel;
     private javax.swing.JPanel jrePanel;
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.time.Duration;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The progress of an operation, in bytes and files processed out of the
+ * totals known so far, and in stages.
+ * <p>
+ * The bytes are expected up front, the totals only grow past that when an
+ * estimate was short. The fraction never steps back during an operation.
+ *
+ * @author Patrik Karlström
+ */
+public class ProgressEvent {
+
+    private final long mBytes;
+    private final double mBytesPerSecond;
+    private final Duration mElapsed;
+    private final Duration mEta;
+    private final long mFiles;
+    private final double mFraction;
+    private final String mStage;
+    private final int mStageCount;
+    private final int mStagesDone;
+    private final long mTotalBytes;
+    private final long mTotalFiles;
+    private final Type mType;
+
+    public ProgressEvent(Type type, String stage, int stagesDone, int stageCount, long bytes, long totalBytes, double fraction, long files, long totalFiles, double bytesPerSecond, Duration elapsed, Duration eta) {
+        mType = type;
+        mStage = stage;
+        mStagesDone = stagesDone;
+        mStageCount = stageCount;
+        mBytes = bytes;
+        mTotalBytes = totalBytes;
+        mFraction = fraction;
+        mFiles = files;
+        mTotalFiles = totalFiles;
+        mBytesPerSecond = bytesPerSecond;
+        mElapsed = elapsed;
+        mEta = eta;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return the current throughput, averaged over the last seconds
+     */
+    public double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public Duration getElapsed() {
+        return mElapsed;
+    }
+
+    /**
+     * @return the estimated time left, or null if not known
+     */
+    public Duration getEta() {
+        return mEta;
+    }
+
+    public long getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * @return the bytes processed out of the total, from 0 to 1 and never
+     * less than in an earlier event, or -1 if no total is known yet
+     */
+    public double getFraction() {
+        return mFraction;
+    }
+
+    /**
+     * @return the stage that started or finished, null for other events
+     */
+    public String getStage() {
+        return mStage;
+    }
+
+    public int getStageCount() {
+        return mStageCount;
+    }
+
+    public int getStagesDone() {
+        return mStagesDone;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public long getTotalFiles() {
+        return mTotalFiles;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * @return like "42% 1 GB of 3 GB, 120 of 800 files, 34 MB/s, 0:12 left"
+     */
+    @Override
+    public String toString() {
+        var builder = new StringBuilder();
+        if (getFraction() >= 0) {
+            builder.append(String.format("%d%% ", (int) (getFraction() * 100)));
+        }
+        builder.append(String.format("%s of %s, %d of %d files",
+                FileUtils.byteCountToDisplaySize(mBytes),
+                FileUtils.byteCountToDisplaySize(mTotalBytes),
+                mFiles,
+                mTotalFiles
+        ));
+        if (mBytesPerSecond > 0) {
+            builder.append(", ").append(FileUtils.byteCountToDisplaySize((long) mBytesPerSecond)).append("/s");
+        }
+        if (mEta != null) {
+            builder.append(", ").append(formatDuration(mEta)).append(" left");
+        }
+        if (mStageCount > 0) {
+            builder.append(String.format(", stage %d of %d", mStagesDone, mStageCount));
+        }
+
+        return builder.toString();
+    }
+
+    private static String formatDuration(Duration duration) {
+        long seconds = duration.toSeconds();
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    public enum Type {
+        /**
+         * The bytes or files processed changed.
+         */
+        PROGRESS,
+        /**
+         * A stage started, see {@link #getStage()}.
+         */
+        STAGE_STARTED,
+        /**
+         * A stage is done, failed or was skipped, see {@link #getStage()}.
+         */
+        STAGE_FINISHED,
+        /**
+         * The operation completed, failed or was interrupted, the last event.
+         */
+        FINISHED;
+    }
+}
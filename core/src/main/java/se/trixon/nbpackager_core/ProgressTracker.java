@@ -0,0 +1,243 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes and files the loops of an operation process, and turns
+ * them into {@link ProgressEvent}s for a listener.
+ * <p>
+ * The work known up front is expected when the operation is prepared. The
+ * loops add to the totals as they find their work and to the processed
+ * counts as they do it, from any thread and without locking. The total is
+ * the larger of the expected and the found bytes and the fraction never goes
+ * back. Progress events are throttled to one per interval, the throughput is
+ * a moving average and the ETA is the bytes left at that throughput.
+ * <p>
+ * A tracker with a parent counts the part of the work of one stage, and adds
+ * it to the parent as well.
+ *
+ * @author Patrik Karlström
+ */
+public class ProgressTracker {
+
+    /**
+     * A tracker that counts but never has a listener.
+     */
+    public static final ProgressTracker NONE = new ProgressTracker();
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final double SMOOTHING = 0.3;
+    private final AtomicLong mBytes = new AtomicLong();
+    private double mBytesPerSecond;
+    private final AtomicLong mExpectedBytes = new AtomicLong();
+    private final AtomicLong mFiles = new AtomicLong();
+    private double mFraction = -1;
+    private long mLastBytes;
+    private long mLastNanos;
+    private volatile ProgressListener mListener;
+    private final AtomicLong mNextNanos = new AtomicLong();
+    private final ProgressTracker mParent;
+    private volatile int mStageCount;
+    private final AtomicInteger mStagesDone = new AtomicInteger();
+    private final long mStartNanos = System.nanoTime();
+    private final AtomicLong mTotalBytes = new AtomicLong();
+    private final AtomicLong mTotalFiles = new AtomicLong();
+    private final AtomicLong mWritten = new AtomicLong();
+
+    public ProgressTracker() {
+        this(null);
+    }
+
+    /**
+     * @param parent gets everything counted by this tracker, may be null
+     */
+    public ProgressTracker(ProgressTracker parent) {
+        mParent = parent;
+        mLastNanos = mStartNanos;
+    }
+
+    /**
+     * Counts processed bytes and files.
+     *
+     * @param bytes
+     * @param files
+     */
+    public void add(long bytes, long files) {
+        if (this == NONE) {
+            return;
+        }
+        mBytes.addAndGet(bytes);
+        mFiles.addAndGet(files);
+        if (mParent != null) {
+            mParent.add(bytes, files);
+        }
+        if (mListener == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long next = mNextNanos.get();
+        if (now - next >= 0 && mNextNanos.compareAndSet(next, now + INTERVAL_NANOS)) {
+            fire(ProgressEvent.Type.PROGRESS, null);
+        }
+    }
+
+    /**
+     * Counts bytes and files found to process.
+     *
+     * @param bytes
+     * @param files
+     */
+    public void addTotal(long bytes, long files) {
+        if (this == NONE) {
+            return;
+        }
+        mTotalBytes.addAndGet(bytes);
+        mTotalFiles.addAndGet(files);
+        if (mParent != null) {
+            mParent.addTotal(bytes, files);
+        }
+    }
+
+    /**
+     * Counts bytes written to the output, like the copies of files or a
+     * compressed archive, as opposed to the processed bytes that were read.
+     *
+     * @param bytes
+     */
+    public void addWritten(long bytes) {
+        if (this == NONE) {
+            return;
+        }
+        mWritten.addAndGet(bytes);
+        if (mParent != null) {
+            mParent.addWritten(bytes);
+        }
+    }
+
+    /**
+     * Counts bytes expected to be processed, before the loops find them.
+     *
+     * @param bytes
+     */
+    public void expect(long bytes) {
+        if (this == NONE) {
+            return;
+        }
+        mExpectedBytes.addAndGet(bytes);
+        if (mParent != null) {
+            mParent.expect(bytes);
+        }
+    }
+
+    /**
+     * Sends the last event.
+     */
+    public void finish() {
+        fire(ProgressEvent.Type.FINISHED, null);
+    }
+
+    /**
+     * @return the processed bytes
+     */
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * @return the processed files
+     */
+    public long getFiles() {
+        return mFiles.get();
+    }
+
+    /**
+     * @return the bytes written
+     */
+    public long getWritten() {
+        return mWritten.get();
+    }
+
+    public void setListener(ProgressListener listener) {
+        if (this != NONE) {
+            mListener = listener;
+        }
+    }
+
+    /**
+     * @param stageCount the number of stages of the operation
+     */
+    public void setStageCount(int stageCount) {
+        mStageCount = stageCount;
+    }
+
+    public void stageFinished(String stage) {
+        mStagesDone.incrementAndGet();
+        fire(ProgressEvent.Type.STAGE_FINISHED, stage);
+    }
+
+    public void stageStarted(String stage) {
+        fire(ProgressEvent.Type.STAGE_STARTED, stage);
+    }
+
+    private void fire(ProgressEvent.Type type, String stage) {
+        var listener = mListener;
+        if (listener == null) {
+            return;
+        }
+
+        ProgressEvent event;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long bytes = mBytes.get();
+            long totalBytes = Math.max(bytes, Math.max(mTotalBytes.get(), mExpectedBytes.get()));
+            if (totalBytes > 0) {
+                mFraction = Math.max(mFraction, bytes / (double) totalBytes);
+            }
+            long nanos = now - mLastNanos;
+            if (nanos >= INTERVAL_NANOS / 2) {
+                double rate = (bytes - mLastBytes) * 1e9 / nanos;
+                mBytesPerSecond = mLastBytes == 0 && mBytesPerSecond == 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * mBytesPerSecond;
+                mLastBytes = bytes;
+                mLastNanos = now;
+            }
+
+            Duration eta = null;
+            if (mBytesPerSecond > 0 && totalBytes > 0 && type != ProgressEvent.Type.FINISHED) {
+                eta = Duration.ofMillis((long) ((totalBytes - bytes) * 1000 / mBytesPerSecond));
+            }
+
+            event = new ProgressEvent(type, stage,
+                    mStagesDone.get(),
+                    mStageCount,
+                    bytes,
+                    totalBytes,
+                    mFraction,
+                    mFiles.get(),
+                    Math.max(mFiles.get(), mTotalFiles.get()),
+                    mBytesPerSecond,
+                    Duration.ofNanos(now - mStartNanos),
+                    eta
+            );
+        }
+
+        listener.onProgress(event);
+    }
+}
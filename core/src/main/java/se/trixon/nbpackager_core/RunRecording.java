@@ -0,0 +1,209 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import static se.trixon.nbpackager_core.Options.*;
+
+/**
+ * A Flight Recorder recording of one run, written next to the artifacts.
+ * <p>
+ * It uses the profile settings of the JDK, so CPU, GC and I/O are recorded
+ * along with the events of the run: one per stage, external process, archive
+ * written and checksum computed. The events are emitted by every run, they
+ * cost next to nothing while no recording is running.
+ *
+ * @author Patrik Karlström
+ */
+public class RunRecording implements AutoCloseable {
+
+    /**
+     * The command line argument that records every run of the session.
+     */
+    public static final String ARGUMENT = "--record";
+    public static final String FILE_NAME = "build-recording.jfr";
+    /**
+     * The system property set by {@link #ARGUMENT}.
+     */
+    public static final String PROPERTY = "nbpackager.record";
+    private final File mFile;
+    private final Recording mRecording;
+
+    /**
+     * @return true if runs are recorded, by the option or by the command line
+     */
+    public static boolean isEnabled() {
+        return Options.getInstance().is(OPT_RECORD, DEFAULT_RECORD) || Boolean.getBoolean(PROPERTY);
+    }
+
+    /**
+     * Turns on the recording of every run if args holds {@link #ARGUMENT}.
+     *
+     * @param args the command line arguments
+     */
+    public static void parseArguments(String[] args) {
+        if (List.of(args).contains(ARGUMENT)) {
+            System.setProperty(PROPERTY, "true");
+        }
+    }
+
+    /**
+     * Starts a recording.
+     *
+     * @param name the name of the recording, like the profile
+     * @param dir where the recording is written when closed
+     * @throws IOException if Flight Recorder is not available
+     */
+    public RunRecording(String name, File dir) throws IOException {
+        mFile = new File(dir, FILE_NAME);
+        try {
+            mRecording = new Recording(Configuration.getConfiguration("profile"));
+        } catch (ParseException | IllegalStateException | SecurityException ex) {
+            throw new IOException("Flight Recorder not available: " + ex.getMessage(), ex);
+        }
+        mRecording.setName(name);
+        for (var eventClass : List.of(ArchiveEvent.class, ChecksumEvent.class, ProcessEvent.class, StageEvent.class)) {
+            mRecording.enable(eventClass).withoutThreshold();
+        }
+        mRecording.start();
+    }
+
+    /**
+     * Stops the recording and writes it.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mRecording.stop();
+            mRecording.dump(mFile.toPath());
+        } finally {
+            mRecording.close();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Name("se.trixon.nbpackager.Archive")
+    @Label("Archive")
+    @Category("nbPackager")
+    @Description("A zip written by a run")
+    @StackTrace(false)
+    public static class ArchiveEvent extends Event {
+
+        @Name("bytesIn")
+        @Label("Bytes In")
+        @DataAmount
+        long mBytesIn;
+        @Name("bytesOut")
+        @Label("Bytes Out")
+        @DataAmount
+        long mBytesOut;
+        @Name("entries")
+        @Label("Entries")
+        int mEntries;
+        @Name("path")
+        @Label("Path")
+        String mPath;
+    }
+
+    @Name("se.trixon.nbpackager.Checksum")
+    @Label("Checksum")
+    @Category("nbPackager")
+    @Description("A digest of an artifact")
+    @StackTrace(false)
+    public static class ChecksumEvent extends Event {
+
+        @Name("algorithm")
+        @Label("Algorithm")
+        String mAlgorithm;
+        @Name("path")
+        @Label("Path")
+        String mPath;
+        @Name("size")
+        @Label("Size")
+        @DataAmount
+        long mSize;
+    }
+
+    @Name("se.trixon.nbpackager.Process")
+    @Label("Process")
+    @Category("nbPackager")
+    @Description("An external tool or script")
+    @StackTrace(false)
+    public static class ProcessEvent extends Event {
+
+        @Name("command")
+        @Label("Command")
+        String mCommand;
+        @Name("cpuTimeLowerBound")
+        @Label("CPU Time (Lower Bound)")
+        @Description("Sampled while the process and its descendants run")
+        @Timespan
+        long mCpuTimeLowerBound;
+        @Name("exitCode")
+        @Label("Exit Code")
+        int mExitCode;
+        @Name("stage")
+        @Label("Stage")
+        String mStage;
+        @Name("timedOut")
+        @Label("Timed Out")
+        boolean mTimedOut;
+    }
+
+    @Name("se.trixon.nbpackager.Stage")
+    @Label("Stage")
+    @Category("nbPackager")
+    @Description("A stage of a run")
+    @StackTrace(false)
+    public static class StageEvent extends Event {
+
+        @Name("bytesIn")
+        @Label("Bytes In")
+        @DataAmount
+        long mBytesIn;
+        @Name("bytesOut")
+        @Label("Bytes Out")
+        @DataAmount
+        long mBytesOut;
+        @Name("files")
+        @Label("Files")
+        long mFiles;
+        @Name("name")
+        @Label("Name")
+        String mName;
+        @Name("state")
+        @Label("State")
+        String mState;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timing and throughput of a run, per stage and per external command, written
+ * next to the artifacts and logged as a table at the end of the run.
+ * <p>
+ * The bytes in of a stage are the bytes it processed, read from the sources
+ * or hashed, the bytes out are the bytes it wrote, copies, archives and the
+ * packages made by the tools. The throughput is the larger of the two per
+ * second of wall time. The steps of a stage, like the copy, the jre and the
+ * zip of a target, are listed below it.
+ *
+ * @author Patrik Karlström
+ */
+public class RunReport {
+
+    public static final String FILE_NAME = "build-report.json";
+    public static final int VERSION = 1;
+    private static final Gson GSON = new GsonBuilder()
+            .setVersion(1.0)
+            .serializeNulls()
+            .setPrettyPrinting()
+            .create();
+
+    @SerializedName("commands")
+    private ArrayList<CommandRecord> mCommands = new ArrayList<>();
+    @SerializedName("profile")
+    private String mProfile;
+    @SerializedName("result")
+    private String mResult;
+    @SerializedName("stages")
+    private ArrayList<StageRecord> mStages = new ArrayList<>();
+    @SerializedName("started")
+    private String mStarted;
+    @SerializedName("version")
+    private int mVersion = VERSION;
+    @SerializedName("wallMillis")
+    private long mWallMillis;
+
+    static String formatMegabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / 1e6);
+    }
+
+    static String formatThroughput(long bytes, long wallMillis) {
+        return wallMillis > 0 && bytes > 0 ? String.format(Locale.ROOT, "%.1f", bytes / 1e3 / wallMillis) : "-";
+    }
+
+    public RunReport() {
+    }
+
+    /**
+     * @param profile the name of the profile
+     * @param started when the run started
+     * @param wallTime the time the run took
+     * @param result like completed or failed
+     */
+    public RunReport(String profile, Instant started, Duration wallTime, String result) {
+        mProfile = profile;
+        mStarted = started.toString();
+        mWallMillis = wallTime.toMillis();
+        mResult = result;
+    }
+
+    public synchronized void addCommand(ProcessSupervisor.Invocation invocation) {
+        mCommands.add(new CommandRecord(invocation));
+    }
+
+    public synchronized void addStage(Stage stage) {
+        mStages.add(new StageRecord(stage));
+    }
+
+    public synchronized List<CommandRecord> getCommands() {
+        return List.copyOf(mCommands);
+    }
+
+    public synchronized List<StageRecord> getStages() {
+        return List.copyOf(mStages);
+    }
+
+    public synchronized void save(File dir) throws IOException {
+        var file = new File(dir, FILE_NAME);
+        var tempFile = new File(dir, FILE_NAME + ".tmp");
+        Files.writeString(tempFile.toPath(), GSON.toJson(this), StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the stages and the commands as a table, one line each, and the
+     * totals of the run
+     */
+    public synchronized String toTable() {
+        int width = "total".length();
+        for (var stage : mStages) {
+            width = Math.max(width, stage.mName.length());
+            for (var step : stage.mSteps) {
+                width = Math.max(width, step.mName.length() + 2);
+            }
+        }
+        for (var command : mCommands) {
+            width = Math.max(width, command.mName.length() + 2);
+        }
+
+        var format = "%-" + width + "s  %-8s %9s %11s %11s %7s\n";
+        var builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT, format, "stage", "state", "time", "in", "out", "MB/s"));
+        long bytesIn = 0;
+        long bytesOut = 0;
+        for (var stage : mStages) {
+            builder.append(String.format(Locale.ROOT, format,
+                    stage.mName,
+                    stage.mState,
+                    ProcessSupervisor.formatDuration(Duration.ofMillis(stage.mWallMillis)),
+                    formatMegabytes(stage.mBytesIn),
+                    formatMegabytes(stage.mBytesOut),
+                    formatThroughput(Math.max(stage.mBytesIn, stage.mBytesOut), stage.mWallMillis)
+            ));
+            for (var step : stage.mSteps) {
+                builder.append(String.format(Locale.ROOT, format,
+                        "  " + step.mName,
+                        "",
+                        ProcessSupervisor.formatDuration(Duration.ofMillis(step.mWallMillis)),
+                        formatMegabytes(step.mBytesIn),
+                        formatMegabytes(step.mBytesOut),
+                        formatThroughput(Math.max(step.mBytesIn, step.mBytesOut), step.mWallMillis)
+                ));
+            }
+            bytesIn += stage.mBytesIn;
+            bytesOut += stage.mBytesOut;
+        }
+        builder.append(String.format(Locale.ROOT, format,
+                "total",
+                mResult,
+                ProcessSupervisor.formatDuration(Duration.ofMillis(mWallMillis)),
+                formatMegabytes(bytesIn),
+                formatMegabytes(bytesOut),
+                formatThroughput(Math.max(bytesIn, bytesOut), mWallMillis)
+        ));
+
+        if (!mCommands.isEmpty()) {
+            builder.append(String.format(Locale.ROOT, "%-" + width + "s  %-8s %9s %9s\n", "command", "exit", "time", "cpu >="));
+            for (var command : mCommands) {
+                builder.append(String.format(Locale.ROOT, "%-" + width + "s  %-8s %9s %9s%s\n",
+                        "  " + command.mName,
+                        command.mExitCode,
+                        ProcessSupervisor.formatDuration(Duration.ofMillis(command.mWallMillis)),
+                        ProcessSupervisor.formatDuration(Duration.ofMillis(command.mCpuMillisLowerBound)),
+                        command.mStage == null ? "" : "  in " + command.mStage
+                ));
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * An external tool or script that was run.
+     */
+    public static class CommandRecord {
+
+        @SerializedName("command")
+        private List<String> mCommand;
+        @SerializedName("cpuMillisLowerBound")
+        private long mCpuMillisLowerBound;
+        @SerializedName("exitCode")
+        private int mExitCode;
+        @SerializedName("name")
+        private String mName;
+        @SerializedName("stage")
+        private String mStage;
+        @SerializedName("timedOut")
+        private boolean mTimedOut;
+        @SerializedName("wallMillis")
+        private long mWallMillis;
+
+        public CommandRecord() {
+        }
+
+        public CommandRecord(ProcessSupervisor.Invocation invocation) {
+            mName = invocation.getName();
+            mCommand = invocation.getCommand();
+            mStage = invocation.getStage();
+            mExitCode = invocation.getExitCode();
+            mWallMillis = invocation.getWallTime().toMillis();
+            mCpuMillisLowerBound = invocation.getCpuTime().toMillis();
+            mTimedOut = invocation.isTimedOut();
+        }
+
+        /**
+         * @return the sampled CPU time, a lower bound, see
+         * {@link ProcessSupervisor.Invocation#getCpuTime()}
+         */
+        public long getCpuMillisLowerBound() {
+            return mCpuMillisLowerBound;
+        }
+
+        public int getExitCode() {
+            return mExitCode;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getStage() {
+            return mStage;
+        }
+
+        public long getWallMillis() {
+            return mWallMillis;
+        }
+
+        public boolean isTimedOut() {
+            return mTimedOut;
+        }
+    }
+
+    public static class StageRecord {
+
+        @SerializedName("bytesIn")
+        private long mBytesIn;
+        @SerializedName("bytesOut")
+        private long mBytesOut;
+        @SerializedName("files")
+        private long mFiles;
+        @SerializedName("megabytesPerSecond")
+        private double mMegabytesPerSecond;
+        @SerializedName("name")
+        private String mName;
+        @SerializedName("state")
+        private String mState;
+        @SerializedName("steps")
+        private ArrayList<StepRecord> mSteps = new ArrayList<>();
+        @SerializedName("wallMillis")
+        private long mWallMillis;
+
+        public StageRecord() {
+        }
+
+        public StageRecord(Stage stage) {
+            var progressTracker = stage.getProgressTracker();
+            mName = stage.getName();
+            mState = stage.getState().name().toLowerCase(Locale.ROOT);
+            mWallMillis = stage.getWallTime().toMillis();
+            mBytesIn = progressTracker.getBytes();
+            mBytesOut = progressTracker.getWritten();
+            mFiles = progressTracker.getFiles();
+            if (mWallMillis > 0) {
+                mMegabytesPerSecond = Math.max(mBytesIn, mBytesOut) / 1e3 / mWallMillis;
+            }
+            for (var step : stage.getSteps()) {
+                mSteps.add(new StepRecord(step));
+            }
+        }
+
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        public long getFiles() {
+            return mFiles;
+        }
+
+        public double getMegabytesPerSecond() {
+            return mMegabytesPerSecond;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getState() {
+            return mState;
+        }
+
+        public List<StepRecord> getSteps() {
+            return mSteps;
+        }
+
+        public long getWallMillis() {
+            return mWallMillis;
+        }
+    }
+
+    /**
+     * A timed part of a stage.
+     */
+    public static class StepRecord {
+
+        @SerializedName("bytesIn")
+        private long mBytesIn;
+        @SerializedName("bytesOut")
+        private long mBytesOut;
+        @SerializedName("files")
+        private long mFiles;
+        @SerializedName("name")
+        private String mName;
+        @SerializedName("wallMillis")
+        private long mWallMillis;
+
+        public StepRecord() {
+        }
+
+        public StepRecord(Stage.Step step) {
+            var progressTracker = step.getProgressTracker();
+            mName = step.getName();
+            mWallMillis = step.getWallTime().toMillis();
+            mBytesIn = progressTracker.getBytes();
+            mBytesOut = progressTracker.getWritten();
+            mFiles = progressTracker.getFiles();
+        }
+
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        public long getFiles() {
+            return mFiles;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getWallMillis() {
+            return mWallMillis;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Read only view of a zip file, based on its central directory, that gives
+ * access to the entries without extracting them.
+ * <p>
+ * Reads are positional and may be done from several threads at once.
+ *
+ * @author Patrik Karlström
+ */
+public class SourceArchive implements Closeable {
+
+    static final int METHOD_DEFLATED = 8;
+    static final int METHOD_STORED = 0;
+    /**
+     * The encoding of the names without the language encoding flag, IBM437
+     * is in the jdk.charsets module and may be left out of a runtime image.
+     */
+    private static final Charset CP437 = Charset.isSupported("IBM437") ? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private final FileChannel mChannel;
+    private final List<Entry> mEntries;
+    private final File mFile;
+
+    public SourceArchive(File file) throws IOException {
+        mFile = file;
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            mEntries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (IOException | RuntimeException ex) {
+            mChannel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the first path element of the first entry, the directory a
+     * NetBeans platform zip keeps everything in
+     * @throws ZipException if that is not a plain name
+     */
+    public String getRootName() throws ZipException {
+        if (mEntries.isEmpty()) {
+            return "";
+        }
+
+        var name = mEntries.get(0).getName();
+        int index = name.indexOf('/');
+        var rootName = index < 0 ? name : name.substring(0, index);
+        if (rootName.isEmpty() || rootName.equals(".") || rootName.equals("..") || rootName.contains("\\")) {
+            throw new ZipException("invalid root directory: " + name);
+        }
+
+        return rootName;
+    }
+
+    /**
+     * @param entry
+     * @return a stream of the uncompressed content
+     * @throws IOException
+     */
+    public InputStream openStream(Entry entry) throws IOException {
+        var rawStream = openRawStream(entry);
+
+        return switch (entry.getMethod()) {
+            case METHOD_STORED ->
+                rawStream;
+            case METHOD_DEFLATED ->
+                new InflaterInputStream(rawStream, new Inflater(true), 64 * 1024) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default ->
+                throw new ZipException(String.format("unsupported compression method %d: %s", entry.getMethod(), entry.getName()));
+        };
+    }
+
+    /**
+     * @param entry
+     * @return a stream of the content as stored in the archive
+     * @throws IOException
+     */
+    public InputStream openRawStream(Entry entry) throws IOException {
+        return new ChannelInputStream(getDataOffset(entry), entry.getCompressedSize());
+    }
+
+    long getDataOffset(Entry entry) throws IOException {
+        if (entry.mDataOffset < 0) {
+            var buffer = read(entry.getLocalHeaderOffset(), 30);
+            if (buffer.getInt(0) != 0x04034b50) {
+                throw new ZipException("invalid local header: " + entry.getName());
+            }
+            int nameLength = Short.toUnsignedInt(buffer.getShort(26));
+            int extraLength = Short.toUnsignedInt(buffer.getShort(28));
+            entry.mDataOffset = entry.getLocalHeaderOffset() + 30 + nameLength + extraLength;
+        }
+
+        return entry.mDataOffset;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        var buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("unexpected end of archive: " + mFile);
+            }
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long size = mChannel.size();
+        int tailLength = (int) Math.min(size, MAX_COMMENT_LENGTH + 22);
+        var tail = read(size - tailLength, tailLength);
+
+        int endIndex = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == 0x06054b50) {
+                endIndex = i;
+                break;
+            }
+        }
+        if (endIndex < 0) {
+            throw new ZipException("not a zip file: " + mFile);
+        }
+
+        long count = Short.toUnsignedLong(tail.getShort(endIndex + 10));
+        long centralSize = Integer.toUnsignedLong(tail.getInt(endIndex + 12));
+        long centralOffset = Integer.toUnsignedLong(tail.getInt(endIndex + 16));
+
+        long endPosition = size - tailLength + endIndex;
+        if ((count == 0xFFFF || centralSize == 0xFFFFFFFFL || centralOffset == 0xFFFFFFFFL) && endPosition >= 20) {
+            var locator = read(endPosition - 20, 20);
+            if (locator.getInt(0) == 0x07064b50) {
+                var end64 = read(locator.getLong(8), 56);
+                if (end64.getInt(0) != 0x06064b50) {
+                    throw new ZipException("invalid zip64 end of central directory: " + mFile);
+                }
+                count = end64.getLong(32);
+                centralSize = end64.getLong(40);
+                centralOffset = end64.getLong(48);
+            }
+        }
+
+        var entries = new ArrayList<Entry>((int) Math.min(count, 1 << 16));
+        var central = read(centralOffset, (int) centralSize);
+        for (long i = 0; i < count; i++) {
+            if (central.getInt() != 0x02014b50) {
+                throw new ZipException("invalid central directory: " + mFile);
+            }
+
+            var entry = new Entry();
+            int madeBy = Short.toUnsignedInt(central.getShort());
+            central.getShort();
+            entry.mFlags = Short.toUnsignedInt(central.getShort());
+            entry.mMethod = Short.toUnsignedInt(central.getShort());
+            int dosTime = central.getInt();
+            entry.mCrc = Integer.toUnsignedLong(central.getInt());
+            entry.mCompressedSize = Integer.toUnsignedLong(central.getInt());
+            entry.mSize = Integer.toUnsignedLong(central.getInt());
+            int nameLength = Short.toUnsignedInt(central.getShort());
+            int extraLength = Short.toUnsignedInt(central.getShort());
+            int commentLength = Short.toUnsignedInt(central.getShort());
+            central.getShort();
+            central.getShort();
+            int externalAttributes = central.getInt();
+            entry.mLocalHeaderOffset = Integer.toUnsignedLong(central.getInt());
+
+            var name = new byte[nameLength];
+            central.get(name);
+            entry.mName = new String(name, (entry.mFlags & 0x0800) != 0 ? StandardCharsets.UTF_8 : CP437);
+            entry.mLastModified = fromDosTime(dosTime);
+
+            int extraEnd = central.position() + extraLength;
+            while (central.position() + 4 <= extraEnd) {
+                int tag = Short.toUnsignedInt(central.getShort());
+                int length = Short.toUnsignedInt(central.getShort());
+                int next = central.position() + length;
+                if (tag == 0x0001) {
+                    if (entry.mSize == 0xFFFFFFFFL && central.position() + 8 <= next) {
+                        entry.mSize = central.getLong();
+                    }
+                    if (entry.mCompressedSize == 0xFFFFFFFFL && central.position() + 8 <= next) {
+                        entry.mCompressedSize = central.getLong();
+                    }
+                    if (entry.mLocalHeaderOffset == 0xFFFFFFFFL && central.position() + 8 <= next) {
+                        entry.mLocalHeaderOffset = central.getLong();
+                    }
+                } else if (tag == 0x5455 && length >= 5 && (central.get() & 1) != 0) {
+                    entry.mLastModified = Integer.toUnsignedLong(central.getInt()) * 1000;
+                }
+                central.position(next);
+            }
+            central.position(extraEnd + commentLength);
+
+            boolean directory = entry.mName.endsWith("/");
+            int mode = (madeBy >> 8) == 3 ? externalAttributes >>> 16 : 0;
+            if ((mode & 0170000) == 0) {
+                mode = directory ? ArchiveEntry.S_IFDIR | 0755 : ArchiveEntry.S_IFREG | (mode == 0 ? 0644 : mode);
+            }
+            entry.mMode = mode;
+            entries.add(entry);
+        }
+
+        return entries;
+    }
+
+    private static long fromDosTime(int dosTime) {
+        try {
+            var dateTime = LocalDateTime.of(
+                    ((dosTime >> 25) & 0x7f) + 1980,
+                    (dosTime >> 21) & 0x0f,
+                    (dosTime >> 16) & 0x1f,
+                    (dosTime >> 11) & 0x1f,
+                    (dosTime >> 5) & 0x3f,
+                    (dosTime << 1) & 0x3e);
+
+            return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException ex) {
+            return 0;
+        }
+    }
+
+    public static class Entry {
+
+        private long mCompressedSize;
+        private long mCrc;
+        private long mDataOffset = -1;
+        private int mFlags;
+        private long mLastModified;
+        private long mLocalHeaderOffset;
+        private int mMethod;
+        private int mMode;
+        private String mName;
+        private long mSize;
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getCrc() {
+            return mCrc;
+        }
+
+        public int getFlags() {
+            return mFlags;
+        }
+
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        /**
+         * @return the unix mode, file type bits included
+         */
+        public int getMode() {
+            return mMode;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public boolean isDirectory() {
+            return mName.endsWith("/");
+        }
+
+        public boolean isSymlink() {
+            return (mMode & 0170000) == ArchiveEntry.S_IFLNK;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private class ChannelInputStream extends InputStream {
+
+        private final long mEnd;
+        private long mPosition;
+
+        public ChannelInputStream(long position, long length) {
+            mPosition = position;
+            mEnd = position + length;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+        }
+
+        @Override
+        public int read() throws IOException {
+            var bytes = new byte[1];
+            return read(bytes, 0, 1) < 0 ? -1 : bytes[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (mPosition >= mEnd) {
+                return -1;
+            }
+
+            int count = mChannel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, mEnd - mPosition)), mPosition);
+            if (count < 0) {
+                throw new ZipException("unexpected end of archive: " + mFile);
+            }
+            mPosition += count;
+
+            return count;
+        }
+    }
+}
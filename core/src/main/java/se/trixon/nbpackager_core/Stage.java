@@ -0,0 +1,234 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import se.trixon.almond.util.Log;
+
+/**
+ * A step of the packaging pipeline, run by {@link StageScheduler} once all
+ * its dependencies are done.
+ * <p>
+ * While it runs it counts its own progress and is the current stage of the
+ * thread that runs its action, so that the work an action does can be
+ * attributed to it. An action can time its steps, like a copy and a zip, on
+ * their own, see {@link #step(String)}.
+ *
+ * @author Patrik Karlström
+ */
+public class Stage {
+
+    private static final ThreadLocal<Stage> CURRENT = new ThreadLocal<>();
+    private final Action mAction;
+    private final List<Stage> mDependencies;
+    private final String mName;
+    private volatile ProgressTracker mProgressTracker = ProgressTracker.NONE;
+    private final Resource mResource;
+    private volatile State mState = State.PENDING;
+    private volatile Step mStep;
+    private final List<Step> mSteps = new CopyOnWriteArrayList<>();
+    private volatile Duration mWallTime = Duration.ZERO;
+
+    /**
+     * @return the stage whose action runs on this thread, or null
+     */
+    public static Stage current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts a step of the stage that runs on this thread and ends the one
+     * before. A step is timed and counts its own progress until the next one
+     * starts or the action returns, the tracker of the open step is the one
+     * to count the work with. Does nothing if no stage runs on this thread.
+     *
+     * @param name
+     */
+    public static void step(String name) {
+        var stage = current();
+        if (stage != null) {
+            stage.endStep();
+            var step = new Step(stage, name);
+            stage.mSteps.add(step);
+            stage.mStep = step;
+        }
+    }
+
+    static void setCurrent(Stage stage) {
+        if (stage == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(stage);
+        }
+    }
+
+    public Stage(String name, Resource resource, Action action, Stage... dependencies) {
+        mName = name;
+        mResource = resource;
+        mAction = action;
+        mDependencies = List.of(dependencies);
+    }
+
+    public Action getAction() {
+        return mAction;
+    }
+
+    public List<Stage> getDependencies() {
+        return mDependencies;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return what this stage processed and wrote, set when it starts
+     */
+    public ProgressTracker getProgressTracker() {
+        return mProgressTracker;
+    }
+
+    public Resource getResource() {
+        return mResource;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return the step that is open, or null
+     */
+    public Step getStep() {
+        return mStep;
+    }
+
+    /**
+     * @return the steps, in the order they started
+     */
+    public List<Step> getSteps() {
+        return List.copyOf(mSteps);
+    }
+
+    /**
+     * @return the time the action ran, zero if it did not
+     */
+    public Duration getWallTime() {
+        return mWallTime;
+    }
+
+    public boolean isDone() {
+        return mState == State.DONE;
+    }
+
+    void endStep() {
+        var step = mStep;
+        if (step != null) {
+            step.end();
+            mStep = null;
+        }
+    }
+
+    void setProgressTracker(ProgressTracker progressTracker) {
+        mProgressTracker = progressTracker;
+    }
+
+    void setState(State state) {
+        mState = state;
+    }
+
+    void setWallTime(Duration wallTime) {
+        mWallTime = wallTime;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    /**
+     * What a stage mostly uses, the scheduler limits the number of stages
+     * that run at the same time per resource.
+     */
+    public enum Resource {
+        CPU,
+        DISK,
+        /**
+         * An external tool or script.
+         */
+        TOOL;
+    }
+
+    public enum State {
+        PENDING,
+        RUNNING,
+        DONE,
+        FAILED,
+        /**
+         * Not run, because a dependency failed or the run was interrupted.
+         */
+        SKIPPED;
+    }
+
+    public interface Action {
+
+        void run(Log log) throws IOException;
+    }
+
+    /**
+     * A timed part of the action of a stage.
+     */
+    public static class Step {
+
+        private final String mName;
+        private final ProgressTracker mProgressTracker;
+        private final long mStartNanos = System.nanoTime();
+        private volatile Duration mWallTime;
+
+        private Step(Stage stage, String name) {
+            mName = name;
+            mProgressTracker = new ProgressTracker(stage.getProgressTracker());
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return what this step processed and wrote, counted by its stage
+         * as well
+         */
+        public ProgressTracker getProgressTracker() {
+            return mProgressTracker;
+        }
+
+        /**
+         * @return the time the step took, or so far if it is open
+         */
+        public Duration getWallTime() {
+            var wallTime = mWallTime;
+
+            return wallTime != null ? wallTime : Duration.ofNanos(System.nanoTime() - mStartNanos);
+        }
+
+        private void end() {
+            mWallTime = Duration.ofNanos(System.nanoTime() - mStartNanos);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import se.trixon.almond.util.Log;
+
+/**
+ * Runs a graph of stages, each one as soon as its dependencies are done and
+ * the limits of its resource allow it.
+ * <p>
+ * Ready stages are started in the order they were added, so with a
+ * parallelism of one the stages run in that order. When a stage fails, the
+ * stages that depend on it are skipped while the others still run. Each
+ * stage is timed and counts its progress in a tracker of its own, a child of
+ * the tracker of the scheduler.
+ * <p>
+ * The output of the stages goes to the log as it is written. When stages
+ * may run in parallel their lines are interleaved, so each one starts with
+ * the name of its stage in brackets.
+ *
+ * @author Patrik Karlström
+ */
+public class StageScheduler {
+
+    /**
+     * Starts the first line a stage writes to the log, followed by its name.
+     */
+    public static final String STAGE_HEADER = "stage: ";
+    private final BooleanSupplier mCancelled;
+    private volatile ExecutorService mExecutorService;
+    private final EnumMap<Stage.Resource, Integer> mLimits = new EnumMap<>(Stage.Resource.class);
+    private final int mParallelism;
+    private ProgressTracker mProgressTracker = ProgressTracker.NONE;
+    private final List<Stage> mStages = new ArrayList<>();
+
+    /**
+     * @param parallelism the maximum number of stages that run at the same
+     * time
+     * @param cancelled stops the scheduling of new stages when true
+     */
+    public StageScheduler(int parallelism, BooleanSupplier cancelled) {
+        mParallelism = Math.max(1, parallelism);
+        mCancelled = cancelled;
+    }
+
+    public Stage add(String name, Stage.Resource resource, Stage.Action action, Stage... dependencies) {
+        var stage = new Stage(name, resource, action, dependencies);
+        mStages.add(stage);
+
+        return stage;
+    }
+
+    /**
+     * Waits for the stages that still run after an interrupted
+     * {@link #run(Log)} to stop.
+     *
+     * @param timeout
+     * @param unit
+     * @return true if they stopped
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        var executorService = mExecutorService;
+
+        return executorService == null || executorService.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @return the graph, one stage per line with its resource and
+     * dependencies
+     */
+    public String describe() {
+        int width = mStages.stream().mapToInt(stage -> stage.getName().length()).max().orElse(0);
+        var builder = new StringBuilder();
+        for (var stage : mStages) {
+            builder.append(String.format("  %-" + width + "s  %-4s", stage.getName(), stage.getResource().name().toLowerCase(Locale.ROOT)));
+            if (!stage.getDependencies().isEmpty()) {
+                builder.append("  after ").append(stage.getDependencies().stream().map(Stage::getName).collect(Collectors.joining(", ")));
+            }
+            builder.append("\n");
+        }
+
+        return builder.toString();
+    }
+
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(mStages);
+    }
+
+    /**
+     * Runs the stages until all are done, failed or skipped.
+     * <p>
+     * When interrupted it returns at once, without waiting for the running
+     * stages, see {@link #awaitTermination(long, TimeUnit)}.
+     *
+     * @param log
+     * @return the failed stages
+     * @throws InterruptedException
+     */
+    public List<Stage> run(Log log) throws InterruptedException {
+        var failedStages = new ArrayList<Stage>();
+        var running = new EnumMap<Stage.Resource, Integer>(Stage.Resource.class);
+        var runningStages = new HashMap<Future<Void>, Stage>();
+        boolean tagged = mParallelism > 1;
+        mProgressTracker.setStageCount(mStages.size());
+
+        var executorService = mExecutorService = Executors.newFixedThreadPool(mParallelism, runnable -> {
+            var thread = new Thread(runnable, "Operation-stage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var completionService = new ExecutorCompletionService<Void>(executorService);
+
+        try {
+            while (true) {
+                for (var stage : mStages) {
+                    if (stage.getState() != Stage.State.PENDING) {
+                        continue;
+                    }
+
+                    if (mCancelled.getAsBoolean()) {
+                        stage.setState(Stage.State.SKIPPED);
+                        mProgressTracker.stageFinished(stage.getName());
+                        continue;
+                    }
+
+                    if (stage.getDependencies().stream().anyMatch(this::isUnreachable)) {
+                        stage.setState(Stage.State.SKIPPED);
+                        log.err("stage skipped: " + stage.getName());
+                        mProgressTracker.stageFinished(stage.getName());
+                        continue;
+                    }
+
+                    var resource = stage.getResource();
+                    if (runningStages.size() < mParallelism
+                            && running.getOrDefault(resource, 0) < getLimit(resource)
+                            && stage.getDependencies().stream().allMatch(Stage::isDone)) {
+                        stage.setState(Stage.State.RUNNING);
+                        mProgressTracker.stageStarted(stage.getName());
+                        running.merge(resource, 1, Integer::sum);
+                        stage.setProgressTracker(new ProgressTracker(mProgressTracker));
+                        runningStages.put(completionService.submit(() -> {
+                            var actionLog = tagged ? new StageLog(stage.getName(), log).getLog() : log;
+                            var event = new RunRecording.StageEvent();
+                            boolean done = false;
+                            long start = System.nanoTime();
+                            Stage.setCurrent(stage);
+                            event.begin();
+                            try {
+                                log.out(STAGE_HEADER + stage.getName());
+                                stage.getAction().run(actionLog);
+                                done = true;
+                            } finally {
+                                stage.endStep();
+                                Stage.setCurrent(null);
+                                stage.setWallTime(Duration.ofNanos(System.nanoTime() - start));
+                                commit(event, stage, done);
+                            }
+
+                            return null;
+                        }), stage);
+                    }
+                }
+
+                if (runningStages.isEmpty()) {
+                    break;
+                }
+
+                var future = completionService.take();
+                var stage = runningStages.remove(future);
+                running.merge(stage.getResource(), -1, Integer::sum);
+                try {
+                    future.get();
+                    stage.setState(Stage.State.DONE);
+                    mProgressTracker.stageFinished(stage.getName());
+                } catch (ExecutionException ex) {
+                    stage.setState(Stage.State.FAILED);
+                    mProgressTracker.stageFinished(stage.getName());
+                    if (mCancelled.getAsBoolean()) {
+                        continue;
+                    }
+                    failedStages.add(stage);
+                    var cause = ex.getCause();
+                    log.err(String.format("\nstage failed: %s (%s)", stage.getName(), cause.getMessage() != null ? cause.getMessage() : cause));
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        return failedStages;
+    }
+
+    /**
+     * @param progressTracker is told when stages start and finish
+     */
+    public void setProgressTracker(ProgressTracker progressTracker) {
+        mProgressTracker = progressTracker;
+    }
+
+    /**
+     * Limits the number of stages of resource that run at the same time, the
+     * default is the parallelism.
+     *
+     * @param resource
+     * @param limit
+     */
+    public void setLimit(Stage.Resource resource, int limit) {
+        mLimits.put(resource, Math.max(1, limit));
+    }
+
+    private void commit(RunRecording.StageEvent event, Stage stage, boolean done) {
+        var progressTracker = stage.getProgressTracker();
+        event.mName = stage.getName();
+        event.mState = (done ? Stage.State.DONE : Stage.State.FAILED).name().toLowerCase(Locale.ROOT);
+        event.mBytesIn = progressTracker.getBytes();
+        event.mBytesOut = progressTracker.getWritten();
+        event.mFiles = progressTracker.getFiles();
+        event.commit();
+    }
+
+    private int getLimit(Stage.Resource resource) {
+        return mLimits.getOrDefault(resource, mParallelism);
+    }
+
+    private boolean isUnreachable(Stage stage) {
+        return stage.getState() == Stage.State.FAILED || stage.getState() == Stage.State.SKIPPED;
+    }
+
+    /**
+     * Passes the output of a stage on to the main log at once, each line
+     * tagged with the name of the stage.
+     */
+    private static class StageLog {
+
+        private final Log mLog = new Log();
+
+        public StageLog(String name, Log log) {
+            var tag = "[" + name + "] ";
+            mLog.setUseTimestamps(false);
+            mLog.setOut(s -> {
+                synchronized (log) {
+                    log.out(tag + s);
+                }
+            });
+            mLog.setErr(s -> {
+                synchronized (log) {
+                    log.err(tag + s);
+                }
+            });
+        }
+
+        public Log getLog() {
+            return mLog;
+        }
+    }
+}
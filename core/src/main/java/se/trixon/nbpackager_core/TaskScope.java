@@ -0,0 +1,244 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the I/O bound tasks of an operation on virtual threads when the
+ * runtime has them, and on daemon platform threads otherwise.
+ * <p>
+ * At most limit tasks run at the same time, the others wait in a queue
+ * without blocking the caller. The threads are started when needed and end
+ * when the queue is empty. Threads started with {@link #fork} do not
+ * count against the limit. Closing the scope interrupts what still runs and
+ * waits for it, so no task outlives the operation.
+ *
+ * @author Patrik Karlström
+ */
+public class TaskScope extends AbstractExecutorService implements AutoCloseable {
+
+    private static final boolean VIRTUAL = newVirtualThreadFactory("probe") != null;
+    private int mForks;
+    private final int mLimit;
+    private final Queue<Runnable> mQueue = new ConcurrentLinkedQueue<>();
+    private volatile boolean mShutdown;
+    private final ThreadFactory mThreadFactory;
+    private final Set<Thread> mThreads = ConcurrentHashMap.newKeySet();
+    private int mWorkers;
+
+    /**
+     * @return true if the tasks run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * @param name the prefix of the thread names
+     * @return a factory of virtual threads if available, of daemon platform
+     * threads otherwise
+     */
+    public static ThreadFactory newThreadFactory(String name) {
+        var threadFactory = newVirtualThreadFactory(name);
+        if (threadFactory != null) {
+            return threadFactory;
+        }
+
+        var counter = new AtomicLong();
+        return runnable -> {
+            var thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Virtual threads are final since Java 21 and the build targets 17, so
+     * they are created through reflection.
+     */
+    private static ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            var builderClass = Class.forName("java.lang.Thread$Builder");
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // Older runtime or preview not enabled
+            return null;
+        }
+    }
+
+    /**
+     * @param name the prefix of the thread names
+     * @param limit the maximum number of tasks that run at the same time
+     */
+    public TaskScope(String name, int limit) {
+        mThreadFactory = newThreadFactory(name);
+        mLimit = Math.max(1, limit);
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return true;
+    }
+
+    /**
+     * Interrupts the running tasks, drops the queued ones and waits a while
+     * for the threads to end.
+     */
+    @Override
+    public void close() {
+        shutdownNow();
+        try {
+            awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("scope closed");
+        }
+        mQueue.add(command);
+        startWorkers();
+    }
+
+    /**
+     * Starts runnable at once on a thread of its own, outside the limit, for
+     * tasks that must not wait like the pumps of process output.
+     *
+     * @param runnable
+     * @return the started thread
+     */
+    public Thread fork(Runnable runnable) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("scope closed");
+        }
+        synchronized (this) {
+            mForks++;
+        }
+
+        return start(() -> {
+            try {
+                runnable.run();
+            } finally {
+                synchronized (this) {
+                    mForks--;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return mShutdown && mWorkers == 0 && mForks == 0;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        mShutdown = true;
+        notifyAll();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        var dropped = new ArrayList<Runnable>();
+        for (Runnable runnable; (runnable = mQueue.poll()) != null;) {
+            dropped.add(runnable);
+        }
+        for (var thread : mThreads) {
+            thread.interrupt();
+        }
+
+        return dropped;
+    }
+
+    private Thread start(Runnable runnable) {
+        var thread = mThreadFactory.newThread(() -> {
+            try {
+                runnable.run();
+            } finally {
+                mThreads.remove(Thread.currentThread());
+            }
+        });
+        mThreads.add(thread);
+        thread.start();
+        if (mShutdown) {
+            thread.interrupt();
+        }
+
+        return thread;
+    }
+
+    private void startWorkers() {
+        while (!mShutdown && !mQueue.isEmpty()) {
+            synchronized (this) {
+                if (mWorkers >= mLimit) {
+                    return;
+                }
+                mWorkers++;
+            }
+            start(this::work);
+        }
+    }
+
+    private void work() {
+        try {
+            for (Runnable runnable; !mShutdown && (runnable = mQueue.poll()) != null;) {
+                // A cancelled future may have interrupted the previous task
+                Thread.interrupted();
+                runnable.run();
+            }
+        } finally {
+            synchronized (this) {
+                mWorkers--;
+                notifyAll();
+            }
+            // A task may have been queued after the last poll
+            startWorkers();
+        }
+    }
+}
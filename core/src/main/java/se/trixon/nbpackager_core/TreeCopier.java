@@ -0,0 +1,342 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Copies file trees the way <code>cp -ra</code> does, keeping symlinks,
+ * permissions and timestamps.
+ * <p>
+ * Directories are walked on the calling thread while the files are copied
+ * by the tasks of an executor, a {@link TaskScope} by default. It uses
+ * platform threads on Java 17 and virtual threads only on runtimes that have
+ * them. Large files are copied with {@link FileChannel#transferTo}. A copy
+ * can be cancelled between files and between blocks of large files, by
+ * {@link #cancel()}, by a {@link CancellationToken} or by interrupting the
+ * calling thread.
+ * <p>
+ * In {@link Mode#LINK} files are hardlinked instead of copied, which only
+ * works when the copy is never modified in place.
+ *
+ * @author Patrik Karlström
+ */
+public class TreeCopier {
+
+    private static final long TRANSFER_MIN_SIZE = 1024 * 1024;
+    private final AtomicLong mBytes = new AtomicLong();
+    private volatile boolean mCancelled;
+    private CancellationToken mCancellationToken = CancellationToken.NONE;
+    private final AtomicLong mExcluded = new AtomicLong();
+    private Predicate<Path> mExclude = path -> false;
+    private ExecutorService mExecutorService;
+    private final AtomicLong mFiles = new AtomicLong();
+    private volatile boolean mLinkFailed;
+    private final AtomicLong mLinks = new AtomicLong();
+    private final Mode mMode;
+    private final int mParallelism;
+    private ProgressTracker mProgressTracker = ProgressTracker.NONE;
+
+    public TreeCopier(int parallelism) {
+        this(parallelism, Mode.COPY);
+    }
+
+    public TreeCopier(int parallelism, Mode mode) {
+        mParallelism = parallelism;
+        mMode = mode;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Copies source to dest.
+     * <p>
+     * If dest is an existing directory, source is copied into it, otherwise
+     * source is copied as dest. A directory that is copied with contentOnly
+     * has its content copied into dest, the way
+     * <code>cp -ra source/. dest</code> would.
+     *
+     * @param source
+     * @param dest
+     * @param contentOnly
+     * @throws IOException
+     */
+    public void copy(Path source, Path dest, boolean contentOnly) throws IOException {
+        var attributes = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        var sources = new ArrayList<Path>();
+        boolean children = attributes.isDirectory() && contentOnly;
+        if (children) {
+            Files.createDirectories(dest);
+            try (var stream = Files.list(source)) {
+                stream.forEach(sources::add);
+            }
+        } else {
+            if (Files.isDirectory(dest)) {
+                dest = dest.resolve(source.getFileName().toString());
+            }
+            sources.add(source);
+        }
+
+        var executorService = mExecutorService != null ? mExecutorService : new TaskScope("TreeCopier", mParallelism);
+        var futures = new ArrayList<Future<?>>();
+        var directories = new ArrayList<Map.Entry<Path, BasicFileAttributes>>();
+        try {
+            for (var path : sources) {
+                walk(path, children ? dest.resolve(path.getFileName().toString()) : dest, executorService, futures, directories);
+            }
+            for (var future : futures) {
+                future.get();
+            }
+            // After the children, writing them changes the time
+            for (var entry : directories) {
+                copyAttributes(entry.getKey(), entry.getValue());
+            }
+        } catch (InterruptedException ex) {
+            mCancelled = true;
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("copy interrupted");
+        } catch (ExecutionException ex) {
+            mCancelled = true;
+            var cause = ex.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            } else if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            } else {
+                throw new IOException(cause);
+            }
+        } finally {
+            for (var future : futures) {
+                future.cancel(true);
+            }
+            if (executorService != mExecutorService) {
+                ((TaskScope) executorService).close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes copied so far
+     */
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * @return the number of paths that were left out, a directory counts as
+     * one
+     */
+    public long getExcluded() {
+        return mExcluded.get();
+    }
+
+    /**
+     * @return the number of files and symlinks copied so far
+     */
+    public long getFiles() {
+        return mFiles.get();
+    }
+
+    /**
+     * @return the number of files that were hardlinked instead of copied
+     */
+    public long getLinks() {
+        return mLinks.get();
+    }
+
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        mCancellationToken = cancellationToken;
+    }
+
+    /**
+     * @param exclude the dest paths to leave out, with everything below them
+     */
+    public void setExclude(Predicate<Path> exclude) {
+        mExclude = exclude;
+    }
+
+    /**
+     * @param executorService copies the files, instead of a {@link TaskScope}
+     * of its own limited to the parallelism
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        mExecutorService = executorService;
+    }
+
+    /**
+     * @param progressTracker counts the bytes and files as they are found
+     * and copied, large files by block
+     */
+    public void setProgressTracker(ProgressTracker progressTracker) {
+        mProgressTracker = progressTracker;
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (mCancelled || mCancellationToken.isCancelled()) {
+            throw new InterruptedIOException("copy cancelled");
+        }
+    }
+
+    private void copyAttributes(Path dest, BasicFileAttributes attributes) throws IOException {
+        if (attributes instanceof PosixFileAttributes posixAttributes && !attributes.isSymbolicLink()) {
+            Files.getFileAttributeView(dest, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).setPermissions(posixAttributes.permissions());
+        }
+
+        try {
+            Files.getFileAttributeView(dest, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                    .setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), null);
+        } catch (IOException | UnsupportedOperationException ex) {
+            if (!attributes.isSymbolicLink()) {
+                throw ex;
+            }
+            // Not all file systems can set the time of a link
+        }
+    }
+
+    private void copyFile(Path source, Path dest, BasicFileAttributes attributes) throws IOException {
+        if (attributes.size() < TRANSFER_MIN_SIZE) {
+            Files.copy(source, dest, StandardCopyOption.REPLACE_EXISTING, LinkOption.NOFOLLOW_LINKS);
+            mProgressTracker.add(attributes.size(), 0);
+            mProgressTracker.addWritten(attributes.size());
+        } else {
+            // Copied in blocks to check for cancel
+            Files.deleteIfExists(dest);
+            try (var sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+                    var destChannel = FileChannel.open(dest, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = sourceChannel.size();
+                long position = 0;
+                while (position < size) {
+                    checkCancelled();
+                    long count = sourceChannel.transferTo(position, Math.min(size - position, 8 * TRANSFER_MIN_SIZE), destChannel);
+                    position += count;
+                    mProgressTracker.add(count, 0);
+                    mProgressTracker.addWritten(count);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if dest was created as a hardlink to source
+     */
+    private boolean link(Path source, Path dest) throws IOException {
+        if (mLinkFailed) {
+            return false;
+        }
+
+        try {
+            Files.deleteIfExists(dest);
+            Files.createLink(dest, source);
+            mLinks.incrementAndGet();
+            return true;
+        } catch (FileSystemException | UnsupportedOperationException ex) {
+            // Across devices or not supported, the rest of the tree is copied
+            mLinkFailed = true;
+            return false;
+        }
+    }
+
+    private void progress(long bytes) {
+        mBytes.addAndGet(bytes);
+        mFiles.incrementAndGet();
+        mProgressTracker.add(0, 1);
+    }
+
+    /**
+     * Creates the directories and links of the tree at source on the calling
+     * thread, and submits the copies of the files.
+     */
+    private void walk(Path source, Path dest, ExecutorService executorService, List<Future<?>> futures, List<Map.Entry<Path, BasicFileAttributes>> directories) throws IOException {
+        checkCancelled();
+        if (mExclude.test(dest)) {
+            mExcluded.incrementAndGet();
+            return;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(source, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException ex) {
+            attributes = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+
+        if (attributes.isSymbolicLink()) {
+            mProgressTracker.addTotal(0, 1);
+            Files.deleteIfExists(dest);
+            Files.createSymbolicLink(dest, Files.readSymbolicLink(source));
+            copyAttributes(dest, attributes);
+            progress(0);
+        } else if (attributes.isDirectory()) {
+            if (!Files.isDirectory(dest, LinkOption.NOFOLLOW_LINKS)) {
+                Files.createDirectory(dest);
+            }
+            try (var stream = Files.list(source)) {
+                for (var child : (Iterable<Path>) stream::iterator) {
+                    walk(child, dest.resolve(child.getFileName().toString()), executorService, futures, directories);
+                }
+            }
+            directories.add(Map.entry(dest, attributes));
+        } else {
+            var fileAttributes = attributes;
+            mProgressTracker.addTotal(fileAttributes.size(), 1);
+            futures.add(executorService.submit(() -> {
+                checkCancelled();
+                if (mMode == Mode.LINK && link(source, dest)) {
+                    mProgressTracker.add(fileAttributes.size(), 0);
+                } else {
+                    copyFile(source, dest, fileAttributes);
+                    copyAttributes(dest, fileAttributes);
+                }
+                progress(fileAttributes.size());
+
+                return null;
+            }));
+        }
+    }
+
+    public enum Mode {
+        /**
+         * Copy every file.
+         */
+        COPY,
+        /**
+         * Hardlink files, copy them if that fails.
+         */
+        LINK;
+    }
+}
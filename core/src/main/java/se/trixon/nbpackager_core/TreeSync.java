@@ -0,0 +1,522 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager_core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Makes a directory mirror a stack of layers, directories, files or archives,
+ * where a later layer overrides an earlier one, the way rsync does: new files
+ * are added, changed files are replaced and stale files are deleted.
+ * <p>
+ * A file is unchanged when size and modification time match. When only the
+ * time differs the content is compared, by CRC for archive entries, and just
+ * the time is updated if it is equal.
+ * <p>
+ * Files of linked layers are hardlinked instead of copied. Files are never
+ * written in place, a replaced file gets a new inode, so a linked source is
+ * not changed by a later sync.
+ * <p>
+ * A name of any layer that would leave the directory, by {@code ..}, as an
+ * absolute path or through a symbolic link of the view, fails the sync
+ * before anything is written or deleted.
+ *
+ * @author Patrik Karlström
+ */
+public class TreeSync {
+
+    private CancellationToken mCancellationToken = CancellationToken.NONE;
+    private Predicate<String> mExclude = name -> false;
+    private Predicate<String> mKeep = name -> false;
+    private final List<Layer> mLayers = new ArrayList<>();
+    private final Set<String> mLinkedNames = new HashSet<>();
+    private ProgressTracker mProgressTracker = ProgressTracker.NONE;
+
+    public TreeSync() {
+    }
+
+    /**
+     * Adds a directory, whose content is placed at destination, or a file,
+     * that is placed as destination.
+     *
+     * @param source
+     * @param destination the relative path in the synced directory, "" for
+     * its root
+     * @return
+     */
+    public TreeSync add(Path source, String destination) {
+        return add(source, destination, false);
+    }
+
+    /**
+     * Adds a directory or a file like {@link #add(Path, String)}.
+     *
+     * @param source
+     * @param destination
+     * @param link hardlink the files instead of copying them, they are copied
+     * where the file system does not support it
+     * @return
+     */
+    public TreeSync add(Path source, String destination, boolean link) {
+        mLayers.add(new Layer(source, null, null, null, destination, link));
+        return this;
+    }
+
+    /**
+     * Adds the entries of a plan below root, placed at destination.
+     *
+     * @param plan
+     * @param root the name of the directory in the plan to take the entries
+     * from
+     * @param destination
+     * @param link hardlink the entries that are files on disk
+     * @return
+     */
+    public TreeSync add(PackagePlan plan, String root, String destination, boolean link) {
+        mLayers.add(new Layer(null, null, plan, root, destination, link));
+        return this;
+    }
+
+    /**
+     * Adds the entries of an archive, placed at destination.
+     *
+     * @param archive
+     * @param destination
+     * @return
+     */
+    public TreeSync add(SourceArchive archive, String destination) {
+        mLayers.add(new Layer(null, archive, null, null, destination, false));
+        return this;
+    }
+
+    /**
+     * @param cancellationToken stops the sync between files and between
+     * blocks of large files
+     * @return
+     */
+    public TreeSync cancellationToken(CancellationToken cancellationToken) {
+        mCancellationToken = cancellationToken;
+        return this;
+    }
+
+    /**
+     * @param exclude the relative paths to leave out of the synced directory
+     * @return
+     */
+    public TreeSync exclude(Predicate<String> exclude) {
+        mExclude = exclude;
+        return this;
+    }
+
+    /**
+     * @param keep the relative paths in the synced directory to leave alone,
+     * even if they are not in any layer
+     * @return
+     */
+    public TreeSync keep(Predicate<String> keep) {
+        mKeep = keep;
+        return this;
+    }
+
+    /**
+     * @param progressTracker counts the bytes and files of the view, the
+     * unchanged ones as processed at once
+     * @return
+     */
+    public TreeSync progressTracker(ProgressTracker progressTracker) {
+        mProgressTracker = progressTracker;
+        return this;
+    }
+
+    public Statistics sync(Path dir) throws IOException {
+        var statistics = new Statistics();
+        var view = getView();
+        var root = dir.toAbsolutePath().normalize();
+        for (var name : view.keySet()) {
+            resolve(root, name, view);
+        }
+
+        Files.createDirectories(dir);
+        deleteStale(dir, view, statistics);
+
+        for (var entry : view.values()) {
+            if (entry.getType() == ArchiveEntry.Type.FILE) {
+                mProgressTracker.addTotal(entry.getSize(), 1);
+            }
+        }
+
+        for (var item : view.entrySet()) {
+            mCancellationToken.check();
+            sync(resolve(root, item.getKey(), view), item.getKey(), item.getValue(), statistics);
+        }
+
+        return statistics;
+    }
+
+    private static String join(String parent, String child) {
+        return parent.isEmpty() ? child : child.isEmpty() ? parent : parent + "/" + child;
+    }
+
+    /**
+     * @return the path of name below dir
+     * @throws IOException if the path is not below dir or passes through a
+     * symbolic link of view
+     */
+    private static Path resolve(Path dir, String name, TreeMap<String, ArchiveEntry> view) throws IOException {
+        var path = dir.resolve(name).normalize();
+        if (!path.startsWith(dir)) {
+            throw new IOException(String.format("entry outside of %s: %s", dir, name));
+        }
+
+        for (int index = name.indexOf('/'); index > 0; index = name.indexOf('/', index + 1)) {
+            var parent = view.get(name.substring(0, index));
+            if (parent != null && parent.isSymlink()) {
+                throw new IOException(String.format("entry below the symbolic link %s: %s", name.substring(0, index), name));
+            }
+        }
+
+        return path;
+    }
+
+    private static Set<PosixFilePermission> toPermissions(int mode) {
+        var permissions = EnumSet.noneOf(PosixFilePermission.class);
+        var values = PosixFilePermission.values();
+        for (int i = 0; i < 9; i++) {
+            if ((mode & (0400 >> i)) != 0) {
+                permissions.add(values[i]);
+            }
+        }
+
+        return permissions;
+    }
+
+    private boolean contentEquals(Path path, ArchiveEntry entry) throws IOException {
+        if (entry.getSourceEntry() != null) {
+            var crc = new CRC32();
+            try (var inputStream = Files.newInputStream(path)) {
+                var buffer = new byte[64 * 1024];
+                int count;
+                while ((count = inputStream.read(buffer)) >= 0) {
+                    mCancellationToken.check();
+                    crc.update(buffer, 0, count);
+                }
+            }
+
+            return crc.getValue() == entry.getSourceEntry().getCrc();
+        } else if (entry.getPath() != null) {
+            return Files.mismatch(path, entry.getPath()) == -1;
+        } else {
+            try (var inputStream = entry.openStream()) {
+                return Arrays.equals(Files.readAllBytes(path), inputStream.readAllBytes());
+            }
+        }
+    }
+
+    private void copy(Path path, String name, ArchiveEntry entry, Statistics statistics) throws IOException {
+        var tempPath = path.resolveSibling("." + path.getFileName() + ".sync");
+        try {
+            if (entry.getPath() != null && mLinkedNames.contains(name) && link(entry.getPath(), tempPath)) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                statistics.mLinked++;
+                mProgressTracker.add(entry.getSize(), 0);
+                return;
+            }
+
+            try (var inputStream = entry.openStream(); var outputStream = Files.newOutputStream(tempPath)) {
+                var buffer = new byte[64 * 1024];
+                int count;
+                while ((count = inputStream.read(buffer)) >= 0) {
+                    mCancellationToken.check();
+                    outputStream.write(buffer, 0, count);
+                    mProgressTracker.add(count, 0);
+                    mProgressTracker.addWritten(count);
+                }
+            }
+            setAttributes(tempPath, entry);
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            statistics.mBytes += entry.getSize();
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private void deleteStale(Path dir, TreeMap<String, ArchiveEntry> view, Statistics statistics) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult postVisitDirectory(Path path, IOException ex) throws IOException {
+                if (!path.equals(dir)) {
+                    var name = getName(path);
+                    var entry = view.get(name);
+                    if (entry == null || !entry.isDirectory()) {
+                        try (var stream = Files.list(path)) {
+                            if (stream.findAny().isEmpty()) {
+                                Files.delete(path);
+                                statistics.mDeleted++;
+                            }
+                        }
+                    }
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                return path.equals(dir) || !mKeep.test(getName(path)) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                var name = getName(path);
+                if (!mKeep.test(name)) {
+                    var entry = view.get(name);
+                    boolean match = entry != null && (attributes.isSymbolicLink() ? entry.isSymlink() : attributes.isRegularFile() && entry.getType() == ArchiveEntry.Type.FILE);
+                    if (!match) {
+                        Files.delete(path);
+                        statistics.mDeleted++;
+                    }
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String getName(Path path) {
+                return dir.relativize(path).toString().replace('\\', '/');
+            }
+        });
+    }
+
+    /**
+     * @return the merged layers, keyed by relative path without trailing
+     * slash, parents before children
+     */
+    private TreeMap<String, ArchiveEntry> getView() throws IOException {
+        var view = new TreeMap<String, ArchiveEntry>();
+        mLinkedNames.clear();
+
+        for (var layer : mLayers) {
+            if (layer.mArchive != null) {
+                for (var sourceEntry : layer.mArchive.getEntries()) {
+                    var name = join(layer.mDestination, StringUtils.removeEnd(sourceEntry.getName(), "/"));
+                    put(view, ArchiveEntry.of(layer.mArchive, sourceEntry, name), false);
+                }
+            } else if (layer.mPlan != null) {
+                var prefix = layer.mRoot + "/";
+                for (var entry : layer.mPlan.getEntries()) {
+                    var name = StringUtils.removeEnd(entry.getName(), "/");
+                    if (name.startsWith(prefix)) {
+                        put(view, entry.withName(join(layer.mDestination, name.substring(prefix.length()))), layer.mLink);
+                    }
+                }
+            } else if (Files.isDirectory(layer.mSource, LinkOption.NOFOLLOW_LINKS)) {
+                try (var stream = Files.walk(layer.mSource)) {
+                    for (var path : (Iterable<Path>) stream::iterator) {
+                        var name = join(layer.mDestination, layer.mSource.relativize(path).toString().replace('\\', '/'));
+                        if (!name.isEmpty()) {
+                            put(view, ArchiveEntry.of(path, name), layer.mLink);
+                        }
+                    }
+                }
+            } else if (Files.exists(layer.mSource, LinkOption.NOFOLLOW_LINKS)) {
+                put(view, ArchiveEntry.of(layer.mSource, layer.mDestination), layer.mLink);
+            }
+        }
+
+        return view;
+    }
+
+    /**
+     * @return true if target was created as a hardlink of source
+     */
+    private boolean link(Path source, Path target) throws IOException {
+        try {
+            Files.deleteIfExists(target);
+            Files.createLink(target, source);
+            return true;
+        } catch (FileSystemException | UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    private void put(TreeMap<String, ArchiveEntry> view, ArchiveEntry entry, boolean link) {
+        var name = StringUtils.removeEnd(entry.getName(), "/");
+        if (mExclude.test(name)) {
+            return;
+        }
+
+        if (link) {
+            mLinkedNames.add(name);
+        } else {
+            mLinkedNames.remove(name);
+        }
+
+        int index = name.lastIndexOf('/');
+        while (index > 0 && !view.containsKey(name.substring(0, index))) {
+            var parentName = name.substring(0, index);
+            view.put(parentName, new ArchiveEntry(ArchiveEntry.Type.DIRECTORY, parentName + "/", ArchiveEntry.S_IFDIR | 0755, 0, null, null, 0));
+            index = parentName.lastIndexOf('/');
+        }
+        view.put(name, entry);
+    }
+
+    private void setAttributes(Path path, ArchiveEntry entry) throws IOException {
+        try {
+            var permissions = toPermissions(entry.getMode());
+            if (!permissions.equals(Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS))) {
+                Files.setPosixFilePermissions(path, permissions);
+            }
+        } catch (UnsupportedOperationException ex) {
+            // Not a posix file system
+        }
+        if (!entry.isDirectory()) {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getLastModified()));
+        }
+    }
+
+    private void sync(Path path, String name, ArchiveEntry entry, Statistics statistics) throws IOException {
+        var attributes = Files.exists(path, LinkOption.NOFOLLOW_LINKS) ? Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS) : null;
+
+        switch (entry.getType()) {
+            case DIRECTORY -> {
+                if (attributes == null) {
+                    Files.createDirectories(path);
+                    statistics.mAdded++;
+                }
+                setAttributes(path, entry);
+            }
+            case SYMLINK -> {
+                var target = Paths.get(new String(entry.read(0, (int) entry.getSize()), StandardCharsets.UTF_8));
+                if (attributes != null && target.equals(Files.readSymbolicLink(path))) {
+                    statistics.mUnchanged++;
+                } else {
+                    if (attributes != null) {
+                        Files.delete(path);
+                        statistics.mReplaced++;
+                    } else {
+                        statistics.mAdded++;
+                    }
+                    Files.createSymbolicLink(path, target);
+                }
+            }
+            case FILE -> {
+                if (attributes == null) {
+                    copy(path, name, entry, statistics);
+                    statistics.mAdded++;
+                } else if (attributes.size() == entry.getSize() && attributes.lastModifiedTime().toMillis() / 1000 == entry.getLastModified() / 1000) {
+                    setAttributes(path, entry);
+                    statistics.mUnchanged++;
+                    mProgressTracker.add(entry.getSize(), 0);
+                } else if (attributes.size() == entry.getSize() && contentEquals(path, entry)) {
+                    setAttributes(path, entry);
+                    statistics.mUnchanged++;
+                    mProgressTracker.add(entry.getSize(), 0);
+                } else {
+                    copy(path, name, entry, statistics);
+                    statistics.mReplaced++;
+                }
+                mProgressTracker.add(0, 1);
+            }
+        }
+    }
+
+    public static class Statistics {
+
+        private int mAdded;
+        private long mBytes;
+        private int mDeleted;
+        private int mLinked;
+        private int mReplaced;
+        private int mUnchanged;
+
+        public int getAdded() {
+            return mAdded;
+        }
+
+        /**
+         * @return the number of bytes copied
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public int getDeleted() {
+            return mDeleted;
+        }
+
+        /**
+         * @return the number of added or replaced files that were hardlinked
+         */
+        public int getLinked() {
+            return mLinked;
+        }
+
+        public int getReplaced() {
+            return mReplaced;
+        }
+
+        public int getUnchanged() {
+            return mUnchanged;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d added, %d replaced, %d deleted, %d unchanged, %s copied, %d hardlinked",
+                    mAdded, mReplaced, mDeleted, mUnchanged, FileUtils.byteCountToDisplaySize(mBytes), mLinked);
+        }
+    }
+
+    private static class Layer {
+
+        private final SourceArchive mArchive;
+        private final String mDestination;
+        private final boolean mLink;
+        private final PackagePlan mPlan;
+        private final String mRoot;
+        private final Path mSource;
+
+        public Layer(Path source, SourceArchive archive, PackagePlan plan, String root, String destination, boolean link) {
+            mSource = source;
+            mArchive = archive;
+            mPlan = plan;
+            mRoot = root;
+            mDestination = destination;
+            mLink = link;
+        }
+    }
+}
@@ -17,6 +17,7 @@ package se.trixon.nbpackager;
 
 import java.awt.Dimension;
 import javax.swing.JOptionPane;
+import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.settings.ConvertAsProperties;
 import org.openide.awt.ActionID;
 import org.openide.awt.ActionReference;
@@ -26,8 +27,10 @@ import org.openide.windows.IOProvider;
 import org.openide.windows.InputOutput;
 import org.openide.windows.TopComponent;
 import se.trixon.nbpackager_core.DialogListener;
+import se.trixon.nbpackager_core.LogSink;
 import se.trixon.nbpackager_core.MainPanel;
 import se.trixon.nbpackager_core.Options;
+import se.trixon.nbpackager_core.ProgressEvent;
 
 /**
  * Top component which displays something.
@@ -54,6 +57,9 @@ import se.trixon.nbpackager_core.Options;
 public final class PackagerTopComponent extends TopComponent {
 
     private InputOutput mInputOutput = null;
+    private LogSink mLogSink;
+    private ProgressHandle mProgressHandle;
+    private int mProgressWorkunits = -1;
 
     public PackagerTopComponent() {
         initComponents();
@@ -62,25 +68,27 @@ public final class PackagerTopComponent extends TopComponent {
     }
 
     private void init() {
-        mainPanel.getLog().setOut(s -> {
+        // The output window is thread safe, the batches are written from the
+        // thread of the sink
+        mLogSink = new LogSink(mainPanel.getLog(), Runnable::run, lines -> {
             if (mInputOutput == null) {
                 mInputOutput = IOProvider.getDefault().getIO("Packager", true);
             }
             mInputOutput.select();
-            mInputOutput.getOut().println(s);
-        });
-        mainPanel.getLog().setErr(s -> {
-            if (mInputOutput == null) {
-                mInputOutput = IOProvider.getDefault().getIO("Packager", true);
+            for (var line : lines) {
+                if (line.isErr()) {
+                    mInputOutput.getErr().println(line.getText());
+                } else {
+                    mInputOutput.getOut().println(line.getText());
+                }
             }
-            mInputOutput.select();
-            mInputOutput.getErr().println(s);
         });
 
         if (Options.getInstance().getPreferences() == null) {
             Options.getInstance().setPreferences(NbPreferences.forModule(PackagerOptionsPanel.class));
         }
 
+        mainPanel.setProgressListener(this::updateProgressHandle);
         mainPanel.init();
         mainPanel.getHelpButton().setVisible(true);
         MainPanel.setDialogListener(new DialogListener() {
@@ -93,6 +101,36 @@ public final class PackagerTopComponent extends TopComponent {
         setMinimumSize(new Dimension(1, 1));
     }
 
+    /**
+     * Shows the progress of an operation in the status line, called from the
+     * threads of the operation.
+     */
+    private synchronized void updateProgressHandle(ProgressEvent event) {
+        if (event.getType() == ProgressEvent.Type.FINISHED) {
+            if (mProgressHandle != null) {
+                mProgressHandle.finish();
+                mProgressHandle = null;
+            }
+            return;
+        }
+
+        if (mProgressHandle == null) {
+            mProgressHandle = ProgressHandle.createHandle("Packager");
+            mProgressHandle.start();
+            mProgressWorkunits = -1;
+        }
+
+        if (event.getFraction() >= 0) {
+            if (mProgressWorkunits < 0) {
+                mProgressHandle.switchToDeterminate(100);
+            }
+            mProgressWorkunits = (int) (event.getFraction() * 100);
+            mProgressHandle.progress(event.toString(), mProgressWorkunits);
+        } else if (event.getStage() != null) {
+            mProgressHandle.progress(event.getStage());
+        }
+    }
+
     /**
      * This method is called from within the constructor to initialize the form. WARNING: Do NOT modify this code. The content of this method is always regenerated by the Form Editor.
      */
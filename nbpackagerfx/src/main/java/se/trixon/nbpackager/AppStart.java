@@ -17,6 +17,7 @@ package se.trixon.nbpackager;
 
 import java.util.Locale;
 import java.util.prefs.Preferences;
+import se.trixon.nbpackager_core.RunRecording;
 
 /**
  *
@@ -25,10 +26,12 @@ import java.util.prefs.Preferences;
 public class AppStart {
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments, {@value RunRecording#ARGUMENT}
+     * records every run
      */
     public static void main(String[] args) {
         Locale.setDefault(Locale.ENGLISH);
+        RunRecording.parseArguments(args);
         se.trixon.nbpackager_core.Options.getInstance().setPreferences(Preferences.userNodeForPackage(App.class));
 
         new Thread(() -> {
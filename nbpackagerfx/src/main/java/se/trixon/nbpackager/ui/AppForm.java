@@ -25,6 +25,7 @@ import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javafx.application.Platform;
 import javafx.beans.binding.BooleanBinding;
 import javafx.geometry.Pos;
 import javafx.scene.control.Alert;
@@ -55,6 +56,8 @@ import se.trixon.nbpackager.Options;
 import se.trixon.nbpackager.ProfileManager;
 import se.trixon.nbpackager.RunManager;
 import se.trixon.nbpackager.RunStatus;
+import se.trixon.nbpackager_core.LogSink;
+import se.trixon.nbpackager_core.Operation;
 import se.trixon.nbpackager_core.Profile;
 import se.trixon.nbpackager_core.RunState;
 
@@ -73,6 +76,7 @@ public class AppForm extends BorderPane {
     private Action mEditAction;
     private ListView<Profile> mListView;
     private final Log mLog = new Log();
+    private LogSink mLogSink;
 //    private OperationListener mOperationListener;
     private Thread mOperationThread;
     private final Options mOptions = Options.getInstance();
@@ -167,14 +171,15 @@ public class AppForm extends BorderPane {
 
         setLeft(mListView);
         setCenter(mStatusPanel);
-        mLog.setOut(s -> {
-            System.out.println(s);
-            mStatusPanel.out(s);
-        });
-
-        mLog.setErr(s -> {
-            System.err.println(s);
-            mStatusPanel.err(s);
+        mLogSink = new LogSink(mLog, Platform::runLater, lines -> {
+            for (var line : lines) {
+                if (line.isErr()) {
+                    System.err.println(line.getText());
+                } else {
+                    System.out.println(line.getText());
+                }
+            }
+            mStatusPanel.add(lines);
         });
 
         mLog.out(SystemHelper.getSystemInfo());
@@ -396,7 +401,21 @@ public class AppForm extends BorderPane {
 
     private void profileRun(Profile profile) {
         if (profile.isValid()) {
-//            requestKmlFileObject(profile);
+            mStatusPanel.clear();
+            mRunManager.setRunState(RunState.CANCELABLE);
+            mRunManager.setRunStatus(RunStatus.NONE);
+            mOperationThread = new Thread(() -> {
+                var operation = new Operation(profile, mLog);
+                operation.setProgressListener(mStatusPanel::setProgress);
+                try {
+                    operation.start();
+                } catch (IOException ex) {
+                    mLog.err(ex.getMessage());
+                }
+                mRunManager.setRunState(RunState.STARTABLE);
+            });
+            mOperationThread.setName("Operation");
+            mOperationThread.start();
         } else {
             mStatusPanel.clear();
             mStatusPanel.out(profile.getValidationError());
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.nbpackager.ui;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.skin.VirtualFlow;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
+import javafx.scene.layout.Region;
+import javafx.scene.text.Font;
+import se.trixon.nbpackager_core.LogIndex;
+import se.trixon.nbpackager_core.LogSink;
+import se.trixon.nbpackager_core.LogStore;
+import static se.trixon.nbpackager_core.Options.DEFAULT_CACHE_DIR;
+import static se.trixon.nbpackager_core.Options.OPT_CACHE_DIR;
+
+/**
+ * Shows the log of a run as a virtualized list of lines, only the visible
+ * ones get a cell.
+ * <p>
+ * The lines are held by a {@link LogStore}, which keeps the recent ones in
+ * memory and pages older ones in from the file of the run as they are
+ * scrolled to. The view follows new lines while it is scrolled to the end.
+ * <p>
+ * It can be filtered to the lines that match a query, the lines written to
+ * stderr or both, and searched for the next match, through the
+ * {@link LogIndex} of the store. New lines are checked against the filter and
+ * the last query as they arrive.
+ *
+ * @author Patrik Karlström
+ */
+public class LogView extends ListView<LogSink.Line> {
+
+    private static final int MEMORY_LINES = 10000;
+    private boolean mErrorsOnly;
+    private String mFilterQuery = "";
+    private int mGeneration;
+    private final Lines mLines = new Lines();
+    private final LogStore mLogStore;
+    private BitSet mMatches;
+    private String mMatchesQuery;
+    private int mMatchesSize;
+    private final ExecutorService mSearchExecutorService = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "LogView-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int[] mVisible;
+    private int mVisibleSize;
+    private boolean mWrapText;
+
+    public LogView() {
+        var cacheDir = se.trixon.nbpackager_core.Options.getInstance().get(OPT_CACHE_DIR, DEFAULT_CACHE_DIR);
+        mLogStore = new LogStore(new File(cacheDir, "logs"), MEMORY_LINES);
+
+        setItems(mLines);
+        getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        setCellFactory(listView -> new LineCell());
+        setOnKeyPressed(keyEvent -> {
+            if (new KeyCodeCombination(KeyCode.C, KeyCombination.SHORTCUT_DOWN).match(keyEvent)) {
+                copySelection();
+                keyEvent.consume();
+            }
+        });
+    }
+
+    /**
+     * Appends lines, on the FX thread.
+     *
+     * @param lines
+     */
+    public void add(List<LogSink.Line> lines) {
+        boolean follow = isAtEnd();
+        int from = mLines.size();
+        int first = mLogStore.size();
+        mLogStore.addAll(lines);
+        if (mVisible != null) {
+            for (int i = 0; i < lines.size(); i++) {
+                if (isVisible(lines.get(i))) {
+                    addVisible(first + i);
+                }
+            }
+        }
+        mLines.fireAdded(from, getVisibleSize());
+        if (follow) {
+            scrollTo(mLines.size() - 1);
+        }
+    }
+
+    /**
+     * Removes all lines and the file of the previous run.
+     */
+    public void clear() {
+        getSelectionModel().clearSelection();
+        int size = mLines.size();
+        mLogStore.clear();
+        mGeneration++;
+        mMatches = null;
+        if (mVisible != null) {
+            mVisibleSize = 0;
+        }
+        mLines.fireRemoved(size);
+    }
+
+    /**
+     * Selects the next line that matches query, after or before the selected
+     * one, among the lines shown.
+     *
+     * @param query
+     * @param forward
+     * @param inclusive if the selected line itself may be the match, as when
+     * the query is being typed
+     * @return false if there is none
+     */
+    public boolean find(String query, boolean forward, boolean inclusive) {
+        int selected = getSelectionModel().getSelectedIndex();
+        int step = forward ? 1 : -1;
+        int from = selected < 0 ? (forward ? 0 : mLines.size() - 1) : selected + (inclusive ? 0 : step);
+        var matches = getMatches(query);
+        for (int i = from; i >= 0 && i < mLines.size(); i += step) {
+            int line = toLine(i);
+            int match = forward ? matches.nextSetBit(line) : matches.previousSetBit(line);
+            if (match < 0) {
+                return false;
+            }
+            int index = toIndex(match);
+            if (index < mLines.size() && toLine(index) == match) {
+                select(index);
+                return true;
+            }
+            // Not shown, continue from the next line that is
+            i = forward ? index - 1 : index;
+        }
+
+        return false;
+    }
+
+    public LogStore getLogStore() {
+        return mLogStore;
+    }
+
+    /**
+     * @param query
+     * @return the number of lines in the log that match query
+     */
+    public int getMatchCount(String query) {
+        return getMatches(query).cardinality();
+    }
+
+    /**
+     * Searches for query on a thread of its own and keeps the result for the
+     * calls that follow, then runs onDone on the FX thread.
+     *
+     * @param query
+     * @param onDone
+     */
+    public void search(String query, Runnable onDone) {
+        int generation = mGeneration;
+        int size = mLogStore.size();
+        mSearchExecutorService.execute(() -> {
+            var matches = mLogStore.search(query);
+            Platform.runLater(() -> {
+                if (generation == mGeneration) {
+                    mMatches = matches;
+                    mMatchesQuery = query;
+                    mMatchesSize = size;
+                }
+                onDone.run();
+            });
+        });
+    }
+
+    /**
+     * Selects the first line shown at or after line of the log, like the
+     * start of a stage.
+     *
+     * @param line
+     */
+    public void scrollToLine(int line) {
+        int index = toIndex(line);
+        if (index < mLines.size()) {
+            select(index);
+        }
+    }
+
+    /**
+     * Shows only the lines that match query and, if errorsOnly, were written
+     * to stderr. The selected line stays selected if it is still shown.
+     *
+     * @param query blank for all lines
+     * @param errorsOnly
+     */
+    public void setFilter(String query, boolean errorsOnly) {
+        mFilterQuery = query == null ? "" : query;
+        mErrorsOnly = errorsOnly;
+        int selected = getSelectionModel().getSelectedIndex();
+        int selectedLine = selected < 0 ? -1 : toLine(selected);
+        getSelectionModel().clearSelection();
+        int size = mLines.size();
+
+        if (mFilterQuery.isBlank() && !mErrorsOnly) {
+            mVisible = null;
+        } else {
+            var lines = getMatches(mFilterQuery);
+            if (mErrorsOnly) {
+                lines.and(mLogStore.getLogIndex().getErrLines());
+            }
+            mVisible = lines.stream().toArray();
+            mVisibleSize = mVisible.length;
+        }
+        mLines.fireReplaced(size, getVisibleSize());
+
+        if (selectedLine >= 0) {
+            int index = toIndex(selectedLine);
+            if (index < mLines.size() && toLine(index) == selectedLine) {
+                select(index);
+            }
+        }
+    }
+
+    public void setWrapText(boolean wrapText) {
+        mWrapText = wrapText;
+        refresh();
+    }
+
+    private void addVisible(int line) {
+        if (mVisibleSize == mVisible.length) {
+            mVisible = Arrays.copyOf(mVisible, Math.max(16, mVisibleSize * 2));
+        }
+        mVisible[mVisibleSize++] = line;
+    }
+
+    private void copySelection() {
+        var text = getSelectionModel().getSelectedIndices().stream()
+                .sorted()
+                .map(index -> mLogStore.get(toLine(index)).getText())
+                .collect(Collectors.joining("\n"));
+        var content = new ClipboardContent();
+        content.putString(text);
+        Clipboard.getSystemClipboard().setContent(content);
+    }
+
+    /**
+     * The result of the last query is kept, so repeated searches for the
+     * same query are not run again. When the log grew only the new lines are
+     * checked, unless they are no longer in memory.
+     */
+    private BitSet getMatches(String query) {
+        int size = mLogStore.size();
+        if (mMatches == null || !query.equals(mMatchesQuery) || size - mMatchesSize > MEMORY_LINES) {
+            mMatches = mLogStore.search(query);
+            mMatchesQuery = query;
+        } else {
+            for (int i = mMatchesSize; i < size; i++) {
+                mMatches.set(i, LogIndex.matches(query, mLogStore.get(i).getText()));
+            }
+        }
+        mMatchesSize = size;
+
+        return (BitSet) mMatches.clone();
+    }
+
+    private int getVisibleSize() {
+        return mVisible == null ? mLogStore.size() : mVisibleSize;
+    }
+
+    private boolean isAtEnd() {
+        var flow = (VirtualFlow<?>) lookup(".virtual-flow");
+        if (flow == null || mLines.isEmpty()) {
+            return true;
+        }
+        var cell = flow.getLastVisibleCell();
+
+        return cell == null || cell.getIndex() >= mLines.size() - 1;
+    }
+
+    private boolean isVisible(LogSink.Line line) {
+        return (!mErrorsOnly || line.isErr()) && LogIndex.matches(mFilterQuery, line.getText());
+    }
+
+    private void select(int index) {
+        getSelectionModel().clearAndSelect(index);
+        scrollTo(Math.max(0, index - 3));
+    }
+
+    /**
+     * @return the index in the view of line, or of the first line shown
+     * after it
+     */
+    private int toIndex(int line) {
+        if (mVisible == null) {
+            return line;
+        }
+        int index = Arrays.binarySearch(mVisible, 0, mVisibleSize, line);
+
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private int toLine(int index) {
+        return mVisible == null ? index : mVisible[index];
+    }
+
+    private class LineCell extends ListCell<LogSink.Line> {
+
+        public LineCell() {
+            setFont(Font.font("monospace", Font.getDefault().getSize()));
+        }
+
+        @Override
+        protected void updateItem(LogSink.Line line, boolean empty) {
+            super.updateItem(line, empty);
+            if (empty || line == null) {
+                setText(null);
+                setStyle("");
+            } else {
+                setText(line.getText());
+                setStyle(line.isErr() ? "-fx-text-fill: #d04040;" : "");
+            }
+            setWrapText(mWrapText);
+            // Wrapped cells follow the width of the view
+            setPrefWidth(mWrapText ? 0 : Region.USE_COMPUTED_SIZE);
+        }
+    }
+
+    /**
+     * The lines of the store as an observable list, read on demand.
+     */
+    private class Lines extends ObservableListBase<LogSink.Line> {
+
+        private int mSize;
+
+        @Override
+        public LogSink.Line get(int index) {
+            return mLogStore.get(toLine(index));
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        private void fireAdded(int from, int to) {
+            mSize = to;
+            if (from == to) {
+                return;
+            }
+            beginChange();
+            nextAdd(from, to);
+            endChange();
+        }
+
+        private void fireRemoved(int size) {
+            mSize = 0;
+            if (size == 0) {
+                return;
+            }
+            beginChange();
+            nextRemove(0, Collections.nCopies(size, (LogSink.Line) null));
+            endChange();
+        }
+
+        private void fireReplaced(int oldSize, int newSize) {
+            mSize = newSize;
+            beginChange();
+            if (oldSize > 0) {
+                nextRemove(0, Collections.nCopies(oldSize, (LogSink.Line) null));
+            }
+            if (newSize > 0) {
+                nextAdd(0, newSize);
+            }
+            endChange();
+        }
+    }
+}
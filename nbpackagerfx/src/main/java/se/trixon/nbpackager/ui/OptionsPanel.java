@@ -18,6 +18,7 @@ package se.trixon.nbpackager.ui;
 import javafx.geometry.Insets;
 import javafx.scene.control.Label;
 import javafx.scene.control.SelectionMode;
+import javafx.scene.control.Spinner;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Priority;
@@ -27,11 +28,33 @@ import se.trixon.almond.util.fx.FxHelper;
 import se.trixon.almond.util.fx.control.FileChooserPane;
 import se.trixon.nbpackager.Options;
 import static se.trixon.nbpackager_core.Options.DEFAULT_APP_IMAGE_OPTIONS;
+import static se.trixon.nbpackager_core.Options.DEFAULT_APP_IMAGE_TIMEOUT;
 import static se.trixon.nbpackager_core.Options.DEFAULT_APP_IMAGE_TOOL;
+import static se.trixon.nbpackager_core.Options.DEFAULT_CACHE;
+import static se.trixon.nbpackager_core.Options.DEFAULT_CACHE_SIZE;
+import static se.trixon.nbpackager_core.Options.DEFAULT_INCREMENTAL;
+import static se.trixon.nbpackager_core.Options.DEFAULT_PARALLEL_TARGETS;
+import static se.trixon.nbpackager_core.Options.DEFAULT_RECORD;
+import static se.trixon.nbpackager_core.Options.DEFAULT_SCRIPT_TIMEOUT;
 import static se.trixon.nbpackager_core.Options.DEFAULT_SNAP_OPTIONS;
+import static se.trixon.nbpackager_core.Options.DEFAULT_SNAP_TIMEOUT;
+import static se.trixon.nbpackager_core.Options.DEFAULT_STAGING_LINKS;
+import static se.trixon.nbpackager_core.Options.DEFAULT_STREAMING;
+import static se.trixon.nbpackager_core.Options.DEFAULT_WORKSPACE;
 import static se.trixon.nbpackager_core.Options.OPT_APP_IMAGE_OPTIONS;
+import static se.trixon.nbpackager_core.Options.OPT_APP_IMAGE_TIMEOUT;
 import static se.trixon.nbpackager_core.Options.OPT_APP_IMAGE_TOOL;
+import static se.trixon.nbpackager_core.Options.OPT_CACHE;
+import static se.trixon.nbpackager_core.Options.OPT_CACHE_SIZE;
+import static se.trixon.nbpackager_core.Options.OPT_INCREMENTAL;
+import static se.trixon.nbpackager_core.Options.OPT_PARALLEL_TARGETS;
+import static se.trixon.nbpackager_core.Options.OPT_RECORD;
+import static se.trixon.nbpackager_core.Options.OPT_SCRIPT_TIMEOUT;
 import static se.trixon.nbpackager_core.Options.OPT_SNAP_OPTIONS;
+import static se.trixon.nbpackager_core.Options.OPT_SNAP_TIMEOUT;
+import static se.trixon.nbpackager_core.Options.OPT_STAGING_LINKS;
+import static se.trixon.nbpackager_core.Options.OPT_STREAMING;
+import static se.trixon.nbpackager_core.Options.OPT_WORKSPACE;
 
 /**
  *
@@ -41,11 +64,22 @@ public class OptionsPanel extends GridPane {
 
     private FileChooserPane mAppImageChooserPane;
     private TextField mAppImageTextField;
+    private final Spinner<Integer> mAppImageTimeoutSpinner = new Spinner<>(0, 10080, DEFAULT_APP_IMAGE_TIMEOUT, 5);
+    private final Spinner<Integer> mCacheSizeSpinner = new Spinner<>(0, 1048576, DEFAULT_CACHE_SIZE, 256);
+    private final ToggleSwitch mCacheToggleSwitch = new ToggleSwitch("Cache compressed entries between runs");
     private final se.trixon.nbpackager_core.Options mCoreOptions = se.trixon.nbpackager_core.Options.getInstance();
+    private final ToggleSwitch mIncrementalToggleSwitch = new ToggleSwitch("Skip targets whose inputs did not change");
+    private final ToggleSwitch mLinkToggleSwitch = new ToggleSwitch("Hardlink jre and template files into staging directories");
     private final ToggleSwitch mNightModeToggleSwitch = new ToggleSwitch(Dict.NIGHT_MODE.toString());
     private final Options mOptions = Options.getInstance();
+    private final ToggleSwitch mParallelToggleSwitch = new ToggleSwitch("Build targets in parallel");
+    private final ToggleSwitch mRecordToggleSwitch = new ToggleSwitch("Record each run with Flight Recorder");
+    private final Spinner<Integer> mScriptTimeoutSpinner = new Spinner<>(0, 10080, DEFAULT_SCRIPT_TIMEOUT, 5);
     private TextField mSnapcraftTextField;
+    private final Spinner<Integer> mSnapTimeoutSpinner = new Spinner<>(0, 10080, DEFAULT_SNAP_TIMEOUT, 5);
+    private final ToggleSwitch mStreamingToggleSwitch = new ToggleSwitch("Stream packages without staging directories");
     private final ToggleSwitch mWordWrapToggleSwitch = new ToggleSwitch(Dict.DYNAMIC_WORD_WRAP.toString());
+    private final ToggleSwitch mWorkspaceToggleSwitch = new ToggleSwitch("Keep a workspace per profile and sync it instead of copying");
 
     public OptionsPanel() {
         createUI();
@@ -53,12 +87,34 @@ public class OptionsPanel extends GridPane {
         mAppImageChooserPane.setPath(mCoreOptions.get(OPT_APP_IMAGE_TOOL, DEFAULT_APP_IMAGE_TOOL));
         mAppImageTextField.setText(mCoreOptions.get(OPT_APP_IMAGE_OPTIONS, DEFAULT_APP_IMAGE_OPTIONS));
         mSnapcraftTextField.setText(mCoreOptions.get(OPT_SNAP_OPTIONS, DEFAULT_SNAP_OPTIONS));
+        mParallelToggleSwitch.setSelected(mCoreOptions.is(OPT_PARALLEL_TARGETS, DEFAULT_PARALLEL_TARGETS));
+        mStreamingToggleSwitch.setSelected(mCoreOptions.is(OPT_STREAMING, DEFAULT_STREAMING));
+        mIncrementalToggleSwitch.setSelected(mCoreOptions.is(OPT_INCREMENTAL, DEFAULT_INCREMENTAL));
+        mWorkspaceToggleSwitch.setSelected(mCoreOptions.is(OPT_WORKSPACE, DEFAULT_WORKSPACE));
+        mLinkToggleSwitch.setSelected(mCoreOptions.is(OPT_STAGING_LINKS, DEFAULT_STAGING_LINKS));
+        mRecordToggleSwitch.setSelected(mCoreOptions.is(OPT_RECORD, DEFAULT_RECORD));
+        mCacheToggleSwitch.setSelected(mCoreOptions.is(OPT_CACHE, DEFAULT_CACHE));
+        mCacheSizeSpinner.getValueFactory().setValue(mCoreOptions.getInt(OPT_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        mAppImageTimeoutSpinner.getValueFactory().setValue(mCoreOptions.getInt(OPT_APP_IMAGE_TIMEOUT, DEFAULT_APP_IMAGE_TIMEOUT));
+        mSnapTimeoutSpinner.getValueFactory().setValue(mCoreOptions.getInt(OPT_SNAP_TIMEOUT, DEFAULT_SNAP_TIMEOUT));
+        mScriptTimeoutSpinner.getValueFactory().setValue(mCoreOptions.getInt(OPT_SCRIPT_TIMEOUT, DEFAULT_SCRIPT_TIMEOUT));
     }
 
     public void save() {
         mCoreOptions.put(OPT_APP_IMAGE_TOOL, mAppImageChooserPane.getPathAsString());
         mCoreOptions.put(OPT_APP_IMAGE_OPTIONS, mAppImageTextField.getText());
         mCoreOptions.put(OPT_SNAP_OPTIONS, mSnapcraftTextField.getText());
+        mCoreOptions.put(OPT_PARALLEL_TARGETS, mParallelToggleSwitch.isSelected());
+        mCoreOptions.put(OPT_STREAMING, mStreamingToggleSwitch.isSelected());
+        mCoreOptions.put(OPT_INCREMENTAL, mIncrementalToggleSwitch.isSelected());
+        mCoreOptions.put(OPT_WORKSPACE, mWorkspaceToggleSwitch.isSelected());
+        mCoreOptions.put(OPT_STAGING_LINKS, mLinkToggleSwitch.isSelected());
+        mCoreOptions.put(OPT_RECORD, mRecordToggleSwitch.isSelected());
+        mCoreOptions.put(OPT_CACHE, mCacheToggleSwitch.isSelected());
+        mCoreOptions.put(OPT_CACHE_SIZE, mCacheSizeSpinner.getValue());
+        mCoreOptions.put(OPT_APP_IMAGE_TIMEOUT, mAppImageTimeoutSpinner.getValue());
+        mCoreOptions.put(OPT_SNAP_TIMEOUT, mSnapTimeoutSpinner.getValue());
+        mCoreOptions.put(OPT_SCRIPT_TIMEOUT, mScriptTimeoutSpinner.getValue());
     }
 
     private void createUI() {
@@ -72,6 +128,10 @@ public class OptionsPanel extends GridPane {
 
         var appImageLabel = new Label("AppImageTool options");
         var snapcraftLabel = new Label("Snapcraft options");
+        var cacheSizeLabel = new Label("Cache size limit (MB)");
+        var appImageTimeoutLabel = new Label("AppImageTool timeout (min, 0 for none)");
+        var snapTimeoutLabel = new Label("Snapcraft timeout (min, 0 for none)");
+        var scriptTimeoutLabel = new Label("Script timeout (min, 0 for none)");
         int row = 0;
 
         add(mAppImageChooserPane, 0, row++, 1, 1);
@@ -79,15 +139,35 @@ public class OptionsPanel extends GridPane {
         add(mAppImageTextField, 0, row++, 1, 1);
         add(snapcraftLabel, 0, row++, 1, 1);
         add(mSnapcraftTextField, 0, row++, 1, 1);
+        add(mParallelToggleSwitch, 0, row++, 1, 1);
+        add(mStreamingToggleSwitch, 0, row++, 1, 1);
+        add(mIncrementalToggleSwitch, 0, row++, 1, 1);
+        add(mWorkspaceToggleSwitch, 0, row++, 1, 1);
+        add(mLinkToggleSwitch, 0, row++, 1, 1);
+        add(mRecordToggleSwitch, 0, row++, 1, 1);
+        add(mCacheToggleSwitch, 0, row++, 1, 1);
+        add(cacheSizeLabel, 0, row++, 1, 1);
+        add(mCacheSizeSpinner, 0, row++, 1, 1);
+        add(appImageTimeoutLabel, 0, row++, 1, 1);
+        add(mAppImageTimeoutSpinner, 0, row++, 1, 1);
+        add(snapTimeoutLabel, 0, row++, 1, 1);
+        add(mSnapTimeoutSpinner, 0, row++, 1, 1);
+        add(scriptTimeoutLabel, 0, row++, 1, 1);
+        add(mScriptTimeoutSpinner, 0, row++, 1, 1);
         add(mWordWrapToggleSwitch, 0, row++, 1, 1);
         add(mNightModeToggleSwitch, 0, row++, 1, 1);
 
         FxHelper.setPadding(new Insets(8, 0, 0, 0),
                 appImageLabel,
                 snapcraftLabel,
+                cacheSizeLabel,
+                appImageTimeoutLabel,
+                snapTimeoutLabel,
+                scriptTimeoutLabel,
                 mNightModeToggleSwitch
         );
         FxHelper.setPadding(new Insets(18, 0, 0, 0),
+                mParallelToggleSwitch,
                 mWordWrapToggleSwitch
         );
 
@@ -96,6 +176,18 @@ public class OptionsPanel extends GridPane {
             columnConstraint.setHgrow(Priority.ALWAYS);
         }
 
+        mParallelToggleSwitch.setMaxWidth(Double.MAX_VALUE);
+        mStreamingToggleSwitch.setMaxWidth(Double.MAX_VALUE);
+        mIncrementalToggleSwitch.setMaxWidth(Double.MAX_VALUE);
+        mWorkspaceToggleSwitch.setMaxWidth(Double.MAX_VALUE);
+        mLinkToggleSwitch.setMaxWidth(Double.MAX_VALUE);
+        mRecordToggleSwitch.setMaxWidth(Double.MAX_VALUE);
+        mCacheToggleSwitch.setMaxWidth(Double.MAX_VALUE);
+        mCacheSizeSpinner.setEditable(true);
+        mCacheSizeSpinner.disableProperty().bind(mCacheToggleSwitch.selectedProperty().not());
+        mAppImageTimeoutSpinner.setEditable(true);
+        mSnapTimeoutSpinner.setEditable(true);
+        mScriptTimeoutSpinner.setEditable(true);
         mWordWrapToggleSwitch.setMaxWidth(Double.MAX_VALUE);
         mNightModeToggleSwitch.setMaxWidth(Double.MAX_VALUE);
 
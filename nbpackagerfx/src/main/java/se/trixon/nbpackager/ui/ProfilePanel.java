@@ -28,6 +28,7 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.Region;
+import javafx.scene.layout.VBox;
 import org.controlsfx.validation.ValidationResult;
 import org.controlsfx.validation.ValidationSupport;
 import org.controlsfx.validation.Validator;
@@ -44,8 +45,10 @@ import se.trixon.nbpackager_core.Profile;
  */
 public class ProfilePanel extends GridPane {
 
+    private CheckBox mBlake3SumCheckBox;
     private TextField mDescTextField;
     private FileChooserPane mDestChooserPane;
+    private TextField mExcludeTextField;
     private FileChooserPane mJreLinuxChooserPane;
     private FileChooserPane mJreMacChooserPane;
     private FileChooserPane mJreWindowsChooserPane;
@@ -84,6 +87,7 @@ public class ProfilePanel extends GridPane {
         mTemplateDirAppImageChooserPane.setPath(p.getTemplateDirAppImage());
         mTemplateDirSnapChooserPane.setPath(p.getTemplateDirSnap());
         mResourceChooserPane.setPath(p.getResourceDir());
+        mExcludeTextField.setText(p.getExcludes());
 
         mJreLinuxChooserPane.setPath(p.getJreLinux());
         mJreMacChooserPane.setPath(p.getJreMac());
@@ -98,6 +102,7 @@ public class ProfilePanel extends GridPane {
 
         mSha256SumCheckBox.setSelected(p.isChecksumSha256());
         mSha512SumCheckBox.setSelected(p.isChecksumSha512());
+        mBlake3SumCheckBox.setSelected(p.isChecksumBlake3());
 
         Platform.runLater(() -> {
             initValidation();
@@ -115,6 +120,7 @@ public class ProfilePanel extends GridPane {
         mProfile.setTemplateDirAppImage(mTemplateDirAppImageChooserPane.getPath());
         mProfile.setTemplateDirSnap(mTemplateDirSnapChooserPane.getPath());
         mProfile.setResourceDir(mResourceChooserPane.getPath());
+        mProfile.setExcludes(mExcludeTextField.getText().trim());
 
         mProfile.setJreLinux(mJreLinuxChooserPane.getPath());
         mProfile.setJreMac(mJreMacChooserPane.getPath());
@@ -129,6 +135,7 @@ public class ProfilePanel extends GridPane {
 
         mProfile.setChecksumSha256(mSha256SumCheckBox.isSelected());
         mProfile.setChecksumSha512(mSha512SumCheckBox.isSelected());
+        mProfile.setChecksumBlake3(mBlake3SumCheckBox.isSelected());
     }
 
     void setOkButton(Button button) {
@@ -150,6 +157,9 @@ public class ProfilePanel extends GridPane {
         mTemplateDirAppImageChooserPane = new FileChooserPane(Dict.SELECT.toString(), "AppImage template directory", ObjectMode.DIRECTORY, SelectionMode.SINGLE);
         mTemplateDirSnapChooserPane = new FileChooserPane(Dict.SELECT.toString(), "Snap template directory", ObjectMode.DIRECTORY, SelectionMode.SINGLE);
         mResourceChooserPane = new FileChooserPane(Dict.SELECT.toString(), "Resource base directory", ObjectMode.DIRECTORY, SelectionMode.SINGLE);
+        mExcludeTextField = new TextField();
+        mExcludeTextField.setPromptText("src.zip man/ !bin/keep.exe windows:bin/*.sh");
+        var excludeBox = new VBox(new Label("Exclude (glob rules, !rule to include, target:rule)"), mExcludeTextField);
 
         mJreLinuxChooserPane = new FileChooserPane(Dict.SELECT.toString(), "Linux JRE", ObjectMode.DIRECTORY, SelectionMode.SINGLE);
         mJreMacChooserPane = new FileChooserPane(Dict.SELECT.toString(), "Mac JRE", ObjectMode.DIRECTORY, SelectionMode.SINGLE);
@@ -167,6 +177,7 @@ public class ProfilePanel extends GridPane {
 
         mSha256SumCheckBox = new CheckBox("sha256sum");
         mSha512SumCheckBox = new CheckBox("sha512sum");
+        mBlake3SumCheckBox = new CheckBox("b3sum");
 
         var checkBoxBox = new HBox(8,
                 mTargetLinuxCheckBox,
@@ -177,7 +188,8 @@ public class ProfilePanel extends GridPane {
                 mTargetAnyCheckBox,
                 spacer,
                 mSha256SumCheckBox,
-                mSha512SumCheckBox
+                mSha512SumCheckBox,
+                mBlake3SumCheckBox
         );
 
         int row = 0;
@@ -190,6 +202,7 @@ public class ProfilePanel extends GridPane {
         add(mTemplateDirAppImageChooserPane, 0, ++row, 1, 1);
         add(mTemplateDirSnapChooserPane, 1, row, 1, 1);
         add(mResourceChooserPane, 0, ++row, 1, 1);
+        add(excludeBox, 1, row, 1, 1);
 
         var jreGridPane = new GridPane();
         jreGridPane.setHgap(8);
@@ -221,6 +234,7 @@ public class ProfilePanel extends GridPane {
                 mTemplateDirAppImageChooserPane,
                 mTemplateDirSnapChooserPane,
                 mResourceChooserPane,
+                excludeBox,
                 jreGridPane
         );
 
@@ -15,24 +15,40 @@
  */
 package se.trixon.nbpackager.ui;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.geometry.Pos;
 import javafx.geometry.Side;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.MenuButton;
+import javafx.scene.control.MenuItem;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
+import javafx.scene.control.TextField;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
+import javafx.util.Duration;
 import se.trixon.almond.util.Dict;
 import se.trixon.almond.util.fx.FxHelper;
 import se.trixon.almond.util.fx.control.LogPanel;
 import se.trixon.nbpackager.Options;
 import se.trixon.nbpackager.RunManager;
+import se.trixon.nbpackager_core.LogIndex;
+import se.trixon.nbpackager_core.LogSink;
+import se.trixon.nbpackager_core.ProgressEvent;
 
 /**
  *
@@ -41,11 +57,18 @@ import se.trixon.nbpackager.RunManager;
 public class StatusPanel extends BorderPane {
 
     private final Label mDescLabel = new Label();
+    private final CheckBox mErrorsOnlyCheckBox = new CheckBox("Errors only");
+    private final CheckBox mFilterCheckBox = new CheckBox("Only matching");
     private final LogPanel mLogInfoPanel = new LogPanel();
-    private final LogPanel mLogOutPanel = new LogPanel();
+    private final LogView mLogView = new LogView();
+    private final Label mMatchesLabel = new Label();
     private final Label mNameLabel = new Label();
     private final ProgressBar mProgressBar = new ProgressBar();
+    private final Label mProgressLabel = new Label();
     private final RunManager mRunManager = RunManager.getInstance();
+    private final PauseTransition mSearchPause = new PauseTransition(Duration.millis(200));
+    private final TextField mSearchTextField = new TextField();
+    private final MenuButton mStagesMenuButton = new MenuButton("Stages");
     private final TabPane mTabPane = new TabPane();
     private final Options mOptions = Options.getInstance();
 
@@ -54,16 +77,35 @@ public class StatusPanel extends BorderPane {
         initListeners();
     }
 
+    /**
+     * Appends lines to the output, from any thread.
+     *
+     * @param lines
+     */
+    void add(List<LogSink.Line> lines) {
+        if (Platform.isFxApplicationThread()) {
+            mLogView.add(lines);
+        } else {
+            Platform.runLater(() -> {
+                mLogView.add(lines);
+            });
+        }
+    }
+
     void clear() {
-        mLogOutPanel.clear();
+        if (Platform.isFxApplicationThread()) {
+            mLogView.clear();
+        } else {
+            Platform.runLater(mLogView::clear);
+        }
     }
 
     void err(String message) {
-        out(message);
+        add(toLines(message, true));
     }
 
     void out(String message) {
-        mLogOutPanel.println(message);
+        add(toLines(message, false));
     }
 
     void setProgress(double p) {
@@ -72,6 +114,29 @@ public class StatusPanel extends BorderPane {
         });
     }
 
+    /**
+     * Shows the percentage, throughput and ETA of event, from any thread.
+     *
+     * @param event
+     */
+    void setProgress(ProgressEvent event) {
+        Platform.runLater(() -> {
+            switch (event.getType()) {
+                case FINISHED -> {
+                    mProgressBar.setProgress(Math.max(0, event.getFraction()));
+                    mProgressLabel.setText("");
+                }
+                case STAGE_STARTED -> {
+                    mProgressLabel.setText(event.getStage());
+                }
+                default -> {
+                    mProgressBar.setProgress(event.getFraction() < 0 ? ProgressBar.INDETERMINATE_PROGRESS : event.getFraction());
+                    mProgressLabel.setText(event.toString());
+                }
+            }
+        });
+    }
+
     private void createUI() {
         String fontFamily = Font.getDefault().getFamily();
         double fontSize = Font.getDefault().getSize();
@@ -82,7 +147,7 @@ public class StatusPanel extends BorderPane {
         mProgressBar.setMaxWidth(Double.MAX_VALUE);
         mProgressBar.setProgress(0);
 
-        HBox progressBox = new HBox(8, mProgressBar);
+        HBox progressBox = new HBox(8, mProgressBar, mProgressLabel);
         HBox.setHgrow(mProgressBar, Priority.ALWAYS);
         progressBox.setAlignment(Pos.CENTER);
 
@@ -96,10 +161,9 @@ public class StatusPanel extends BorderPane {
 
         setTop(topBox);
 
-        mLogOutPanel.setMonospaced();
         mLogInfoPanel.setMonospaced();
 
-        var outTab = new Tab(Dict.OUTPUT.toString(), mLogOutPanel);
+        var outTab = new Tab(Dict.OUTPUT.toString(), createOutputPane());
         var infoTab = new Tab(Dict.INFORMATION.toString(), mLogInfoPanel);
 
         mTabPane.setTabClosingPolicy(TabPane.TabClosingPolicy.UNAVAILABLE);
@@ -107,15 +171,117 @@ public class StatusPanel extends BorderPane {
         mTabPane.getTabs().setAll(outTab, infoTab);
         setCenter(mTabPane);
 
-        mLogOutPanel.setWrapText(mOptions.isWordWrap());
+        mLogView.setWrapText(mOptions.isWordWrap());
+    }
+
+    private BorderPane createOutputPane() {
+        mSearchTextField.setPromptText("Search (Enter next, Shift+Enter previous)");
+        mSearchTextField.setPrefColumnCount(30);
+
+        var previousButton = new Button("Previous");
+        previousButton.setOnAction(actionEvent -> {
+            find(false, false);
+        });
+        var nextButton = new Button("Next");
+        nextButton.setOnAction(actionEvent -> {
+            find(true, false);
+        });
+
+        var searchBox = new HBox(8,
+                mSearchTextField,
+                previousButton,
+                nextButton,
+                mMatchesLabel,
+                mFilterCheckBox,
+                mErrorsOnlyCheckBox,
+                mStagesMenuButton
+        );
+        searchBox.setAlignment(Pos.CENTER_LEFT);
+        searchBox.setPadding(FxHelper.getUIScaledInsets(4));
+        HBox.setHgrow(mSearchTextField, Priority.ALWAYS);
+
+        var outputPane = new BorderPane(mLogView);
+        outputPane.setTop(searchBox);
+        outputPane.setOnKeyPressed(keyEvent -> {
+            if (new KeyCodeCombination(KeyCode.F, KeyCombination.SHORTCUT_DOWN).match(keyEvent)) {
+                mSearchTextField.requestFocus();
+                mSearchTextField.selectAll();
+                keyEvent.consume();
+            }
+        });
+
+        return outputPane;
+    }
+
+    private void find(boolean forward, boolean inclusive) {
+        var query = mSearchTextField.getText();
+        if (LogIndex.tokenize(query).isEmpty()) {
+            mMatchesLabel.setText("");
+            return;
+        }
+
+        boolean found = mLogView.find(query, forward, inclusive);
+        int count = mLogView.getMatchCount(query);
+        mMatchesLabel.setText(found || count == 0 ? String.format("%d matches", count) : "No more matches");
     }
 
     private void initListeners() {
         mOptions.wordWrapProperty().addListener((observable, oldValue, newValue) -> {
-            mLogOutPanel.setWrapText(newValue);
+            mLogView.setWrapText(newValue);
             mLogInfoPanel.setWrapText(newValue);
         });
 
+        mSearchTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+            mSearchPause.playFromStart();
+        });
+
+        mSearchPause.setOnFinished(actionEvent -> {
+            var query = mSearchTextField.getText();
+            mLogView.search(query, () -> {
+                if (!query.equals(mSearchTextField.getText())) {
+                    return;
+                }
+                if (mFilterCheckBox.isSelected()) {
+                    updateFilter();
+                }
+                find(true, true);
+            });
+        });
+
+        mSearchTextField.setOnKeyPressed(keyEvent -> {
+            if (keyEvent.getCode() == KeyCode.ENTER) {
+                find(!keyEvent.isShiftDown(), false);
+                keyEvent.consume();
+            } else if (keyEvent.getCode() == KeyCode.ESCAPE) {
+                mLogView.requestFocus();
+                keyEvent.consume();
+            }
+        });
+
+        mFilterCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> {
+            updateFilter();
+        });
+
+        mErrorsOnlyCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> {
+            updateFilter();
+        });
+
+        mStagesMenuButton.setOnShowing(event -> {
+            mStagesMenuButton.getItems().clear();
+            for (var stageMark : mLogView.getLogStore().getLogIndex().getStageMarks()) {
+                var menuItem = new MenuItem(stageMark.getName());
+                menuItem.setOnAction(actionEvent -> {
+                    mLogView.scrollToLine(stageMark.getLine());
+                });
+                mStagesMenuButton.getItems().add(menuItem);
+            }
+            if (mStagesMenuButton.getItems().isEmpty()) {
+                var menuItem = new MenuItem("No stages yet");
+                menuItem.setDisable(true);
+                mStagesMenuButton.getItems().add(menuItem);
+            }
+        });
+
         mRunManager.profileProperty().addListener((observable, oldValue, newValue) -> {
             mLogInfoPanel.clear();
 
@@ -129,4 +295,14 @@ public class StatusPanel extends BorderPane {
             }
         });
     }
+
+    private void updateFilter() {
+        mLogView.setFilter(mFilterCheckBox.isSelected() ? mSearchTextField.getText() : "", mErrorsOnlyCheckBox.isSelected());
+    }
+
+    private List<LogSink.Line> toLines(String message, boolean err) {
+        return Arrays.stream(message.split("\n", -1))
+                .map(text -> new LogSink.Line(text, err))
+                .collect(Collectors.toList());
+    }
 }
@@ -22,6 +22,7 @@ import java.util.prefs.Preferences;
 import javax.swing.ImageIcon;
 import javax.swing.JOptionPane;
 import javax.swing.JSeparator;
+import javax.swing.SwingUtilities;
 import se.trixon.almond.util.AlmondOptions;
 import se.trixon.almond.util.AlmondOptionsPanel;
 import se.trixon.almond.util.AlmondUI;
@@ -32,9 +33,11 @@ import se.trixon.almond.util.swing.AboutModel;
 import se.trixon.almond.util.swing.SwingHelper;
 import se.trixon.almond.util.swing.dialogs.about.AboutPanel;
 import se.trixon.nbpackager_core.DialogListener;
+import se.trixon.nbpackager_core.LogSink;
 import se.trixon.nbpackager_core.MainPanel;
 import se.trixon.nbpackager_core.Options;
 import se.trixon.nbpackager_core.OptionsPanel;
+import se.trixon.nbpackager_core.RunRecording;
 
 /**
  *
@@ -44,6 +47,7 @@ public class MainFrame extends javax.swing.JFrame {
 
     private static final AlmondUI sAlmondUI = AlmondUI.getInstance();
     private static final AlmondOptions sAlmondOptions = AlmondOptions.getInstance();
+    private LogSink mLogSink;
     private final Options mOptions = Options.getInstance();
     private final OptionsPanel mOptionsPanel = new OptionsPanel();
 
@@ -171,10 +175,12 @@ public class MainFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_formWindowClosing
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments, {@value RunRecording#ARGUMENT}
+     * records every run
      */
     public static void main(String args[]) {
         Locale.setDefault(Locale.ENGLISH);
+        RunRecording.parseArguments(args);
         SystemHelper.setMacApplicationName("nbPackager");
         sAlmondUI.installFlatLaf();
         sAlmondOptions.setDefaultLookAndFeel("FlatLaf Dark");
@@ -201,11 +207,8 @@ public class MainFrame extends javax.swing.JFrame {
         aboutModel.setAppVersion(pomInfo.getVersion());
         var aboutPanel = new AboutPanel(aboutModel);
         aboutMenuItem.setAction(AboutPanel.getAction(MainFrame.this, aboutPanel));
-        mainPanel.getLog().setOut(s -> {
-            logPanel.println(s);
-        });
-        mainPanel.getLog().setErr(s -> {
-            logPanel.println(s);
+        mLogSink = new LogSink(mainPanel.getLog(), SwingUtilities::invokeLater, lines -> {
+            logPanel.println(LogSink.toText(lines));
         });
 
         mainPanel.init();